@@ -0,0 +1,34 @@
+package us.stangl.katabankocr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * Entry point of benchmarks jar. Accepts the usual JMH command line options,
+ * including -l, -h and -lprof, and adds the GC profiler, unless already
+ * requested, so allocation rates are reported next to timings.
+ * @author Alex Stangl
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws RunnerException, IOException {
+		List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+		if (! requestsGcProfiler(args)) {
+			jmhArgs.add(0, "-prof");
+			jmhArgs.add(1, "gc");
+		}
+		Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+	}
+
+	private static boolean requestsGcProfiler(String[] args) {
+		for (int i = 0; i + 1 < args.length; ++i) {
+			if (args[i].equals("-prof") && args[i + 1].startsWith("gc"))
+				return true;
+		}
+		return false;
+	}
+}
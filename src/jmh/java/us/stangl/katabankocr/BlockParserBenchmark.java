@@ -0,0 +1,91 @@
+package us.stangl.katabankocr;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-block throughput of each block parser against clean, illegible and ambiguous input,
+ * formatting spec strings, filling a reused MutableAccountResult, and parsing a batch of blocks in one call.
+ * @author Alex Stangl
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockParserBenchmark {
+	@Param({ "raw", "simple", "errorCorrecting" })
+	public String parserName;
+
+	@Param({ "clean", "illegible", "ambiguous" })
+	public String input;
+
+	private static final int BATCH_SIZE = 64;
+
+	private OcrBlockParser<String> parser;
+	private AccountBlockParser accountParser;
+	private BatchBlockParser batchParser;
+	private ByteBuffer batchInput;
+	private final BlockBatch batch = new BlockBatch(BATCH_SIZE);
+	private OcrBlock block;
+	private final MutableAccountResult result = new MutableAccountResult();
+
+	@Setup
+	public void setUp() {
+		BaseOcrBlockParser baseParser;
+		if ("raw".equals(parserName))
+			baseParser = new RawOcrBlockParser();
+		else if ("simple".equals(parserName))
+			baseParser = new SimpleOcrBlockParser();
+		else if ("errorCorrecting".equals(parserName))
+			baseParser = new ErrorCorrectingBlockParser();
+		else
+			throw new IllegalArgumentException("Unknown parser " + parserName);
+		@SuppressWarnings("unchecked")
+		OcrBlockParser<String> stringParser = (OcrBlockParser<String>) baseParser;
+		parser = stringParser;
+		accountParser = baseParser;
+		batchParser = baseParser;
+		block = SyntheticOcrData.sampleBlock(input);
+		StringBuilder blocks = new StringBuilder();
+		for (int i = 0; i < BATCH_SIZE; ++i) {
+			for (String line : block.lines()) {
+				blocks.append(line).append('\n');
+			}
+		}
+		batchInput = ByteBuffer.wrap(blocks.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Benchmark
+	public String parseToString() throws OcrParseException {
+		return parser.parse(block);
+	}
+
+	@Benchmark
+	public int parseIntoReusedResult() throws OcrParseException {
+		accountParser.parse(block, result);
+		return result.getAccount() + result.getCandidateCount();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public long parseBatch() throws OcrParseException {
+		batchParser.parseBlocks(batchInput, 0, batchInput.limit(), true, batch);
+		return batch.results()[BATCH_SIZE - 1];
+	}
+}
@@ -0,0 +1,111 @@
+package us.stangl.katabankocr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * End-to-end file throughput of each file parser, over a deterministic synthetic file.
+ * Throughput in MB/s is reported as the "megabytes" secondary result.
+ * @author Alex Stangl
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileParserBenchmark {
+	@Param({ "100000" })
+	public int nbrOfBlocks;
+
+	@Param({ "simple", "errorCorrecting" })
+	public String parserName;
+
+	private File file;
+	private BaseOcrBlockParser parser;
+	private OcrBlockParser<String> stringParser;
+
+	/** Bytes parsed, reported as a rate alongside operations per second */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+		public double megabytes;
+	}
+
+	@Setup(Level.Trial)
+	@SuppressWarnings("unchecked")
+	public void setUp() throws IOException {
+		file = File.createTempFile("ocr-benchmark", ".txt");
+		SyntheticOcrData.writeFile(file, nbrOfBlocks, 20061004L);
+		if ("simple".equals(parserName))
+			parser = new SimpleOcrBlockParser();
+		else if ("errorCorrecting".equals(parserName))
+			parser = new ErrorCorrectingBlockParser();
+		else
+			throw new IllegalArgumentException("Unknown parser " + parserName);
+		stringParser = (OcrBlockParser<String>) parser;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public void readerParseFile(Bytes bytes, final Blackhole blackhole) throws OcrParseException {
+		new OcrFileParser().parseFile(file, stringParser, new OcrResultSink<String>() {
+			@Override
+			public void accept(String result) {
+				blackhole.consume(result);
+			}
+		});
+		bytes.megabytes += file.length() / 1e6;
+	}
+
+	@Benchmark
+	public void mappedParseFile(Bytes bytes, final Blackhole blackhole) throws OcrParseException {
+		new MappedOcrFileParser().parseFile(file, parser, new OcrResultSink<MutableAccountResult>() {
+			@Override
+			public void accept(MutableAccountResult result) {
+				blackhole.consume(result.getAccount());
+			}
+		});
+		bytes.megabytes += file.length() / 1e6;
+	}
+
+	@Benchmark
+	public void pipelinedParseFile(Bytes bytes, final Blackhole blackhole) throws OcrParseException {
+		new PipelinedOcrFileParser().parseFile(file, stringParser, new OcrResultSink<String>() {
+			@Override
+			public void accept(String result) {
+				blackhole.consume(result);
+			}
+		});
+		bytes.megabytes += file.length() / 1e6;
+	}
+
+	@Benchmark
+	public List<AccountResult> parallelParseFile(Bytes bytes) throws OcrParseException {
+		List<AccountResult> retval = new ParallelOcrFileParser().parseAccounts(file, parser);
+		bytes.megabytes += file.length() / 1e6;
+		return retval;
+	}
+}
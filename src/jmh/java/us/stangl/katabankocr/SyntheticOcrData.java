@@ -0,0 +1,72 @@
+package us.stangl.katabankocr;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Deterministic source of OCR input for benchmarks: fixed sample blocks,
+ * and synthetic files of seeded random blocks.
+ * @author Alex Stangl
+ */
+final class SyntheticOcrData {
+	static final String[] CLEAN_BLOCK = {
+		"    _  _     _  _  _  _  _ ",
+		"  | _| _||_||_ |_   ||_||_|",
+		"  ||_  _|  | _||_|  ||_| _|",
+		"                           "
+	};
+
+	// one illegible digit, correctable to a single value
+	static final String[] ILLEGIBLE_BLOCK = {
+		"    _  _  _  _  _  _     _ ",
+		"|_||_|| ||_||_   |  |  | _ ",
+		"  | _||_||_||_|  |  |  | _|",
+		"                           "
+	};
+
+	// legible but bad checksum, with several possible corrections
+	static final String[] AMBIGUOUS_BLOCK = {
+		"    _  _  _  _  _  _     _ ",
+		"|_||_|| || ||_   |  |  ||_ ",
+		"  | _||_||_||_|  |  |  | _|",
+		"                           "
+	};
+
+	private SyntheticOcrData() {
+	}
+
+	/**
+	 * @param kind one of "clean", "illegible", "ambiguous"
+	 * @return sample block of specified kind
+	 */
+	static OcrBlock sampleBlock(String kind) {
+		if ("clean".equals(kind))
+			return OcrBlock.newInstance(CLEAN_BLOCK);
+		if ("illegible".equals(kind))
+			return OcrBlock.newInstance(ILLEGIBLE_BLOCK);
+		if ("ambiguous".equals(kind))
+			return OcrBlock.newInstance(AMBIGUOUS_BLOCK);
+		throw new IllegalArgumentException("Unknown sample block kind " + kind);
+	}
+
+	/**
+	 * Write file of random blocks: mostly valid accounts, some with bad checksum,
+	 * and some with a single segment added or dropped.
+	 * @param file file to write
+	 * @param nbrOfBlocks number of blocks to write
+	 * @param seed random seed, so same file is generated every time
+	 * @throws IOException if file cannot be written
+	 */
+	static void writeFile(File file, int nbrOfBlocks, long seed) throws IOException {
+		NoiseModel noiseModel = NoiseModel.NONE.withInvalidAccountRate(0.1).withSegmentFlipRate(0.1);
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		try {
+			new OcrDataGenerator(noiseModel, seed).generate(nbrOfBlocks, output, null);
+		} finally {
+			output.close();
+		}
+	}
+}
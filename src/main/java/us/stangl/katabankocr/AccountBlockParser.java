@@ -0,0 +1,29 @@
+package us.stangl.katabankocr;
+
+/**
+ * Block parser which writes its result into a caller-supplied, reusable
+ * MutableAccountResult, rather than allocating a new result object per block.
+ * Formatting to spec strings is deferred to the caller, e.g., via
+ * MutableAccountResult.appendTo.
+ *
+ * @author Alex Stangl
+ */
+public interface AccountBlockParser {
+	/**
+	 * Parse OCR input block into specified result.
+	 *
+	 * @param block input block to parse
+	 * @param result result to fill in, which is cleared first
+	 * @throws OcrParseException if problems prevent successful parsing
+	 */
+	void parse(OcrBlock block, MutableAccountResult result) throws OcrParseException;
+
+	/**
+	 * Parse block whose 9 glyph cell codes have already been loaded into result,
+	 * and whose other state has been cleared.
+	 *
+	 * @param result result holding cell codes, to fill in
+	 * @throws OcrParseException if problems prevent successful parsing
+	 */
+	void parseCellCodes(MutableAccountResult result) throws OcrParseException;
+}
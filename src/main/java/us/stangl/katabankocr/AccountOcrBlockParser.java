@@ -0,0 +1,27 @@
+package us.stangl.katabankocr;
+
+/**
+ * Adapter presenting an AccountBlockParser as an OcrBlockParser
+ * returning immutable AccountResult objects.
+ *
+ * @author Alex Stangl
+ */
+public class AccountOcrBlockParser implements OcrBlockParser<AccountResult> {
+	private final AccountBlockParser parser;
+
+	/**
+	 * @param parser underlying parser, e.g., ErrorCorrectingBlockParser
+	 */
+	public AccountOcrBlockParser(AccountBlockParser parser) {
+		if (parser == null)
+			throw new IllegalArgumentException("Null parser passed to AccountOcrBlockParser");
+		this.parser = parser;
+	}
+
+	@Override
+	public AccountResult parse(OcrBlock block) throws OcrParseException {
+		MutableAccountResult result = new MutableAccountResult();
+		parser.parse(block, result);
+		return result.toAccountResult();
+	}
+}
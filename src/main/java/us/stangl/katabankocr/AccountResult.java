@@ -0,0 +1,157 @@
+package us.stangl.katabankocr;
+
+import java.util.Arrays;
+
+/**
+ * Immutable result of parsing an OCR block, with the account number
+ * encoded as an int rather than a string.
+ *
+ * Digit positions are indexed 0-8 from the left (0 being d9 in the spec).
+ * Illegible digits are stored as 0 in the account number, with the corresponding
+ * bit set in the illegible mask.
+ *
+ * @see MutableAccountResult for a reusable, allocation-free variant
+ * @author Alex Stangl
+ */
+public final class AccountResult {
+	// value of a digit at each position 0-8
+	static final int[] PLACE_VALUES = {
+		100000000, 10000000, 1000000, 100000, 10000, 1000, 100, 10, 1
+	};
+
+	private final int account;
+	private final int illegibleMask;
+	private final AccountStatus status;
+	private final boolean corrected;
+	private final int[] candidates;
+	private final int[] candidateCosts;
+	private final long sourceOffset;
+
+	AccountResult(int account, int illegibleMask, AccountStatus status, boolean corrected, int[] candidates,
+			int[] candidateCosts, long sourceOffset)
+	{
+		this.account = account;
+		this.illegibleMask = illegibleMask;
+		this.status = status;
+		this.corrected = corrected;
+		this.candidates = candidates;
+		this.candidateCosts = candidateCosts;
+		this.sourceOffset = sourceOffset;
+	}
+
+	/**
+	 * @return account number, with illegible digits as 0
+	 */
+	public int getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return bit mask of illegible digits, bit n set if digit at position n (0 = leftmost) is illegible
+	 */
+	public int getIllegibleMask() {
+		return illegibleMask;
+	}
+
+	/**
+	 * @param position digit position 0-8, 0 being leftmost
+	 * @return digit at specified position, or -1 if illegible
+	 */
+	public int getDigit(int position) {
+		return digitAt(account, illegibleMask, position);
+	}
+
+	public AccountStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return whether account number was automatically corrected from what was scanned
+	 */
+	public boolean isCorrected() {
+		return corrected;
+	}
+
+	public int getCandidateCount() {
+		return candidates.length;
+	}
+
+	/**
+	 * @return possible corrected account numbers, if status is AMB
+	 */
+	public int[] getCandidates() {
+		return candidates.clone();
+	}
+
+	/**
+	 * @return cost of each candidate, parallel to getCandidates, lower meaning more likely; 0 if not scored
+	 */
+	public int[] getCandidateCosts() {
+		return candidateCosts.clone();
+	}
+
+	/**
+	 * @return byte offset of parsed block within its input, or -1 if not known
+	 */
+	public long getSourceOffset() {
+		return sourceOffset;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (! (obj instanceof AccountResult))
+			return false;
+		AccountResult other = (AccountResult) obj;
+		return account == other.account && illegibleMask == other.illegibleMask && status == other.status
+				&& corrected == other.corrected && Arrays.equals(candidates, other.candidates)
+				&& Arrays.equals(candidateCosts, other.candidateCosts) && sourceOffset == other.sourceOffset;
+	}
+
+	@Override
+	public int hashCode() {
+		return (((account * 31 + illegibleMask) * 31 + status.hashCode()) * 31 + Arrays.hashCode(candidates)) * 31
+				+ Arrays.hashCode(candidateCosts);
+	}
+
+	/**
+	 * @return result in string format described in spec, e.g., "490067715 AMB [490067115, 490067719, 490867715]"
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(16);
+		appendFormatted(builder, account, illegibleMask, status, candidates, candidates.length);
+		return builder.toString();
+	}
+
+	static int digitAt(int account, int illegibleMask, int position) {
+		if ((illegibleMask & (1 << position)) != 0)
+			return -1;
+		return account / PLACE_VALUES[position] % 10;
+	}
+
+	// append 9 digit account number, with illegible digits as ?
+	static void appendAccount(StringBuilder builder, int account, int illegibleMask) {
+		for (int position = 0; position < 9; ++position) {
+			int digit = digitAt(account, illegibleMask, position);
+			builder.append(digit == -1 ? '?' : (char) ('0' + digit));
+		}
+	}
+
+	static void appendFormatted(StringBuilder builder, int account, int illegibleMask, AccountStatus status,
+			int[] candidates, int candidateCount)
+	{
+		appendAccount(builder, account, illegibleMask);
+		builder.append(status.getSuffix());
+		if (status == AccountStatus.AMB) {
+			builder.append(" [");
+			for (int i = 0; i < candidateCount; ++i) {
+				if (i > 0)
+					builder.append(", ");
+				appendAccount(builder, candidates[i], 0);
+			}
+			builder.append(']');
+		}
+	}
+}
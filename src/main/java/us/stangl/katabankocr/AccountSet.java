@@ -0,0 +1,16 @@
+package us.stangl.katabankocr;
+
+/**
+ * Set of account numbers, e.g., accounts known to exist, which
+ * ErrorCorrectingBlockParser can use to narrow ambiguous corrections.
+ * Implementations must be thread-safe for concurrent lookups.
+ *
+ * @author Alex Stangl
+ */
+public interface AccountSet {
+	/**
+	 * @param account account number
+	 * @return whether account is in set
+	 */
+	boolean contains(int account);
+}
@@ -0,0 +1,35 @@
+package us.stangl.katabankocr;
+
+/**
+ * Status of a parsed account number, as described in spec.
+ * @author Alex Stangl
+ */
+public enum AccountStatus {
+	/** Digits as scanned, no checksum validation performed (User Story 1) */
+	UNCHECKED(""),
+
+	/** All digits legible and checksum good, possibly after automatic correction */
+	OK(""),
+
+	/** One or more digits illegible */
+	ILL(BaseOcrBlockParser.ILLEGIBLE_SUFFIX),
+
+	/** All digits legible, but checksum bad */
+	ERR(BaseOcrBlockParser.ERROR_SUFFIX),
+
+	/** Multiple possible corrections pass checksum validation */
+	AMB(" AMB");
+
+	private final String suffix;
+
+	private AccountStatus(String suffix) {
+		this.suffix = suffix;
+	}
+
+	/**
+	 * @return suffix appended to account digits in spec output format, e.g., " ILL"
+	 */
+	public String getSuffix() {
+		return suffix;
+	}
+}
@@ -1,11 +1,13 @@
 package us.stangl.katabankocr;
 
+import java.nio.ByteBuffer;
+
 /**
  * Abstract base class for OCR block parsers.
  * Contains common data/functionality.
  * @author Alex Stangl
  */
-public abstract class BaseOcrBlockParser {
+public abstract class BaseOcrBlockParser implements AccountBlockParser, BatchBlockParser {
 	protected static final String[] DIGITS_LINES = {
 		" _     _  _     _  _  _  _  _ ",
 		"| |  | _| _||_||_ |_   ||_||_|",
@@ -15,41 +17,96 @@ public abstract class BaseOcrBlockParser {
 	protected static final String ILLEGIBLE_SUFFIX = " ILL";
 	protected static final String ERROR_SUFFIX = " ERR";
 	
+	@Override
+	public void parse(OcrBlock block, MutableAccountResult result) throws OcrParseException {
+		result.clear();
+		readCellCodes(block, result.cellCodes);
+		parseCellCodes(result);
+	}
+	
+	/**
+	 * Parse blocks through parseCellCodes, one after another in a single loop.
+	 * Subclasses with simple parseCellCodes may override this with a loop of their own,
+	 * so the JIT sees a single implementation at each call site.
+	 */
+	@Override
+	public int parseBlocks(ByteBuffer buffer, int start, int limit, boolean endOfInput, BlockBatch batch) throws OcrParseException {
+		ByteBlockFramer framer = batch.framer;
+		MutableAccountResult result = batch.result;
+		batch.reset(start);
+		for (int position = start, next; ! batch.isFull() && (next = framer.frame(buffer, position, limit, endOfInput)) != -1; position = next) {
+			checkFourthLineBlank(buffer, framer, position);
+			result.clear();
+			framer.readCellCodes(buffer, result.cellCodes);
+			parseCellCodes(result);
+			batch.add(position, BlockBatch.pack(result), next);
+		}
+		return batch.size();
+	}
+
+	static void checkFourthLineBlank(ByteBuffer buffer, ByteBlockFramer framer, int position) throws OcrParseException {
+		if (! framer.isFourthLineBlank(buffer))
+			throw new OcrParseException("Fourth line of block at index " + position + " not blank");
+	}
+
+	// parse block, formatting result only at the end into string format described in spec
+	protected String parseToString(OcrBlock block) throws OcrParseException {
+		MutableAccountResult result = new MutableAccountResult();
+		parse(block, result);
+		return result.toString();
+	}
+	
+	protected void readCellCodes(OcrBlock block, int[] cellCodes) {
+		block.readCellCodes(cellCodes);
+	}
+	
+	/**
+	 * Set raw account number and illegible mask of result from its cell codes.
+	 * @param result result holding cell codes
+	 * @return checksum weighted sum (d1+2*d2+3*d3 +..+9*d9) of digits, counting illegible digits as 0
+	 */
+	protected int decodeRawDigits(MutableAccountResult result) {
+		int account = 0;
+		int illegibleMask = 0;
+		int sum = 0;
+		for (int i = 0; i < 9; ++i) {
+			int digit = GlyphTable.digit(result.cellCodes[i]);
+			if (digit == -1) {
+				illegibleMask |= 1 << i;
+				digit = 0;
+			}
+			account = account * 10 + digit;
+			sum += digit * (9 - i);
+		}
+		result.setAccount(account, illegibleMask);
+		return sum;
+	}
+	
 	protected String parseRawDigitsString(OcrBlock block) {
 		StringBuilder rawDigitBuilder = new StringBuilder(9);
-		for (int startIndex = 0; startIndex < 27; startIndex += 3) {
-			int digit = parseDigit(block.paddedLines, startIndex);
-			rawDigitBuilder.append(digit == -1 ? "?" : Integer.toString(digit));
+		for (int cell = 0; cell < 9; ++cell) {
+			int digit = GlyphTable.digit(block.cellCode(cell));
+			rawDigitBuilder.append(digit == -1 ? '?' : (char) ('0' + digit));
 		}
 		return rawDigitBuilder.toString();
 	}
 	
 	// return raw digit parsed from input strings starting at specified index, or -1 if none match
 	protected int parseDigit(String[] input, int startIndex) {
-		for (int retval = 0; retval <= 9; ++retval) {
-			if (isDigitMatch(input, startIndex, retval)) {
-				return retval;
-			}
-		}
-		return -1;
+		return GlyphTable.digit(GlyphTable.cellCode(input, startIndex));
 	}
 	
 	protected boolean isDigitMatch(String[] input, int startIndex, int digit) {
-		return differencesFromDigit(input, startIndex, digit) == 0;
+		return parseDigit(input, startIndex) == digit;
 	}
 	
 	protected int differencesFromDigit(String[] input, int startIndex, int digit) {
-		int retval = 0;
-		for (int row = 0; row < 3; ++row) {
-			for (int index = 0; index < 3; ++index) {
-				if (input[row].charAt(startIndex + index) 
-						!= DIGITS_LINES[row].charAt(3 * digit + index))
-				{
-					++retval;
-				}
-			}
-		}
-		return retval;
+		return GlyphTable.distance(GlyphTable.cellCode(input, startIndex), digit);
+	}
+	
+	// return bit set of digits differing by a single segment from input starting at specified index (bit n set for digit n)
+	protected int neighbouringDigits(String[] input, int startIndex) {
+		return GlyphTable.neighbours(GlyphTable.cellCode(input, startIndex));
 	}
 	
 	/**
@@ -71,4 +128,17 @@ public abstract class BaseOcrBlockParser {
 		}
 		return sum % 11 == 0;
 	}
+	
+	/**
+	 * @param account 9 digit account number
+	 * @return whether specified account number has correct checksum
+	 */
+	protected boolean checksumGood(int account) {
+		int sum = 0;
+		for (int weight = 1; weight <= 9; ++weight) {
+			sum += account % 10 * weight;
+			account /= 10;
+		}
+		return sum % 11 == 0;
+	}
 }
@@ -0,0 +1,28 @@
+package us.stangl.katabankocr;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Block parser which parses many consecutive blocks of ASCII bytes in one
+ * call, writing packed results into a caller-supplied BlockBatch, so the
+ * cost of the call, and of any per-block objects such as OcrBlock, is not
+ * paid per block.
+ *
+ * @author Alex Stangl
+ */
+public interface BatchBlockParser {
+	/**
+	 * Parse consecutive blocks from buffer into batch, replacing its previous contents,
+	 * until the batch is full or no complete block remains before limit.
+	 * Parsing may be resumed from batch.end().
+	 *
+	 * @param buffer buffer holding input, read using absolute gets
+	 * @param start index of start of first block
+	 * @param limit index just past the last valid byte of buffer
+	 * @param endOfInput whether input ends at limit, so a final unterminated line is complete
+	 * @param batch batch to fill
+	 * @return number of blocks parsed
+	 * @throws OcrParseException if a block's 4th line is not blank, or problems prevent successful parsing
+	 */
+	int parseBlocks(ByteBuffer buffer, int start, int limit, boolean endOfInput, BlockBatch batch) throws OcrParseException;
+}
@@ -0,0 +1,130 @@
+package us.stangl.katabankocr;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the binary result format written by BinaryResultWriter and read
+ * by BinaryResultReader. All values are big-endian, as with DataOutput.
+ *
+ * The file starts with an 8-byte header:
+ *    0  int    magic number "KOCR"
+ *    4  short  format version
+ *    6  short  number of candidate slots per record in bits 0-14,
+ *              candidate costs flag in bit 15
+ * followed by fixed-width records of 16 bytes plus 4 per candidate slot, or
+ * 8 if candidate costs are stored:
+ *    0  long   source offset of block, or -1 if not known
+ *    8  int    account number, with illegible digits as 0
+ *   12  short  illegible digit mask in bits 0-8, corrected flag in bit 14,
+ *              candidates truncated flag in bit 15
+ *   14  byte   status, as AccountStatus ordinal
+ *   15  byte   candidate count
+ *   16  slots  candidate slots, each an int candidate, then if candidate
+ *              costs are stored an int candidate cost (see
+ *              RankedCorrectingBlockParser), unused slots 0
+ * Candidates beyond the slots are dropped, setting the truncated flag.
+ * Without stored costs, every candidate cost reads as 0.
+ *
+ * @author Alex Stangl
+ */
+final class BinaryResultFormat {
+	static final int MAGIC = 0x4B4F4352;
+	static final short VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	static final int MAX_CANDIDATE_SLOTS = 127;
+	static final int COSTS_FLAG = 1 << 15;
+	static final int CANDIDATE_SLOTS_BITS = 0x7FFF;
+
+	private static final int FIXED_RECORD_SIZE = 16;
+	private static final int CORRECTED_FLAG = 1 << 14;
+	private static final int TRUNCATED_FLAG = 1 << 15;
+	private static final int ILLEGIBLE_MASK_BITS = 0x1FF;
+
+	// AccountStatus ordinals are part of the format, so new statuses may only be appended
+	private static final AccountStatus[] STATUSES = AccountStatus.values();
+
+	private BinaryResultFormat() {
+	}
+
+	static int recordSize(int candidateSlots, boolean storeCosts) {
+		return FIXED_RECORD_SIZE + slotSize(storeCosts) * candidateSlots;
+	}
+
+	/**
+	 * @return size of candidate slot, with or without candidate cost
+	 */
+	static int slotSize(boolean storeCosts) {
+		return storeCosts ? 8 : 4;
+	}
+
+	/**
+	 * Encode result as record at current position of buffer, advancing position past it.
+	 */
+	static void encode(MutableAccountResult result, int candidateSlots, boolean storeCosts, ByteBuffer buffer) {
+		int count = Math.min(result.getCandidateCount(), candidateSlots);
+		int maskAndFlags = result.getIllegibleMask();
+		if (result.isCorrected())
+			maskAndFlags |= CORRECTED_FLAG;
+		if (count < result.getCandidateCount() || result.isCandidatesTruncated())
+			maskAndFlags |= TRUNCATED_FLAG;
+		buffer.putLong(result.getSourceOffset());
+		buffer.putInt(result.getAccount());
+		buffer.putShort((short) maskAndFlags);
+		buffer.put((byte) result.getStatus().ordinal());
+		buffer.put((byte) count);
+		for (int i = 0; i < candidateSlots; ++i) {
+			buffer.putInt(i < count ? result.getCandidate(i) : 0);
+			if (storeCosts)
+				buffer.putInt(i < count ? result.getCandidateCost(i) : 0);
+		}
+	}
+
+	/**
+	 * @return description of what is malformed about record, or null if nothing
+	 */
+	static String checkRecord(ByteBuffer buffer, int index, int candidateSlots) {
+		int status = buffer.get(index + 14);
+		if (status < 0 || status >= STATUSES.length)
+			return "status " + status + " not in range 0-" + (STATUSES.length - 1);
+		int count = candidateCount(buffer, index);
+		if (count < 0 || count > candidateSlots)
+			return "candidate count " + count + " not in range 0-" + candidateSlots;
+		return null;
+	}
+
+	static long sourceOffset(ByteBuffer buffer, int index) {
+		return buffer.getLong(index);
+	}
+
+	static int account(ByteBuffer buffer, int index) {
+		return buffer.getInt(index + 8);
+	}
+
+	static int illegibleMask(ByteBuffer buffer, int index) {
+		return buffer.getShort(index + 12) & ILLEGIBLE_MASK_BITS;
+	}
+
+	static boolean isCorrected(ByteBuffer buffer, int index) {
+		return (buffer.getShort(index + 12) & CORRECTED_FLAG) != 0;
+	}
+
+	static boolean isCandidatesTruncated(ByteBuffer buffer, int index) {
+		return (buffer.getShort(index + 12) & TRUNCATED_FLAG) != 0;
+	}
+
+	static AccountStatus status(ByteBuffer buffer, int index) {
+		return STATUSES[buffer.get(index + 14)];
+	}
+
+	static int candidateCount(ByteBuffer buffer, int index) {
+		return buffer.get(index + 15);
+	}
+
+	static int candidate(ByteBuffer buffer, int index, int slotSize, int candidateIndex) {
+		return buffer.getInt(index + FIXED_RECORD_SIZE + slotSize * candidateIndex);
+	}
+
+	static int candidateCost(ByteBuffer buffer, int index, int slotSize, int candidateIndex) {
+		return slotSize == 4 ? 0 : buffer.getInt(index + FIXED_RECORD_SIZE + slotSize * candidateIndex + 4);
+	}
+}
@@ -0,0 +1,208 @@
+package us.stangl.katabankocr;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random-access reader of a file of binary result records written by
+ * BinaryResultWriter. The file is memory-mapped, and fields are read
+ * directly from the mapped bytes by record index, so nothing is parsed or
+ * allocated per record.
+ *
+ * Files too large for one mapping are mapped in several segments, each
+ * holding a whole number of records. A trailing partial record, e.g., from
+ * a writer that did not finish, is ignored. Every record is checked when
+ * the file is opened, so a corrupt file is rejected up front rather than
+ * failing part way through reading it. Safe for concurrent reads.
+ *
+ * @author Alex Stangl
+ */
+public class BinaryResultReader implements Closeable {
+	private final RandomAccessFile file;
+	private final int candidateSlots;
+	private final int slotSize;
+	private final int recordSize;
+	private final int recordsPerSegment;
+	private final long size;
+	private final MappedByteBuffer[] segments;
+
+	/**
+	 * @param inputFile file to read
+	 * @throws OcrParseException if file cannot be read, is not in binary result format, or has a malformed header or record
+	 */
+	public BinaryResultReader(File inputFile) throws OcrParseException {
+		RandomAccessFile file = null;
+		boolean normalTermination = false;
+		try {
+			file = new RandomAccessFile(inputFile, "r");
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+			if (length < BinaryResultFormat.HEADER_SIZE)
+				throw new OcrParseException(inputFile + " too short to hold binary result header");
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryResultFormat.HEADER_SIZE);
+			if (header.getInt(0) != BinaryResultFormat.MAGIC)
+				throw new OcrParseException(inputFile + " not in binary result format");
+			short version = header.getShort(4);
+			if (version != BinaryResultFormat.VERSION)
+				throw new OcrParseException("Unsupported binary result format version " + version + " in " + inputFile);
+			int slotsAndFlags = header.getShort(6);
+			boolean storeCosts = (slotsAndFlags & BinaryResultFormat.COSTS_FLAG) != 0;
+			this.candidateSlots = slotsAndFlags & BinaryResultFormat.CANDIDATE_SLOTS_BITS;
+			if (candidateSlots > BinaryResultFormat.MAX_CANDIDATE_SLOTS)
+				throw new OcrParseException("Malformed binary result header in " + inputFile + ": " + candidateSlots
+						+ " candidate slots not in range 0-" + BinaryResultFormat.MAX_CANDIDATE_SLOTS);
+			this.slotSize = BinaryResultFormat.slotSize(storeCosts);
+			this.recordSize = BinaryResultFormat.recordSize(candidateSlots, storeCosts);
+			this.recordsPerSegment = Integer.MAX_VALUE / recordSize;
+			this.size = (length - BinaryResultFormat.HEADER_SIZE) / recordSize;
+			this.segments = new MappedByteBuffer[(int) ((size + recordsPerSegment - 1) / recordsPerSegment)];
+			for (int i = 0; i < segments.length; ++i) {
+				long firstRecord = (long) i * recordsPerSegment;
+				long segmentLength = Math.min(recordsPerSegment, size - firstRecord) * recordSize;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, BinaryResultFormat.HEADER_SIZE + firstRecord * recordSize,
+						segmentLength);
+				for (int index = 0; index < segmentLength; index += recordSize) {
+					String problem = BinaryResultFormat.checkRecord(segments[i], index, candidateSlots);
+					if (problem != null)
+						throw new OcrParseException("Malformed binary result record " + (firstRecord + index / recordSize) + " in "
+								+ inputFile + ": " + problem);
+				}
+			}
+			this.file = file;
+			normalTermination = true;
+		} catch (FileNotFoundException e) {
+			throw new OcrParseException("FileNotFoundException unexpectedly caught trying to read " + inputFile, e);
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to read " + inputFile, e);
+		} finally {
+			if (! normalTermination && file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
+					System.err.println("Suppressing IOException caught during abnormal termination of reading " + inputFile + ": " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of records
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return number of candidate slots per record
+	 */
+	public int getCandidateSlots() {
+		return candidateSlots;
+	}
+
+	public long getSourceOffset(long record) {
+		return BinaryResultFormat.sourceOffset(segment(record), index(record));
+	}
+
+	public int getAccount(long record) {
+		return BinaryResultFormat.account(segment(record), index(record));
+	}
+
+	public int getIllegibleMask(long record) {
+		return BinaryResultFormat.illegibleMask(segment(record), index(record));
+	}
+
+	public AccountStatus getStatus(long record) {
+		return BinaryResultFormat.status(segment(record), index(record));
+	}
+
+	public boolean isCorrected(long record) {
+		return BinaryResultFormat.isCorrected(segment(record), index(record));
+	}
+
+	/**
+	 * @return whether candidates were dropped, because they exceeded the candidate slots or the parser's capacity
+	 */
+	public boolean isCandidatesTruncated(long record) {
+		return BinaryResultFormat.isCandidatesTruncated(segment(record), index(record));
+	}
+
+	public int getCandidateCount(long record) {
+		return BinaryResultFormat.candidateCount(segment(record), index(record));
+	}
+
+	/**
+	 * @param record index of record
+	 * @param candidateIndex index of candidate, less than candidate count
+	 * @return candidate at specified index
+	 */
+	public int getCandidate(long record, int candidateIndex) {
+		if (candidateIndex < 0 || candidateIndex >= getCandidateCount(record))
+			throw new IndexOutOfBoundsException("Candidate index " + candidateIndex + " not less than count " + getCandidateCount(record));
+		return BinaryResultFormat.candidate(segment(record), index(record), slotSize, candidateIndex);
+	}
+
+	/**
+	 * @param record index of record
+	 * @param candidateIndex index of candidate, less than candidate count
+	 * @return cost of candidate at specified index, 0 if not ranked or costs not stored
+	 */
+	public int getCandidateCost(long record, int candidateIndex) {
+		if (candidateIndex < 0 || candidateIndex >= getCandidateCount(record))
+			throw new IndexOutOfBoundsException("Candidate index " + candidateIndex + " not less than count " + getCandidateCount(record));
+		return BinaryResultFormat.candidateCost(segment(record), index(record), slotSize, candidateIndex);
+	}
+
+	/**
+	 * Read record into result, which is cleared first.
+	 * @param record index of record
+	 * @param result result to fill in, whose capacity should be at least the candidate slots
+	 */
+	public void read(long record, MutableAccountResult result) {
+		MappedByteBuffer segment = segment(record);
+		int index = index(record);
+		result.clear();
+		result.setAccount(BinaryResultFormat.account(segment, index), BinaryResultFormat.illegibleMask(segment, index));
+		if (BinaryResultFormat.isCorrected(segment, index))
+			result.setCorrected(result.getAccount());
+		else
+			result.setStatus(BinaryResultFormat.status(segment, index));
+		for (int i = 0, count = BinaryResultFormat.candidateCount(segment, index); i < count; ++i) {
+			result.addCandidate(BinaryResultFormat.candidate(segment, index, slotSize, i),
+					BinaryResultFormat.candidateCost(segment, index, slotSize, i));
+		}
+		if (BinaryResultFormat.isCandidatesTruncated(segment, index))
+			result.markCandidatesTruncated();
+		result.setSourceOffset(BinaryResultFormat.sourceOffset(segment, index));
+	}
+
+	/**
+	 * @param record index of record
+	 * @return record as new immutable result
+	 */
+	public AccountResult get(long record) {
+		MutableAccountResult result = new MutableAccountResult(candidateSlots);
+		read(record, result);
+		return result.toAccountResult();
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private MappedByteBuffer segment(long record) {
+		if (record < 0 || record >= size)
+			throw new IndexOutOfBoundsException("Record " + record + " not in range 0-" + (size - 1));
+		return segments[(int) (record / recordsPerSegment)];
+	}
+
+	private int index(long record) {
+		return (int) (record % recordsPerSegment) * recordSize;
+	}
+}
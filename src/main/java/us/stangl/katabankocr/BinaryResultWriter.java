@@ -0,0 +1,104 @@
+package us.stangl.katabankocr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sink writing results as fixed-width binary records, in the format read by
+ * BinaryResultReader, so downstream consumers need not parse spec strings.
+ * Records are buffered and written to the channel in large batches, without
+ * allocating per result, so it can be passed directly as the sink of
+ * OcrFileParser.parseAccounts or MappedOcrFileParser.parseFile.
+ *
+ * Each record holds a fixed number of candidate slots, chosen when writing
+ * starts; candidates beyond them are dropped, and the record flagged as
+ * truncated. Candidate costs are stored only if asked for, e.g., for the
+ * results of RankedCorrectingBlockParser, doubling the size of each slot.
+ * Not thread-safe.
+ *
+ * @author Alex Stangl
+ */
+public class BinaryResultWriter implements OcrResultSink<MutableAccountResult>, Closeable {
+	/** Default number of candidate slots per record */
+	public static final int DEFAULT_CANDIDATE_SLOTS = 4;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final WritableByteChannel channel;
+	private final int candidateSlots;
+	private final boolean storeCosts;
+	private final int recordSize;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	public BinaryResultWriter(WritableByteChannel channel) {
+		this(channel, DEFAULT_CANDIDATE_SLOTS);
+	}
+
+	/**
+	 * @param channel channel to write to, starting with header; closed by close
+	 * @param candidateSlots number of candidates held per record
+	 */
+	public BinaryResultWriter(WritableByteChannel channel, int candidateSlots) {
+		this(channel, candidateSlots, false);
+	}
+
+	/**
+	 * @param channel channel to write to, starting with header; closed by close
+	 * @param candidateSlots number of candidates held per record
+	 * @param storeCosts whether to store the cost of each candidate
+	 */
+	public BinaryResultWriter(WritableByteChannel channel, int candidateSlots, boolean storeCosts) {
+		if (channel == null)
+			throw new IllegalArgumentException("Null channel passed to BinaryResultWriter");
+		if (candidateSlots < 0 || candidateSlots > BinaryResultFormat.MAX_CANDIDATE_SLOTS)
+			throw new IllegalArgumentException("Candidate slots " + candidateSlots + " not in range 0-" + BinaryResultFormat.MAX_CANDIDATE_SLOTS);
+		this.channel = channel;
+		this.candidateSlots = candidateSlots;
+		this.storeCosts = storeCosts;
+		this.recordSize = BinaryResultFormat.recordSize(candidateSlots, storeCosts);
+		buffer.putInt(BinaryResultFormat.MAGIC);
+		buffer.putShort(BinaryResultFormat.VERSION);
+		buffer.putShort((short) (storeCosts ? candidateSlots | BinaryResultFormat.COSTS_FLAG : candidateSlots));
+	}
+
+	@Override
+	public void accept(MutableAccountResult result) throws OcrParseException {
+		if (buffer.remaining() < recordSize)
+			flush();
+		BinaryResultFormat.encode(result, candidateSlots, storeCosts, buffer);
+	}
+
+	/**
+	 * Write all buffered records to channel.
+	 * @throws OcrParseException if error occurs writing
+	 */
+	public void flush() throws OcrParseException {
+		try {
+			writeBuffer();
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to write binary results", e);
+		}
+	}
+
+	/**
+	 * Flush buffered records, then close channel.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			writeBuffer();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
@@ -0,0 +1,151 @@
+package us.stangl.katabankocr;
+
+/**
+ * Reusable, caller-supplied output of BatchBlockParser.parseBlocks: the
+ * results of up to a fixed number of consecutive blocks, each packed into a
+ * long in a primitive array, so a whole batch is parsed without allocating.
+ *
+ * Each packed result holds:
+ *    bits  0-29  account number, with illegible digits as 0
+ *    bits 30-38  illegible digit mask
+ *    bits 39-41  status, as AccountStatus ordinal
+ *    bit  42     corrected flag
+ *    bits 43-47  number of candidates, at most 31
+ * Candidates themselves are not kept. The start of each block within the
+ * parsed buffer is kept, so the few AMB blocks whose candidates are wanted
+ * can be parsed again individually.
+ *
+ * Also holds the per-batch working state of the parse, so one parser may
+ * fill any number of batches concurrently. Not thread-safe.
+ *
+ * @author Alex Stangl
+ */
+public final class BlockBatch {
+	private static final int ACCOUNT_BITS = 0x3FFFFFFF;
+	private static final int ILLEGIBLE_SHIFT = 30;
+	private static final int STATUS_SHIFT = 39;
+	private static final int CORRECTED_SHIFT = 42;
+	private static final int CANDIDATE_COUNT_SHIFT = 43;
+	private static final int MAX_CANDIDATE_COUNT = 31;
+	private static final AccountStatus[] STATUSES = AccountStatus.values();
+
+	private final long[] results;
+	private final int[] blockStarts;
+	private int size;
+	private int end;
+
+	// working state of parse
+	final ByteBlockFramer framer = new ByteBlockFramer();
+	final MutableAccountResult result = new MutableAccountResult();
+
+	/**
+	 * @param capacity maximum number of blocks parsed into batch by one call
+	 */
+	public BlockBatch(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Batch capacity " + capacity + " not positive");
+		this.results = new long[capacity];
+		this.blockStarts = new int[capacity];
+	}
+
+	public int capacity() {
+		return results.length;
+	}
+
+	/**
+	 * @return number of blocks parsed by last call to parseBlocks
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return index within buffer just past last block parsed, where next call to parseBlocks should start
+	 */
+	public int end() {
+		return end;
+	}
+
+	/**
+	 * @return backing array of packed results, valid up to size()
+	 */
+	public long[] results() {
+		return results;
+	}
+
+	/**
+	 * @param index index of block within batch, less than size()
+	 * @return index within buffer of start of specified block
+	 */
+	public int blockStart(int index) {
+		return blockStarts[checkIndex(index)];
+	}
+
+	/**
+	 * @param index index of block within batch, less than size()
+	 * @return packed result of specified block
+	 */
+	public long get(int index) {
+		return results[checkIndex(index)];
+	}
+
+	public static int account(long packed) {
+		return (int) packed & ACCOUNT_BITS;
+	}
+
+	public static int illegibleMask(long packed) {
+		return (int) (packed >>> ILLEGIBLE_SHIFT) & 0x1FF;
+	}
+
+	public static AccountStatus status(long packed) {
+		return STATUSES[(int) (packed >>> STATUS_SHIFT) & 0x7];
+	}
+
+	public static boolean isCorrected(long packed) {
+		return (packed & (1L << CORRECTED_SHIFT)) != 0;
+	}
+
+	public static int candidateCount(long packed) {
+		return (int) (packed >>> CANDIDATE_COUNT_SHIFT) & MAX_CANDIDATE_COUNT;
+	}
+
+	/**
+	 * @return packed form of specified result fields
+	 */
+	static long pack(int account, int illegibleMask, AccountStatus status, boolean corrected, int candidateCount) {
+		return account | (long) illegibleMask << ILLEGIBLE_SHIFT | (long) status.ordinal() << STATUS_SHIFT
+				| (corrected ? 1L << CORRECTED_SHIFT : 0L)
+				| (long) Math.min(candidateCount, MAX_CANDIDATE_COUNT) << CANDIDATE_COUNT_SHIFT;
+	}
+
+	/**
+	 * @return packed form of result
+	 */
+	static long pack(MutableAccountResult result) {
+		return pack(result.getAccount(), result.getIllegibleMask(), result.getStatus(), result.isCorrected(),
+				result.getCandidateCount());
+	}
+
+	// start filling batch again from specified buffer index
+	void reset(int start) {
+		size = 0;
+		end = start;
+	}
+
+	boolean isFull() {
+		return size == results.length;
+	}
+
+	// append packed result of block ending just before specified buffer index
+	void add(int blockStart, long packed, int blockEnd) {
+		blockStarts[size] = blockStart;
+		results[size++] = packed;
+		end = blockEnd;
+	}
+
+	private int checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Block index " + index + " not less than size " + size);
+		return index;
+	}
+}
@@ -0,0 +1,148 @@
+package us.stangl.katabankocr;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Locates 4-line OCR blocks directly within a buffer of ASCII bytes, and
+ * decodes glyph cells from them without creating any strings.
+ *
+ * Lines are terminated by \n, \r, or \r\n, as with BufferedReader.readLine.
+ * Characters beyond the end of a short line are treated as blank.
+ * Reuse one instance per thread; state describes the last framed block.
+ *
+ * @author Alex Stangl
+ */
+final class ByteBlockFramer {
+	// offsets of start of each line of current block, and end (exclusive, excluding line terminator)
+	final int[] lineStarts = new int[4];
+	final int[] lineEnds = new int[4];
+
+	/**
+	 * Frame the block starting at specified index of buffer.
+	 *
+	 * @param buffer buffer holding input, read using absolute gets
+	 * @param start index of start of block
+	 * @param limit index just past the last valid byte of buffer
+	 * @param endOfInput whether input ends at limit, so a final unterminated line is complete
+	 * @return index just past the block, or -1 if limit reached before block complete
+	 */
+	int frame(ByteBuffer buffer, int start, int limit, boolean endOfInput) {
+		int position = start;
+		for (int line = 0; line < 4; ++line) {
+			lineStarts[line] = position;
+			while (position < limit) {
+				byte b = buffer.get(position);
+				if (b == '\n' || b == '\r')
+					break;
+				++position;
+			}
+			lineEnds[line] = position;
+			if (position == limit) {
+				// unterminated final line counts only if non-empty, as with readLine
+				if (! endOfInput || position == lineStarts[line])
+					return -1;
+			} else if (buffer.get(position++) == '\r') {
+				if (position == limit && ! endOfInput)
+					return -1;
+				if (position < limit && buffer.get(position) == '\n')
+					++position;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * @return index of start of current block
+	 */
+	int blockStart() {
+		return lineStarts[0];
+	}
+
+	/**
+	 * @param buffer buffer holding current block
+	 * @return whether 4th line of current block is blank, ignoring whitespace and control characters like String.trim
+	 */
+	boolean isFourthLineBlank(ByteBuffer buffer) {
+		return isBlank(buffer, lineStarts[3], lineEnds[3]);
+	}
+
+	/**
+	 * @param buffer buffer holding input
+	 * @param start index of start of range
+	 * @param end index just past end of range
+	 * @return whether range holds only whitespace and control characters, like String.trim
+	 */
+	static boolean isBlank(ByteBuffer buffer, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			if ((buffer.get(i) & 0xFF) > ' ')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decode 9 glyph cells of current block.
+	 *
+	 * @param buffer buffer holding current block
+	 * @param cellCodes array to receive cell codes
+	 */
+	void readCellCodes(ByteBuffer buffer, int[] cellCodes) {
+		if (! WordParallelDecoder.readCellCodes(buffer, lineStarts, lineEnds, cellCodes))
+			readCellCodesIndividually(buffer, cellCodes);
+	}
+
+	/**
+	 * Decode 9 glyph cells of current block one character at a time, as is
+	 * necessary near end of buffer where whole words cannot be loaded.
+	 *
+	 * @param buffer buffer holding current block
+	 * @param cellCodes array to receive cell codes
+	 */
+	void readCellCodesIndividually(ByteBuffer buffer, int[] cellCodes) {
+		for (int cell = 0; cell < 9; ++cell) {
+			int code = 0;
+			for (int row = 0; row < 3; ++row) {
+				int index = lineStarts[row] + 3 * cell;
+				int end = lineEnds[row];
+				for (int column = 0; column < 3; ++column, ++index) {
+					if (index < end)
+						code |= GlyphTable.positionBits(buffer.get(index) & 0xFF, 3 * row + column);
+				}
+			}
+			cellCodes[cell] = code;
+		}
+	}
+
+	/**
+	 * @return total length of the 4 lines of current block, excluding line terminators
+	 */
+	int linesLength() {
+		int retval = 0;
+		for (int line = 0; line < 4; ++line) {
+			retval += lineEnds[line] - lineStarts[line];
+		}
+		return retval;
+	}
+
+	/**
+	 * Copy the 4 lines of current block, without line terminators, to be parsed later.
+	 *
+	 * @param buffer buffer holding current block
+	 * @param dest array to copy lines into, with room for linesLength() bytes from offset
+	 * @param offset index within dest to copy first line to
+	 * @param lineLengths array to receive length of each line
+	 * @param lengthsOffset index within lineLengths to store length of first line at
+	 * @return index within dest just past copied lines
+	 */
+	int copyLines(ByteBuffer buffer, byte[] dest, int offset, int[] lineLengths, int lengthsOffset) {
+		for (int line = 0; line < 4; ++line) {
+			int start = lineStarts[line];
+			int length = lineEnds[line] - start;
+			for (int i = 0; i < length; ++i) {
+				dest[offset++] = buffer.get(start + i);
+			}
+			lineLengths[lengthsOffset + line] = length;
+		}
+		return offset;
+	}
+}
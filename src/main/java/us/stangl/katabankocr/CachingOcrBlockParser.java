@@ -0,0 +1,181 @@
+package us.stangl.katabankocr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Block parser which memoizes the results of another parser, so that
+ * repeated blocks (e.g., the same payee account scanned many times a day)
+ * are answered without parsing them again. This includes repeated illegible
+ * and ambiguous blocks, whose error correction search is the most expensive.
+ *
+ * Blocks are keyed by the packed 9-bit glyph codes of their 9 cells, so the
+ * wrapped parser's result must depend only on the glyphs (true of all parsers in
+ * this package), and must be immutable, since one result is shared among all
+ * identical blocks. Blocks containing characters other than blanks and the
+ * expected segment characters are rare, and are parsed without caching.
+ *
+ * The cache is bounded, with least-recently-used eviction. It is split into
+ * independently locked segments so that concurrent callers rarely contend.
+ * Parsing on a miss is done outside any lock.
+ *
+ * @param <T> type of parse result
+ * @author Alex Stangl
+ */
+public class CachingOcrBlockParser<T> implements OcrBlockParser<T> {
+	/** Default maximum number of cached results */
+	public static final int DEFAULT_MAXIMUM_SIZE = 64 * 1024;
+
+	private static final int SEGMENTS = 16;
+
+	private final OcrBlockParser<T> parser;
+	private final Segment<T>[] segments;
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder uncacheableCount = new LongAdder();
+
+	public CachingOcrBlockParser(OcrBlockParser<T> parser) {
+		this(parser, DEFAULT_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * @param parser parser whose results are to be cached
+	 * @param maximumSize maximum number of results to cache
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public CachingOcrBlockParser(OcrBlockParser<T> parser, int maximumSize) {
+		if (parser == null)
+			throw new IllegalArgumentException("Null parser passed to CachingOcrBlockParser");
+		if (maximumSize <= 0)
+			throw new IllegalArgumentException("Maximum size " + maximumSize + " not positive");
+		this.parser = parser;
+		this.segments = new Segment[SEGMENTS];
+		int segmentSize = (maximumSize + SEGMENTS - 1) / SEGMENTS;
+		for (int i = 0; i < SEGMENTS; ++i) {
+			segments[i] = new Segment<T>(segmentSize);
+		}
+	}
+
+	@Override
+	public T parse(OcrBlock block) throws OcrParseException {
+		long low = 0;
+		long high = 0;
+		for (int cell = 0; cell < 9; ++cell) {
+			int code = block.cellCode(cell);
+			if (code >= GlyphTable.CLEAN_CODES) {
+				uncacheableCount.increment();
+				return parser.parse(block);
+			}
+			// cells 0-6 fill 63 bits of low word, cells 7-8 go in high word
+			if (cell < 7)
+				low |= (long) code << (GlyphTable.CELL_BITS * cell);
+			else
+				high |= (long) code << (GlyphTable.CELL_BITS * (cell - 7));
+		}
+		GlyphSignature key = new GlyphSignature(low, high);
+		Segment<T> segment = segments[key.hashCode() & (SEGMENTS - 1)];
+		T retval;
+		synchronized (segment) {
+			retval = segment.get(key);
+		}
+		if (retval != null) {
+			hitCount.increment();
+			return retval;
+		}
+		missCount.increment();
+		retval = parser.parse(block);
+		if (retval != null) {
+			synchronized (segment) {
+				segment.put(key, retval);
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * @return number of blocks answered from cache
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * @return number of blocks not found in cache, and parsed
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * @return number of blocks parsed without caching because they contain unexpected characters
+	 */
+	public long getUncacheableCount() {
+		return uncacheableCount.sum();
+	}
+
+	/**
+	 * @return number of results currently cached
+	 */
+	public int size() {
+		int retval = 0;
+		for (Segment<T> segment : segments) {
+			synchronized (segment) {
+				retval += segment.size();
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Discard all cached results. Counters are not reset.
+	 */
+	public void clear() {
+		for (Segment<T> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	// packed glyph codes of all 9 cells of a block
+	private static final class GlyphSignature {
+		private final long low;
+		private final long high;
+
+		GlyphSignature(long low, long high) {
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (! (obj instanceof GlyphSignature))
+				return false;
+			GlyphSignature other = (GlyphSignature) obj;
+			return low == other.low && high == other.high;
+		}
+
+		@Override
+		public int hashCode() {
+			long mixed = (low ^ (high * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL;
+			return (int) (mixed ^ (mixed >>> 32));
+		}
+	}
+
+	// access-ordered map evicting least recently used entry once full; guarded by its own monitor
+	private static final class Segment<T> extends LinkedHashMap<GlyphSignature, T> {
+		private static final long serialVersionUID = 1L;
+		private final int maximumSize;
+
+		Segment(int maximumSize) {
+			super(16, 0.75f, true);
+			this.maximumSize = maximumSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<GlyphSignature, T> eldest) {
+			return size() > maximumSize;
+		}
+	}
+}
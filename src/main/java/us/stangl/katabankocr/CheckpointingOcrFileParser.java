@@ -0,0 +1,172 @@
+package us.stangl.katabankocr;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Object that parses an input file into an output file of results in spec
+ * string format, one per line, and which can resume a parse interrupted by
+ * a crash or restart, rather than starting over.
+ *
+ * Every so many blocks, output written so far is forced to disk, then a
+ * ParseCheckpoint recording the input offset of the next block, the number
+ * of blocks parsed, and the output length is saved. A parse started with a
+ * checkpoint file present resumes from it: output beyond the checkpointed
+ * length, written after the last checkpoint, is truncated, and input is read
+ * from the checkpointed offset, which is always at a block boundary. So a
+ * restart neither duplicates nor loses results. Once the whole file is
+ * parsed, a final checkpoint after its last block is saved, so running again
+ * only parses blocks appended since; delete the checkpoint file to parse
+ * from scratch.
+ *
+ * Framing is strict, or lenient if constructed with a MalformedInputListener,
+ * as with OcrFileParser. Malformed input before a checkpoint is not reported
+ * again on resume.
+ *
+ * @author Alex Stangl
+ */
+public class CheckpointingOcrFileParser {
+	/** Default number of blocks parsed between checkpoints */
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 100000;
+
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	private final AccountBlockParser parser;
+	private final int checkpointInterval;
+	// null if framing strictly
+	private final MalformedInputListener listener;
+
+	public CheckpointingOcrFileParser(AccountBlockParser parser) {
+		this(parser, DEFAULT_CHECKPOINT_INTERVAL, null);
+	}
+
+	/**
+	 * @param parser parser to apply to each block
+	 * @param checkpointInterval number of blocks parsed between checkpoints
+	 * @param listener receiver of malformed input skipped by lenient framing, or null to frame strictly
+	 */
+	public CheckpointingOcrFileParser(AccountBlockParser parser, int checkpointInterval, MalformedInputListener listener) {
+		if (parser == null)
+			throw new IllegalArgumentException("Null parser passed to CheckpointingOcrFileParser");
+		if (checkpointInterval <= 0)
+			throw new IllegalArgumentException("Checkpoint interval " + checkpointInterval + " not positive");
+		this.parser = parser;
+		this.checkpointInterval = checkpointInterval;
+		this.listener = listener;
+	}
+
+	/**
+	 * Parse input file into output file, resuming from checkpoint file if present.
+	 * @param inputFile file to parse
+	 * @param outputFile file to write results to
+	 * @param checkpointFile file holding checkpoint, which need not exist
+	 * @return final checkpoint, after last block of input
+	 * @throws OcrParseException if error occurs during parsing, or checkpoint does not match input and output
+	 */
+	public ParseCheckpoint parseFile(File inputFile, File outputFile, File checkpointFile) throws OcrParseException {
+		ParseCheckpoint checkpoint = ParseCheckpoint.load(checkpointFile);
+		FileInputStream input = null;
+		RandomAccessFile output = null;
+		boolean normalTermination = false;
+		try {
+			input = new FileInputStream(inputFile);
+			output = new RandomAccessFile(outputFile, "rw");
+			FileChannel inputChannel = input.getChannel();
+			FileChannel outputChannel = output.getChannel();
+			if (checkpoint.getInputOffset() > inputChannel.size())
+				throw new OcrParseException(checkpoint + " of " + checkpointFile + " beyond end of " + inputFile);
+			if (checkpoint.getOutputPosition() > outputChannel.size())
+				throw new OcrParseException(checkpoint + " of " + checkpointFile + " beyond end of " + outputFile);
+			// discard output written after checkpoint
+			outputChannel.truncate(checkpoint.getOutputPosition());
+			outputChannel.position(checkpoint.getOutputPosition());
+			inputChannel.position(checkpoint.getInputOffset());
+			checkpoint = parse(new OcrBlockReader(inputChannel, OcrBlockReader.DEFAULT_BUFFER_SIZE, null, listener),
+					outputChannel, checkpoint, checkpointFile);
+			normalTermination = true;
+			return checkpoint;
+		} catch (FileNotFoundException e) {
+			throw new OcrParseException("FileNotFoundException unexpectedly caught trying to open " + inputFile + " or " + outputFile, e);
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to parse " + inputFile + " into " + outputFile, e);
+		} finally {
+			close(output, outputFile, normalTermination);
+			close(input, inputFile, normalTermination);
+		}
+	}
+
+	private ParseCheckpoint parse(OcrBlockReader reader, FileChannel outputChannel, ParseCheckpoint checkpoint, File checkpointFile)
+			throws IOException, OcrParseException
+	{
+		// reader offsets are relative to where reading started
+		long baseOffset = checkpoint.getInputOffset();
+		long blockIndex = checkpoint.getBlockIndex();
+		long outputPosition = checkpoint.getOutputPosition();
+		MutableAccountResult result = new MutableAccountResult();
+		StringBuilder line = new StringBuilder(256);
+		ByteBuffer outputBuffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+		int blocksSinceCheckpoint = 0;
+		while (reader.next()) {
+			if (! reader.isFourthLineBlank())
+				throw new OcrParseException("Fourth line of block at offset " + (baseOffset + reader.blockOffset()) + " not blank");
+			result.clear();
+			reader.readCellCodes(result.cellCodes);
+			result.setSourceOffset(baseOffset + reader.blockOffset());
+			parser.parseCellCodes(result);
+			line.setLength(0);
+			result.appendTo(line).append('\n');
+			if (line.length() > outputBuffer.remaining())
+				write(outputBuffer, outputChannel);
+			for (int i = 0; i < line.length(); ++i) {
+				outputBuffer.put((byte) line.charAt(i));
+			}
+			outputPosition += line.length();
+			++blockIndex;
+			if (++blocksSinceCheckpoint == checkpointInterval) {
+				checkpoint(outputBuffer, outputChannel, new ParseCheckpoint(baseOffset + reader.blockEndOffset(), blockIndex, outputPosition),
+						checkpointFile);
+				blocksSinceCheckpoint = 0;
+			}
+		}
+		ParseCheckpoint retval = new ParseCheckpoint(baseOffset + reader.blockEndOffset(), blockIndex, outputPosition);
+		checkpoint(outputBuffer, outputChannel, retval, checkpointFile);
+		return retval;
+	}
+
+	// make output durable, then record checkpoint of it
+	private void checkpoint(ByteBuffer outputBuffer, FileChannel outputChannel, ParseCheckpoint checkpoint, File checkpointFile)
+			throws IOException, OcrParseException
+	{
+		write(outputBuffer, outputChannel);
+		outputChannel.force(false);
+		checkpoint.save(checkpointFile);
+	}
+
+	private static void write(ByteBuffer outputBuffer, FileChannel outputChannel) throws IOException {
+		outputBuffer.flip();
+		while (outputBuffer.hasRemaining()) {
+			outputChannel.write(outputBuffer);
+		}
+		outputBuffer.clear();
+	}
+
+	private void close(Closeable closeable, File file, boolean normalTermination) throws OcrParseException {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				if (normalTermination) {
+					throw new OcrParseException("IOException unexpectedly caught trying to close " + file, e);
+				}
+				// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
+				System.err.println("Suppressing IOException caught during abnormal termination of " + file + ": " + e);
+			}
+		}
+	}
+}
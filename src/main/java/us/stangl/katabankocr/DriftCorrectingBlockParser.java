@@ -0,0 +1,108 @@
+package us.stangl.katabankocr;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Error-correcting OCR block parser which learns the drift of the scanner
+ * producing its input, in a ScannerDriftProfile, and uses it to skip the
+ * general correction search for the errors the scanner keeps making.
+ *
+ * A block failing validation first has every cell whose code has a promoted
+ * correction at its position replaced by the promoted digit. If that leaves
+ * no illegible digit and passes checksum, the block is corrected without
+ * searching, and each replaced cell is recorded in the profile, so the
+ * profile keeps seeing the corrections it has promoted, not only those it
+ * has not. Otherwise it is parsed by the wrapped correcting parser, and if
+ * that corrects it to a single account, each changed cell is recorded in the
+ * profile. Since the profile is evidence of how this scanner fails, a block
+ * which the general search would find ambiguous may be corrected by the fast
+ * path.
+ *
+ * @author Alex Stangl
+ */
+public class DriftCorrectingBlockParser extends BaseOcrBlockParser implements OcrBlockParser<String> {
+	private final AccountBlockParser parser;
+	private final ScannerDriftProfile profile;
+	private final LongAdder fastPathCount = new LongAdder();
+
+	/**
+	 * @param parser correcting parser to fall back on, e.g., ErrorCorrectingBlockParser
+	 * @param profile profile to learn into and consult, possibly shared by other parsers of the same scanner
+	 */
+	public DriftCorrectingBlockParser(AccountBlockParser parser, ScannerDriftProfile profile) {
+		if (parser == null)
+			throw new IllegalArgumentException("Null parser passed to DriftCorrectingBlockParser");
+		if (profile == null)
+			throw new IllegalArgumentException("Null profile passed to DriftCorrectingBlockParser");
+		this.parser = parser;
+		this.profile = profile;
+	}
+
+	@Override
+	public String parse(OcrBlock block) throws OcrParseException {
+		return parseToString(block);
+	}
+
+	@Override
+	public void parseCellCodes(MutableAccountResult result) throws OcrParseException {
+		int sum = decodeRawDigits(result);
+		int rawAccount = result.getAccount();
+		int rawIllegibleMask = result.getIllegibleMask();
+		if (rawIllegibleMask == 0 && sum % 11 == 0) {
+			result.setStatus(AccountStatus.OK);
+			return;
+		}
+		int[] cellCodes = result.cellCodes;
+		int account = 0;
+		int illegibleMask = 0;
+		int promotedMask = 0;
+		sum = 0;
+		for (int i = 0; i < 9; ++i) {
+			int digit = profile.promotedDigit(i, cellCodes[i]);
+			if (digit == -1) {
+				digit = GlyphTable.digit(cellCodes[i]);
+				if (digit == -1) {
+					illegibleMask |= 1 << i;
+					digit = 0;
+				}
+			} else {
+				promotedMask |= 1 << i;
+			}
+			account = account * 10 + digit;
+			sum += digit * (9 - i);
+		}
+		if (promotedMask != 0 && illegibleMask == 0 && sum % 11 == 0 && account != rawAccount) {
+			fastPathCount.increment();
+			result.setCorrected(account);
+			for (int i = 8; i >= 0; --i, account /= 10) {
+				if ((promotedMask & (1 << i)) != 0)
+					profile.record(i, cellCodes[i], account % 10);
+			}
+			return;
+		}
+
+		parser.parseCellCodes(result);
+		if (result.isCorrected()) {
+			int corrected = result.getAccount();
+			for (int i = 8; i >= 0; --i, corrected /= 10, rawAccount /= 10) {
+				int digit = corrected % 10;
+				if ((rawIllegibleMask & (1 << i)) != 0 || digit != rawAccount % 10)
+					profile.record(i, cellCodes[i], digit);
+			}
+		}
+	}
+
+	/**
+	 * @return number of blocks corrected from the profile's promoted corrections, without searching
+	 */
+	public long getFastPathCount() {
+		return fastPathCount.sum();
+	}
+
+	/**
+	 * @return profile learned into and consulted
+	 */
+	public ScannerDriftProfile getProfile() {
+		return profile;
+	}
+}
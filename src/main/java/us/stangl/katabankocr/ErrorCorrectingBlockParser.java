@@ -1,9 +1,5 @@
 package us.stangl.katabankocr;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-
 /**
  * Error-correcting OCR block parser that does basic error correction.
  * If an input can be unambiguously corrected with a single character
@@ -23,9 +19,60 @@ import java.util.List;
  * All-but-1 digits legible, multiple possible valid corrections     AMB
  * Multiple digits illegible                                         ILL
  * 
+ * If constructed with an OcrMetrics, time spent searching for replacement
+ * candidates is recorded there.
+ * 
+ * If constructed with an AccountSet of known accounts, e.g., a
+ * MappedAccountBitSet or OffHeapAccountHashSet, candidates are resolved
+ * against it according to a KnownAccountPolicy. By default (PREFER),
+ * ambiguous results are narrowed to those candidates which are known
+ * accounts, and automatically corrected if only one is; if no candidate is
+ * a known account, the result is left ambiguous.
+ * 
  * @author Alex Stangl
  */
 public class ErrorCorrectingBlockParser extends BaseOcrBlockParser implements OcrBlockParser<String> {
+	// multiplicative inverses mod 11 of checksum weights 1-9 (index 0 unused)
+	private static final int[] INVERSE_WEIGHTS = { 0, 1, 6, 4, 3, 9, 2, 8, 7, 5 };
+	
+	// null if not measuring
+	private final OcrMetrics metrics;
+	// null if not narrowing ambiguous results
+	private final AccountSet knownAccounts;
+	private final KnownAccountPolicy knownAccountPolicy;
+	
+	public ErrorCorrectingBlockParser() {
+		this(null, null);
+	}
+	
+	/**
+	 * @param metrics metrics to record candidate search time into, or null for none
+	 */
+	public ErrorCorrectingBlockParser(OcrMetrics metrics) {
+		this(metrics, null);
+	}
+	
+	/**
+	 * @param metrics metrics to record candidate search time into, or null for none
+	 * @param knownAccounts accounts known to exist, to narrow ambiguous results, or null for none
+	 */
+	public ErrorCorrectingBlockParser(OcrMetrics metrics, AccountSet knownAccounts) {
+		this(metrics, knownAccounts, KnownAccountPolicy.PREFER);
+	}
+	
+	/**
+	 * @param metrics metrics to record candidate search time into, or null for none
+	 * @param knownAccounts accounts known to exist, to resolve candidates against, or null for none
+	 * @param knownAccountPolicy how to resolve candidates against known accounts
+	 */
+	public ErrorCorrectingBlockParser(OcrMetrics metrics, AccountSet knownAccounts, KnownAccountPolicy knownAccountPolicy) {
+		if (knownAccountPolicy == null)
+			throw new IllegalArgumentException("Null known account policy passed to ErrorCorrectingBlockParser");
+		this.metrics = metrics;
+		this.knownAccounts = knownAccounts;
+		this.knownAccountPolicy = knownAccountPolicy;
+	}
+	
 	/**
 	 * Parse block of 4 lines of 27 characters of OCR data into string
 	 * format described in spec (e.g., digits followed by optional status, etc.)
@@ -35,69 +82,79 @@ public class ErrorCorrectingBlockParser extends BaseOcrBlockParser implements Oc
 	 */
 	@Override
 	public String parse(OcrBlock block) throws OcrParseException {
-		String rawDigitsString = parseRawDigitsString(block);
-		int nbrOfIllegibles = nbrOfIllegibleCharacters(rawDigitsString);
-		boolean checksumGood = nbrOfIllegibles == 0 && checksumGood(rawDigitsString);
-		if (checksumGood)
-			return rawDigitsString.toString();
-		if (nbrOfIllegibles > 1)
-			return rawDigitsString + ILLEGIBLE_SUFFIX;
-		List<String> replacements = getReplacementCandidates(rawDigitsString, block);
-		int nbrReplacements = replacements.size();
-		if (nbrReplacements == 1)
-			return replacements.get(0);
-		if (nbrReplacements > 1) {
-			StringBuilder builder = new StringBuilder(rawDigitsString);
-			builder.append(" AMB [");
-			for (int i = 0; i < nbrReplacements; ++i) {
-				if (i > 0)
-					builder.append(", ");
-				builder.append(replacements.get(i));
-			}
-			return builder.append(']').toString();
+		return parseToString(block);
+	}
+	
+	@Override
+	public void parseCellCodes(MutableAccountResult result) {
+		int sum = decodeRawDigits(result);
+		int nbrOfIllegibles = Integer.bitCount(result.getIllegibleMask());
+		if (nbrOfIllegibles == 0 && sum % 11 == 0) {
+			result.setStatus(AccountStatus.OK);
+			return;
+		}
+		if (nbrOfIllegibles > 1) {
+			result.setStatus(AccountStatus.ILL);
+			return;
+		}
+		if (metrics == null) {
+			getReplacementCandidates(result, sum);
+		} else {
+			long start = System.nanoTime();
+			getReplacementCandidates(result, sum);
+			metrics.recordCandidateSearch(System.nanoTime() - start);
 		}
-		String suffix = nbrOfIllegibles == 0 ? ERROR_SUFFIX : ILLEGIBLE_SUFFIX;
-		return rawDigitsString + suffix;
+		int nbrReplacements = result.getCandidateCount();
+		if (knownAccounts != null) {
+			if (knownAccountPolicy == KnownAccountPolicy.FILTER)
+				nbrReplacements = result.retainCandidates(knownAccounts);
+			else if (nbrReplacements > 1)
+				nbrReplacements = narrowToKnownAccounts(result);
+		}
+		if (nbrReplacements == 1)
+			result.setCorrected(result.getCandidate(0));
+		else if (nbrReplacements > 1)
+			result.setStatus(AccountStatus.AMB);
+		else
+			result.setStatus(nbrOfIllegibles == 0 ? AccountStatus.ERR : AccountStatus.ILL);
 	}
 	
-	private int nbrOfIllegibleCharacters(String rawDigitsString) {
-		int retval = 0;
-		for (char c : rawDigitsString.toCharArray()) {
-			if (c == '?')
-				++retval;
+	// drop candidates which are not known accounts, unless none are, returning number of candidates remaining
+	private int narrowToKnownAccounts(MutableAccountResult result) {
+		for (int i = 0; i < result.getCandidateCount(); ++i) {
+			if (knownAccounts.contains(result.getCandidate(i)))
+				return result.retainCandidates(knownAccounts);
 		}
-		return retval;
+		return result.getCandidateCount();
 	}
 	
-	private List<String> getReplacementCandidates(String rawDigitsString, OcrBlock block) {
-		List<String> retval = new ArrayList<String>();
-
-		int nbrOfIllegibles = nbrOfIllegibleCharacters(rawDigitsString);
-		if (nbrOfIllegibles == 0) {
+	// add candidates to result, which has at most 1 illegible digit and checksum weighted sum as specified
+	private void getReplacementCandidates(MutableAccountResult result, int sum) {
+		int illegibleMask = result.getIllegibleMask();
+		if (illegibleMask == 0) {
 			// try alternates in each character position
 			for (int i = 0; i < 9; ++i) {
-				addCandidatesAtIndex(rawDigitsString, block, i, retval);
+				addCandidateAtIndex(result, i, sum);
 			}
-		} else if (nbrOfIllegibles == 1) {
-			addCandidatesAtIndex(rawDigitsString, block, rawDigitsString.indexOf('?'), retval);
+		} else if (Integer.bitCount(illegibleMask) == 1) {
+			addCandidateAtIndex(result, Integer.numberOfTrailingZeros(illegibleMask), sum);
 		} else {
-			throw new RuntimeException("Programming error - getReplacementCandidates called for " + rawDigitsString + " with more than 1 illegible character.");
+			throw new RuntimeException("Programming error - getReplacementCandidates called for " + result + " with more than 1 illegible character.");
 		}
-		return retval;
 	}
 	
-	private void addCandidatesAtIndex(String rawDigitsString, OcrBlock block, int index, Collection<String> candidates) {
-		StringBuilder builder = new StringBuilder(rawDigitsString);
-		for (int digit = 0; digit < 10; ++digit) {
-			if (differencesFromDigit(block.paddedLines, index * 3, digit) == 1) {
-				char saveChar = builder.charAt(index);
-				builder.setCharAt(index, (char)('0' + digit));
-				String candidate = builder.toString();
-				if (checksumGood(candidate))
-					candidates.add(candidate);
-				builder.setCharAt(index, saveChar);
-			}
-		}
+	/**
+	 * Add candidate replacing digit at specified index, if there is one.
+	 * Replacing digit d by r at weight w changes the weighted sum by (r - d) * w, so the
+	 * only replacement passing checksum is r = d - sum * w^-1 (mod 11). No two digits
+	 * at one index can both pass, so the candidate is found without trying each neighbour.
+	 */
+	private void addCandidateAtIndex(MutableAccountResult result, int index, int sum) {
+		int placeValue = AccountResult.PLACE_VALUES[index];
+		// illegible digit is held as 0 in account, which is also how it was counted in sum
+		int digit = result.getAccount() / placeValue % 10;
+		int replacement = Math.floorMod(digit - sum * INVERSE_WEIGHTS[9 - index], 11);
+		if (replacement <= 9 && (GlyphTable.neighbours(result.cellCodes[index]) & (1 << replacement)) != 0)
+			result.addCandidate(result.getAccount() + (replacement - digit) * placeValue);
 	}
 }
-
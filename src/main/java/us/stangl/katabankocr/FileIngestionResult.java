@@ -0,0 +1,65 @@
+package us.stangl.katabankocr;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of parsing one file in an OcrIngestionService batch: either the
+ * parse results of all its blocks, or the exception which stopped its parse.
+ *
+ * @param <T> type of parse result
+ * @author Alex Stangl
+ */
+public final class FileIngestionResult<T> {
+	private final File file;
+	private final List<T> results;
+	private final OcrParseException failure;
+
+	private FileIngestionResult(File file, List<T> results, OcrParseException failure) {
+		this.file = file;
+		this.results = results;
+		this.failure = failure;
+	}
+
+	static <T> FileIngestionResult<T> success(File file, List<T> results) {
+		return new FileIngestionResult<T>(file, Collections.unmodifiableList(results), null);
+	}
+
+	static <T> FileIngestionResult<T> failure(File file, OcrParseException failure) {
+		return new FileIngestionResult<T>(file, null, failure);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return whether file was parsed successfully
+	 */
+	public boolean isSuccess() {
+		return failure == null;
+	}
+
+	/**
+	 * @return results of file's blocks, in file order
+	 * @throws IllegalStateException if parse failed
+	 */
+	public List<T> getResults() {
+		if (failure != null)
+			throw new IllegalStateException("Parse of " + file + " failed", failure);
+		return results;
+	}
+
+	/**
+	 * @return exception which stopped parse, or null if successful
+	 */
+	public OcrParseException getFailure() {
+		return failure;
+	}
+
+	@Override
+	public String toString() {
+		return failure == null ? file + ": " + results.size() + " blocks" : file + ": " + failure;
+	}
+}
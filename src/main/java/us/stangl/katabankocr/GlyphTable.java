@@ -0,0 +1,151 @@
+package us.stangl.katabankocr;
+
+/**
+ * Precomputed classification of 3x3 OCR glyph cells.
+ *
+ * Each cell is packed into a 9-bit segment code, where bit (3 * row + column)
+ * is set when the segment character expected at that position is present:
+ *     bit:  0 1 2      chars:    _
+ *           3 4 5              | _ |
+ *           6 7 8              | _ |
+ * The top corners never hold a segment in any digit, so any non-blank character
+ * there simply sets its bit. A character elsewhere which is neither blank nor
+ * the expected segment character (e.g., a '|' where '_' belongs) differs from
+ * every digit, so it is recorded in the upper "garbage" bits 9-17 instead.
+ *
+ * Clean codes (no garbage bits) are classified by a single lookup into a
+ * 512-entry table holding the digit matching the code exactly plus the set of
+ * digits exactly one segment away.
+ *
+ * @author Alex Stangl
+ */
+final class GlyphTable {
+	/** Number of segment positions in a cell. */
+	static final int CELL_BITS = 9;
+
+	/** Number of distinct clean (garbage-free) cell codes. */
+	static final int CLEAN_CODES = 1 << CELL_BITS;
+
+	/** Mask selecting the segment bits of a cell code. */
+	static final int SEGMENT_MASK = CLEAN_CODES - 1;
+
+	// segment character expected at each position; 0 for top corners, which hold no segment in any digit
+	private static final char[] SEGMENT_CHARS = {
+		0,   '_', 0,
+		'|', '_', '|',
+		'|', '_', '|'
+	};
+
+	private static final int NO_DIGIT = 0xF;
+
+	// cell codes of digits 0-9
+	private static final int[] DIGIT_CODES = new int[10];
+
+	// low 4 bits: digit matching code exactly, or NO_DIGIT; bits 4-13: set of digits at distance 1
+	private static final int[] TABLE = new int[CLEAN_CODES];
+
+	static {
+		for (int digit = 0; digit <= 9; ++digit) {
+			int code = cellCode(BaseOcrBlockParser.DIGITS_LINES, 3 * digit);
+			if (code >= CLEAN_CODES)
+				throw new IllegalStateException("Reference glyph for digit " + digit + " has unexpected characters");
+			DIGIT_CODES[digit] = code;
+		}
+		for (int code = 0; code < CLEAN_CODES; ++code) {
+			int exact = NO_DIGIT;
+			int neighbours = 0;
+			for (int digit = 0; digit <= 9; ++digit) {
+				int differences = Integer.bitCount(code ^ DIGIT_CODES[digit]);
+				if (differences == 0)
+					exact = digit;
+				else if (differences == 1)
+					neighbours |= 1 << digit;
+			}
+			TABLE[code] = exact | (neighbours << 4);
+		}
+	}
+
+	private GlyphTable() {
+	}
+
+	/**
+	 * @param lines at least 3 lines, each long enough to hold the cell
+	 * @param startIndex index of leftmost column of cell
+	 * @return cell code of the 3x3 cell starting at specified index
+	 */
+	static int cellCode(String[] lines, int startIndex) {
+		int code = 0;
+		for (int row = 0; row < 3; ++row) {
+			String line = lines[row];
+			for (int column = 0; column < 3; ++column) {
+				code |= positionBits(line.charAt(startIndex + column), 3 * row + column);
+			}
+		}
+		return code;
+	}
+
+	/**
+	 * @param c character found at a cell position
+	 * @param position segment position, 0-8
+	 * @return bits contributed to cell code by specified character at specified position
+	 */
+	static int positionBits(int c, int position) {
+		if (c == ' ')
+			return 0;
+		char segment = SEGMENT_CHARS[position];
+		if (segment == 0 || c == segment)
+			return 1 << position;
+		return 1 << (position + CELL_BITS);
+	}
+
+	/**
+	 * @param code cell code
+	 * @return digit exactly matching cell code, or -1 if none match
+	 */
+	static int digit(int code) {
+		if (code >= CLEAN_CODES)
+			return -1;
+		int digit = TABLE[code] & NO_DIGIT;
+		return digit == NO_DIGIT ? -1 : digit;
+	}
+
+	/**
+	 * @param code cell code
+	 * @return bit set of digits exactly one segment different from cell code (bit n set for digit n)
+	 */
+	static int neighbours(int code) {
+		if (code < CLEAN_CODES)
+			return TABLE[code] >>> 4;
+
+		// a single garbage character is the one difference, so the remaining segments must match exactly,
+		// with the garbage position either blank or a segment in the candidate digit
+		int garbage = code >>> CELL_BITS;
+		if (Integer.bitCount(garbage) != 1)
+			return 0;
+		int segments = code & SEGMENT_MASK;
+		return digitBit(segments) | digitBit(segments | garbage);
+	}
+
+	/**
+	 * @param code cell code
+	 * @param digit digit to compare against
+	 * @return number of positions at which cell differs from specified digit
+	 */
+	static int distance(int code, int digit) {
+		int garbage = code >>> CELL_BITS;
+		return Integer.bitCount(garbage) + Integer.bitCount((code ^ DIGIT_CODES[digit]) & SEGMENT_MASK & ~garbage);
+	}
+
+	/**
+	 * @param digit digit 0-9
+	 * @return cell code of reference glyph of specified digit
+	 */
+	static int digitCode(int digit) {
+		return DIGIT_CODES[digit];
+	}
+
+	private static int digitBit(int code) {
+		int digit = TABLE[code] & NO_DIGIT;
+		return digit == NO_DIGIT ? 0 : 1 << digit;
+	}
+}
@@ -0,0 +1,22 @@
+package us.stangl.katabankocr;
+
+/**
+ * How ErrorCorrectingBlockParser uses a set of known accounts to resolve
+ * correction candidates.
+ *
+ * @author Alex Stangl
+ */
+public enum KnownAccountPolicy {
+	/**
+	 * Narrow ambiguous candidates to those which are known accounts, unless
+	 * none are, in which case all are kept. Suits incomplete sets of accounts.
+	 */
+	PREFER,
+
+	/**
+	 * Only ever correct to known accounts: candidates which are not known are
+	 * dropped, even a single one, so a block with no known candidate is left
+	 * ERR or ILL. Suits complete sets of accounts.
+	 */
+	FILTER
+}
@@ -0,0 +1,98 @@
+package us.stangl.katabankocr;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of latencies in nanoseconds, with log-linear buckets
+ * in the style of HdrHistogram: each power of 2 is split into 8 equal
+ * sub-buckets, so any recorded value is reported within 12.5% of its true
+ * value, over the full range of long, in a fixed 488 buckets.
+ *
+ * Recording is a single LongAdder increment, so it does not allocate once
+ * the adder is warmed up, and concurrent recorders rarely contend.
+ *
+ * @author Alex Stangl
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// values below this have a bucket each
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+	/** Number of buckets */
+	static final int BUCKETS = bucketIndex(Long.MAX_VALUE) + 1;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; ++i) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Record one latency. Negative values, which a non-monotonic clock could produce, are recorded as 0.
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		counts[bucketIndex(Math.max(0, nanos))].increment();
+	}
+
+	/**
+	 * @return copy of current bucket counts, indexed as by bucketIndex
+	 */
+	long[] bucketCounts() {
+		long[] retval = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++i) {
+			retval[i] = counts[i].sum();
+		}
+		return retval;
+	}
+
+	/**
+	 * @return index of bucket holding non-negative value
+	 */
+	static int bucketIndex(long value) {
+		if (value < LINEAR_LIMIT)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		// value >>> shift is in range SUB_BUCKETS to 2 * SUB_BUCKETS - 1
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return highest value held by bucket
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < LINEAR_LIMIT)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		// one below lowest value of next bucket, which wraps to Long.MAX_VALUE for the last bucket
+		return ((long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift) - 1;
+	}
+
+	/**
+	 * @param bucketCounts counts as returned by bucketCounts
+	 * @param percentile percentile, in range 0-100
+	 * @return upper bound of bucket holding value at percentile, or 0 if no values recorded
+	 */
+	static long valueAtPercentile(long[] bucketCounts, double percentile) {
+		if (! (percentile >= 0 && percentile <= 100))
+			throw new IllegalArgumentException("Percentile " + percentile + " not in range 0-100");
+		long total = 0;
+		for (long count : bucketCounts) {
+			total += count;
+		}
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < bucketCounts.length; ++i) {
+			seen += bucketCounts[i];
+			if (seen >= rank)
+				return bucketUpperBound(i);
+		}
+		throw new IllegalStateException("Programming error - rank " + rank + " exceeds total " + total);
+	}
+}
@@ -0,0 +1,25 @@
+package us.stangl.katabankocr;
+
+/**
+ * Receiver of reports of malformed input skipped by lenient file parsing.
+ *
+ * Lenient parsing frames a block only where 3 lines are followed by a blank
+ * 4th line. Where lines do not frame that way, e.g., because a line was
+ * dropped, duplicated, or corrupted, lines are skipped one at a time until
+ * framing resumes at the next valid block, and the skipped range is reported
+ * as a single span. A non-blank partial block at end of input is also reported.
+ * Since a block of only 1s and 4s has a blank top line, which looks just like
+ * a separator, a misaligned block can occasionally pass for a valid one.
+ *
+ * @author Alex Stangl
+ */
+public interface MalformedInputListener {
+	/**
+	 * Report range of input skipped as malformed.
+	 * @param offset offset within input of start of range
+	 * @param length length of range in bytes, including line terminators
+	 * @param reason description of problem
+	 * @throws OcrParseException to stop parsing
+	 */
+	void malformedInput(long offset, long length, String reason) throws OcrParseException;
+}
@@ -0,0 +1,54 @@
+package us.stangl.katabankocr;
+
+/**
+ * Accumulator of consecutive lines skipped by lenient framing, reporting
+ * each run of them to a MalformedInputListener as a single range once
+ * framing resumes.
+ *
+ * @author Alex Stangl
+ */
+final class MalformedRangeTracker {
+	static final String MISALIGNED = "Lines not forming block with blank fourth line";
+	static final String PARTIAL_BLOCK = "Partial block at end of input";
+
+	private final MalformedInputListener listener;
+	// offset of start of current run of skipped lines, or -1 if none
+	private long runStart = -1;
+	private long runEnd;
+
+	MalformedRangeTracker(MalformedInputListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Add line to current run of skipped lines, starting a run if none.
+	 * @param start offset of start of line
+	 * @param end offset just past line terminator
+	 */
+	void skipLine(long start, long end) {
+		if (runStart == -1)
+			runStart = start;
+		runEnd = end;
+	}
+
+	/**
+	 * Report current run of skipped lines, if any, as framing has resumed.
+	 */
+	void resynchronized() throws OcrParseException {
+		if (runStart != -1) {
+			long start = runStart;
+			runStart = -1;
+			listener.malformedInput(start, runEnd - start, MISALIGNED);
+		}
+	}
+
+	/**
+	 * Report current run of skipped lines, if any, then non-blank partial block ending input.
+	 * @param start offset of start of partial block
+	 * @param end offset of end of input
+	 */
+	void partialBlock(long start, long end) throws OcrParseException {
+		resynchronized();
+		listener.malformedInput(start, end - start, PARTIAL_BLOCK);
+	}
+}
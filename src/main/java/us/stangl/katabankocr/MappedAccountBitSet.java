@@ -0,0 +1,130 @@
+package us.stangl.katabankocr;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.PrimitiveIterator;
+
+/**
+ * Set of account numbers held as a memory-mapped bitset, with one bit for
+ * each of the 10^9 possible 9-digit account numbers, so a lookup is a single
+ * bit probe. The index file is 125,000,000 bytes whatever the number of
+ * accounts, and is mapped rather than read, so opening it is immediate;
+ * pages are loaded by the OS as they are first probed, and shared between
+ * processes mapping the same file.
+ *
+ * Bit (account % 8) of byte (account / 8) is set if the account is in the set.
+ *
+ * @author Alex Stangl
+ */
+public class MappedAccountBitSet implements AccountSet, Closeable {
+	/** Number of possible account numbers */
+	public static final int ACCOUNT_COUNT = 1000000000;
+
+	/** Size of index file in bytes */
+	public static final int INDEX_SIZE = ACCOUNT_COUNT / 8;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer bits;
+
+	private MappedAccountBitSet(RandomAccessFile file, MappedByteBuffer bits) {
+		this.file = file;
+		this.bits = bits;
+	}
+
+	/**
+	 * Map existing index file.
+	 * @param indexFile index file written by create
+	 * @return set backed by index file
+	 * @throws OcrParseException if file cannot be mapped, or is not of expected size
+	 */
+	public static MappedAccountBitSet open(File indexFile) throws OcrParseException {
+		return map(indexFile, false);
+	}
+
+	/**
+	 * Write new index file holding specified accounts, replacing any existing file.
+	 * @param indexFile index file to write
+	 * @param accounts accounts to add, each in range 0-999999999
+	 * @return set backed by new index file
+	 * @throws OcrParseException if file cannot be written
+	 */
+	public static MappedAccountBitSet create(File indexFile, PrimitiveIterator.OfInt accounts) throws OcrParseException {
+		if (indexFile.exists() && ! indexFile.delete())
+			throw new OcrParseException("Unable to replace " + indexFile);
+		MappedAccountBitSet retval = map(indexFile, true);
+		boolean normalTermination = false;
+		try {
+			while (accounts.hasNext()) {
+				int account = accounts.nextInt();
+				if (account < 0 || account >= ACCOUNT_COUNT)
+					throw new OcrParseException("Account " + account + " not in range 0-" + (ACCOUNT_COUNT - 1));
+				int index = account >>> 3;
+				retval.bits.put(index, (byte) (retval.bits.get(index) | (1 << (account & 7))));
+			}
+			retval.bits.force();
+			normalTermination = true;
+			return retval;
+		} finally {
+			if (! normalTermination)
+				retval.closeQuietly(indexFile);
+		}
+	}
+
+	@Override
+	public boolean contains(int account) {
+		if (account < 0 || account >= ACCOUNT_COUNT)
+			return false;
+		return (bits.get(account >>> 3) & (1 << (account & 7))) != 0;
+	}
+
+	/**
+	 * Close index file. The mapping remains valid until garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private static MappedAccountBitSet map(File indexFile, boolean writable) throws OcrParseException {
+		RandomAccessFile file = null;
+		boolean normalTermination = false;
+		try {
+			file = new RandomAccessFile(indexFile, writable ? "rw" : "r");
+			FileChannel channel = file.getChannel();
+			if (! writable && channel.size() != INDEX_SIZE)
+				throw new OcrParseException(indexFile + " of size " + channel.size() + " not an account index of size " + INDEX_SIZE);
+			// mapping writable file extends it to full size, sparsely where supported
+			MappedByteBuffer bits = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, INDEX_SIZE);
+			MappedAccountBitSet retval = new MappedAccountBitSet(file, bits);
+			normalTermination = true;
+			return retval;
+		} catch (FileNotFoundException e) {
+			throw new OcrParseException("FileNotFoundException unexpectedly caught trying to open " + indexFile, e);
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to map " + indexFile, e);
+		} finally {
+			if (! normalTermination && file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
+					System.err.println("Suppressing IOException caught during abnormal termination of mapping " + indexFile + ": " + e);
+				}
+			}
+		}
+	}
+
+	private void closeQuietly(File indexFile) {
+		try {
+			file.close();
+		} catch (IOException e) {
+			// Not throwing here because we are terminating abnormally and don't want to lose the primary exception
+			System.err.println("Suppressing IOException caught during abnormal termination of writing " + indexFile + ": " + e);
+		}
+	}
+}
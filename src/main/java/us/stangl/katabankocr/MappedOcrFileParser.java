@@ -0,0 +1,149 @@
+package us.stangl.katabankocr;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Object that applies an account block parser across an entire input file,
+ * memory-mapping the file a window at a time and decoding glyphs directly
+ * from the mapped ASCII bytes. No strings or OcrBlock objects are created
+ * per block, and a single MutableAccountResult is reused for every block,
+ * so files of any size can be parsed in constant memory.
+ *
+ * As with OcrFileParser, framing is strict by default, or lenient if
+ * constructed with a MalformedInputListener.
+ *
+ * @author Alex Stangl
+ */
+public class MappedOcrFileParser {
+	/** Default size of each mapped window of the input file */
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final int windowSize;
+	// null if framing strictly
+	private final MalformedInputListener listener;
+
+	public MappedOcrFileParser() {
+		this(DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param windowSize maximum number of bytes of input file mapped at once; must exceed largest block
+	 */
+	public MappedOcrFileParser(int windowSize) {
+		this(windowSize, null);
+	}
+
+	/**
+	 * @param windowSize maximum number of bytes of input file mapped at once; must exceed largest block
+	 * @param listener receiver of malformed input skipped by lenient framing, or null to frame strictly
+	 */
+	public MappedOcrFileParser(int windowSize, MalformedInputListener listener) {
+		if (windowSize <= 0)
+			throw new IllegalArgumentException("Window size " + windowSize + " not positive");
+		this.windowSize = windowSize;
+		this.listener = listener;
+	}
+
+	/**
+	 * Parse OCR data from input file, collecting results into a list.
+	 * @param inputFile file to parse
+	 * @param parser parser to apply to each block
+	 * @return parsed data
+	 * @throws OcrParseException if error occurs during parsing
+	 */
+	public List<AccountResult> parseFile(File inputFile, AccountBlockParser parser) throws OcrParseException {
+		final List<AccountResult> responseList = new ArrayList<AccountResult>();
+		parseFile(inputFile, parser, new OcrResultSink<MutableAccountResult>() {
+			@Override
+			public void accept(MutableAccountResult result) {
+				responseList.add(result.toAccountResult());
+			}
+		});
+		return responseList;
+	}
+
+	/**
+	 * Parse OCR data from input file, passing each result to sink as soon as its block is parsed.
+	 * The same result object is passed for every block, with its source offset set.
+	 * @param inputFile file to parse
+	 * @param parser parser to apply to each block
+	 * @param sink receiver of results
+	 * @throws OcrParseException if error occurs during parsing, or a block's 4th line is not blank when framing strictly
+	 */
+	public void parseFile(File inputFile, AccountBlockParser parser, OcrResultSink<? super MutableAccountResult> sink)
+			throws OcrParseException
+	{
+		RandomAccessFile file = null;
+		boolean normalTermination = false;
+		try {
+			file = new RandomAccessFile(inputFile, "r");
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			ByteBlockFramer framer = new ByteBlockFramer();
+			MalformedRangeTracker malformedRanges = listener == null ? null : new MalformedRangeTracker(listener);
+			MutableAccountResult result = new MutableAccountResult();
+			long windowStart = 0;
+			while (windowStart < size) {
+				int windowLength = (int) Math.min(windowSize, size - windowStart);
+				boolean endOfInput = windowStart + windowLength == size;
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+				int position = 0;
+				for (int next; (next = framer.frame(buffer, position, windowLength, endOfInput)) != -1; position = next) {
+					long blockOffset = windowStart + position;
+					if (! framer.isFourthLineBlank(buffer)) {
+						if (malformedRanges == null)
+							throw new OcrParseException("Fourth line of block at offset " + blockOffset + " of " + inputFile + " not blank");
+						// resynchronize by skipping first line, then framing again from the second
+						malformedRanges.skipLine(blockOffset, windowStart + framer.lineStarts[1]);
+						next = framer.lineStarts[1];
+						continue;
+					}
+					if (malformedRanges != null)
+						malformedRanges.resynchronized();
+					result.clear();
+					framer.readCellCodes(buffer, result.cellCodes);
+					result.setSourceOffset(blockOffset);
+					parser.parseCellCodes(result);
+					sink.accept(result);
+				}
+				if (endOfInput) {
+					if (malformedRanges != null) {
+						if (ByteBlockFramer.isBlank(buffer, position, windowLength))
+							malformedRanges.resynchronized();
+						else
+							malformedRanges.partialBlock(windowStart + position, size);
+					}
+					break;
+				}
+				if (position == 0)
+					throw new OcrParseException("Block at offset " + windowStart + " of " + inputFile + " larger than window size " + windowSize);
+				// remap starting at first incomplete block
+				windowStart += position;
+			}
+			normalTermination = true;
+		} catch (FileNotFoundException e) {
+			throw new OcrParseException("FileNotFoundException unexpectedly caught trying to read " + inputFile, e);
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to read " + inputFile, e);
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					if (normalTermination) {
+						throw new OcrParseException("IOException unexpectedly caught trying to close " + inputFile, e);
+					}
+					// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
+					System.err.println("Suppressing IOException caught during abnormal termination of reading " + inputFile + ": " + e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package us.stangl.katabankocr;
+
+/**
+ * Account block parser which records the latency and outcome of each parse
+ * done by another account block parser in an OcrMetrics. Unlike
+ * MeteredOcrBlockParser, it can be used on the allocation-free paths, e.g.,
+ * OcrFileParser.parseAccounts and MappedOcrFileParser.
+ *
+ * @author Alex Stangl
+ */
+public class MeteredAccountBlockParser implements AccountBlockParser {
+	private final AccountBlockParser parser;
+	private final OcrMetrics metrics;
+
+	/**
+	 * @param parser parser to measure
+	 * @param metrics metrics to record into
+	 */
+	public MeteredAccountBlockParser(AccountBlockParser parser, OcrMetrics metrics) {
+		if (parser == null)
+			throw new IllegalArgumentException("Null parser passed to MeteredAccountBlockParser");
+		if (metrics == null)
+			throw new IllegalArgumentException("Null metrics passed to MeteredAccountBlockParser");
+		this.parser = parser;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void parse(OcrBlock block, MutableAccountResult result) throws OcrParseException {
+		long start = System.nanoTime();
+		boolean normalTermination = false;
+		try {
+			parser.parse(block, result);
+			metrics.recordBlock(System.nanoTime() - start, result.getStatus(), result.isCorrected());
+			normalTermination = true;
+		} finally {
+			if (! normalTermination)
+				metrics.recordFailure(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public void parseCellCodes(MutableAccountResult result) throws OcrParseException {
+		long start = System.nanoTime();
+		boolean normalTermination = false;
+		try {
+			parser.parseCellCodes(result);
+			metrics.recordBlock(System.nanoTime() - start, result.getStatus(), result.isCorrected());
+			normalTermination = true;
+		} finally {
+			if (! normalTermination)
+				metrics.recordFailure(System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package us.stangl.katabankocr;
+
+/**
+ * Block parser which records the latency and outcome of each parse done by
+ * another parser in an OcrMetrics.
+ *
+ * Status is taken from AccountResult results, or from the suffix of results
+ * in spec string format, e.g., "490067715 AMB [...]". Whether a string result
+ * was automatically corrected cannot be told, so corrections are only counted
+ * for AccountResult results.
+ *
+ * @param <T> type of parse result
+ * @author Alex Stangl
+ */
+public class MeteredOcrBlockParser<T> implements OcrBlockParser<T> {
+	// index of status suffix within spec string, after 9 digits and a space
+	private static final int SUFFIX_INDEX = 10;
+
+	private final OcrBlockParser<T> parser;
+	private final OcrMetrics metrics;
+
+	/**
+	 * @param parser parser to measure
+	 * @param metrics metrics to record into
+	 */
+	public MeteredOcrBlockParser(OcrBlockParser<T> parser, OcrMetrics metrics) {
+		if (parser == null)
+			throw new IllegalArgumentException("Null parser passed to MeteredOcrBlockParser");
+		if (metrics == null)
+			throw new IllegalArgumentException("Null metrics passed to MeteredOcrBlockParser");
+		this.parser = parser;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public T parse(OcrBlock block) throws OcrParseException {
+		long start = System.nanoTime();
+		boolean normalTermination = false;
+		try {
+			T retval = parser.parse(block);
+			long nanos = System.nanoTime() - start;
+			if (retval instanceof AccountResult) {
+				AccountResult result = (AccountResult) retval;
+				metrics.recordBlock(nanos, result.getStatus(), result.isCorrected());
+			} else if (retval instanceof String) {
+				metrics.recordBlock(nanos, statusOf((String) retval), false);
+			} else {
+				metrics.recordBlock(nanos, null, false);
+			}
+			normalTermination = true;
+			return retval;
+		} finally {
+			if (! normalTermination)
+				metrics.recordFailure(System.nanoTime() - start);
+		}
+	}
+
+	// status of result in spec string format; UNCHECKED and OK cannot be told apart, so report as OK
+	private static AccountStatus statusOf(String result) {
+		if (result.length() < SUFFIX_INDEX + 3)
+			return AccountStatus.OK;
+		if (result.startsWith("ILL", SUFFIX_INDEX))
+			return AccountStatus.ILL;
+		if (result.startsWith("ERR", SUFFIX_INDEX))
+			return AccountStatus.ERR;
+		if (result.startsWith("AMB", SUFFIX_INDEX))
+			return AccountStatus.AMB;
+		return AccountStatus.OK;
+	}
+}
@@ -0,0 +1,157 @@
+package us.stangl.katabankocr;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Error-correcting OCR block parser which, unlike ErrorCorrectingBlockParser,
+ * can correct more than a single segment error, possibly spread across several
+ * digits, and more than one illegible digit.
+ *
+ * It searches for valid account numbers at increasing total segment edit
+ * distance from the scanned glyphs, from 1 up to a configurable maximum.
+ * Candidates at the nearest distance having any are reported the same way as
+ * ErrorCorrectingBlockParser reports single-segment candidates: a single one is
+ * automatically corrected, several give status AMB, and none give ERR or ILL.
+ * With a maximum distance of 1, results are the same as ErrorCorrectingBlockParser,
+ * except that AMB candidates are listed in ascending order.
+ *
+ * The search is a depth-first branch and bound over the 9 digit positions:
+ *  - each cell needs at least as many edits as its distance to the nearest
+ *    digit, e.g., one for an illegible digit, so branches which cannot cover
+ *    the remaining cells' minimum distances within the distance are cut
+ *  - the last digit is not searched, but computed from the mod 11 checksum,
+ *    and accepted only if it is at exactly the remaining distance
+ * Each block is also limited to a fixed number of search steps, so worst-case
+ * latency is bounded. A block exhausting its budget is left uncorrected.
+ *
+ * Beyond a single edit there may be more candidates than a result can hold.
+ * The search then stops, marking the result's candidates truncated, and its
+ * status is AMB. parse(OcrBlock) instead parses again with room for them all,
+ * since its string format cannot show that candidates are missing.
+ *
+ * @author Alex Stangl
+ */
+public class MultiErrorCorrectingBlockParser extends BaseOcrBlockParser implements OcrBlockParser<String> {
+	/** Default maximum total number of segment edits */
+	public static final int DEFAULT_MAX_EDITS = 2;
+
+	/** Default maximum number of search steps per block */
+	public static final int DEFAULT_WORK_BUDGET = 100000;
+
+	private final int maxEdits;
+	private final int workBudget;
+	private final LongAdder budgetExhaustedCount = new LongAdder();
+
+	public MultiErrorCorrectingBlockParser() {
+		this(DEFAULT_MAX_EDITS, DEFAULT_WORK_BUDGET);
+	}
+
+	/**
+	 * @param maxEdits maximum total number of segments added or removed, across all digits
+	 * @param workBudget maximum number of search steps per block
+	 */
+	public MultiErrorCorrectingBlockParser(int maxEdits, int workBudget) {
+		if (maxEdits < 1 || maxEdits > 81)
+			throw new IllegalArgumentException("Maximum edits " + maxEdits + " not in range 1-81");
+		if (workBudget <= 0)
+			throw new IllegalArgumentException("Work budget " + workBudget + " not positive");
+		this.maxEdits = maxEdits;
+		this.workBudget = workBudget;
+	}
+
+	@Override
+	public String parse(OcrBlock block) throws OcrParseException {
+		MutableAccountResult result = new MutableAccountResult();
+		parse(block, result);
+		// each candidate takes a search step, so the budget bounds the room needed
+		for (int capacity = MutableAccountResult.DEFAULT_CANDIDATE_CAPACITY; result.isCandidatesTruncated(); ) {
+			capacity = (int) Math.min(2L * capacity, workBudget);
+			result = new MutableAccountResult(capacity);
+			parse(block, result);
+		}
+		return result.toString();
+	}
+
+	@Override
+	public void parseCellCodes(MutableAccountResult result) {
+		int sum = decodeRawDigits(result);
+		int nbrOfIllegibles = Integer.bitCount(result.getIllegibleMask());
+		if (nbrOfIllegibles == 0 && sum % 11 == 0) {
+			result.setStatus(AccountStatus.OK);
+			return;
+		}
+		int[] minimumRemaining = result.minimumRemaining;
+		minimumRemaining[9] = 0;
+		for (int position = 8; position >= 0; --position) {
+			int cellMinimum = GlyphTable.CELL_BITS;
+			for (int digit = 0; digit <= 9; ++digit) {
+				cellMinimum = Math.min(cellMinimum, GlyphTable.distance(result.cellCodes[position], digit));
+			}
+			minimumRemaining[position] = minimumRemaining[position + 1] + cellMinimum;
+		}
+		int budget = workBudget;
+		for (int edits = Math.max(1, minimumRemaining[0]); edits <= maxEdits; ++edits) {
+			budget = search(result, 0, edits, 0, 0, budget);
+			if (budget < 0) {
+				// incomplete search proves nothing, so leave uncorrected
+				budgetExhaustedCount.increment();
+				result.clearCandidates();
+				break;
+			}
+			if (result.getCandidateCount() > 0 || result.isCandidatesTruncated())
+				break;
+		}
+		int nbrReplacements = result.getCandidateCount();
+		if (nbrReplacements == 1 && ! result.isCandidatesTruncated())
+			result.setCorrected(result.getCandidate(0));
+		else if (nbrReplacements > 0 || result.isCandidatesTruncated())
+			result.setStatus(AccountStatus.AMB);
+		else
+			result.setStatus(nbrOfIllegibles == 0 ? AccountStatus.ERR : AccountStatus.ILL);
+	}
+
+	/**
+	 * @return number of blocks left uncorrected because their search exceeded the work budget
+	 */
+	public long getBudgetExhaustedCount() {
+		return budgetExhaustedCount.sum();
+	}
+
+	/**
+	 * Add to result all valid account numbers whose digits from position onwards are at
+	 * exactly the specified total distance from the scanned cells at those positions,
+	 * stopping once result has no room for more.
+	 * @param result result holding cell codes
+	 * @param position position of next digit to choose
+	 * @param distance total distance remaining to be spent
+	 * @param partialSum checksum weighted sum of digits chosen so far
+	 * @param partialAccount digits chosen so far
+	 * @param budget remaining work budget
+	 * @return remaining work budget, negative if exhausted
+	 */
+	private int search(MutableAccountResult result, int position, int distance, int partialSum, int partialAccount, int budget) {
+		if (--budget < 0)
+			return budget;
+		int[] cellCodes = result.cellCodes;
+		if (position == 8) {
+			// weight of d1 is 1, so checksum leaves only one possible last digit
+			int digit = Math.floorMod(-partialSum, 11);
+			if (digit <= 9 && GlyphTable.distance(cellCodes[8], digit) == distance)
+				result.addCandidate(partialAccount * 10 + digit);
+			return budget;
+		}
+		// cells after this position need at least their minimum distances
+		int minimumRemaining = result.minimumRemaining[position + 1];
+		int weight = 9 - position;
+		for (int digit = 0; digit <= 9; ++digit) {
+			int cellDistance = GlyphTable.distance(cellCodes[position], digit);
+			if (cellDistance + minimumRemaining <= distance) {
+				budget = search(result, position + 1, distance - cellDistance, partialSum + digit * weight,
+						partialAccount * 10 + digit, budget);
+				if (budget < 0 || result.isCandidatesTruncated())
+					return budget;
+			}
+		}
+		return budget;
+	}
+}
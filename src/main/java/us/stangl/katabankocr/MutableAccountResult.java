@@ -0,0 +1,292 @@
+package us.stangl.katabankocr;
+
+import java.util.Arrays;
+
+/**
+ * Mutable, reusable result of parsing an OCR block. A caller parsing many
+ * blocks can pass the same instance to each parse to avoid allocating a
+ * result per block. Not thread-safe; use one instance per thread.
+ *
+ * Candidates are held in a fixed-capacity array. A single-character correction
+ * yields at most one candidate per digit position (any two replacement digits
+ * at the same position differ in weighted checksum mod 11), so the default
+ * capacity always suffices for ErrorCorrectingBlockParser.
+ *
+ * @see AccountResult for description of encoding
+ * @author Alex Stangl
+ */
+public final class MutableAccountResult {
+	/** Default maximum number of candidates held */
+	public static final int DEFAULT_CANDIDATE_CAPACITY = 16;
+
+	// cell codes of the 9 glyph cells of the block being parsed, scratch space for parsers
+	final int[] cellCodes = new int[9];
+	// minimum cost of the cells from each position onwards, scratch space for searching parsers
+	final int[] minimumRemaining = new int[10];
+	// cost of each digit at each position, and digits of each position cheapest first, at index 10 * position + digit
+	// or rank, scratch space for searching parsers
+	final int[] digitCosts = new int[90];
+	final int[] digitOrder = new int[90];
+
+	private final int[] candidates;
+	private final int[] candidateCosts;
+	private int candidateCount;
+	private boolean candidatesTruncated;
+	private int account;
+	private int illegibleMask;
+	private AccountStatus status = AccountStatus.UNCHECKED;
+	private boolean corrected;
+	private long sourceOffset = -1;
+
+	public MutableAccountResult() {
+		this(DEFAULT_CANDIDATE_CAPACITY);
+	}
+
+	/**
+	 * @param candidateCapacity maximum number of candidates to hold
+	 */
+	public MutableAccountResult(int candidateCapacity) {
+		if (candidateCapacity < 0)
+			throw new IllegalArgumentException("Negative candidate capacity " + candidateCapacity);
+		this.candidates = new int[candidateCapacity];
+		this.candidateCosts = new int[candidateCapacity];
+	}
+
+	/**
+	 * Reset to initial state, ready to be reused for another parse.
+	 */
+	public void clear() {
+		account = 0;
+		illegibleMask = 0;
+		status = AccountStatus.UNCHECKED;
+		corrected = false;
+		candidateCount = 0;
+		candidatesTruncated = false;
+		sourceOffset = -1;
+	}
+
+	/**
+	 * @return account number, with illegible digits as 0
+	 */
+	public int getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return bit mask of illegible digits, bit n set if digit at position n (0 = leftmost) is illegible
+	 */
+	public int getIllegibleMask() {
+		return illegibleMask;
+	}
+
+	/**
+	 * @param position digit position 0-8, 0 being leftmost
+	 * @return digit at specified position, or -1 if illegible
+	 */
+	public int getDigit(int position) {
+		return AccountResult.digitAt(account, illegibleMask, position);
+	}
+
+	/**
+	 * @param account account number, with illegible digits as 0
+	 * @param illegibleMask bit mask of illegible digits
+	 */
+	public void setAccount(int account, int illegibleMask) {
+		this.account = account;
+		this.illegibleMask = illegibleMask;
+	}
+
+	public AccountStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(AccountStatus status) {
+		this.status = status;
+	}
+
+	/**
+	 * @return whether account number was automatically corrected from what was scanned
+	 */
+	public boolean isCorrected() {
+		return corrected;
+	}
+
+	/**
+	 * Replace scanned account number with the specified correction, which is known to be valid.
+	 * @param account corrected account number
+	 */
+	public void setCorrected(int account) {
+		this.account = account;
+		this.illegibleMask = 0;
+		this.status = AccountStatus.OK;
+		this.corrected = true;
+		this.candidateCount = 0;
+	}
+
+	public int getCandidateCount() {
+		return candidateCount;
+	}
+
+	/**
+	 * @param index index of candidate, less than candidate count
+	 * @return candidate at specified index
+	 */
+	public int getCandidate(int index) {
+		if (index >= candidateCount)
+			throw new IndexOutOfBoundsException("Candidate index " + index + " not less than count " + candidateCount);
+		return candidates[index];
+	}
+
+	/**
+	 * @param index index of candidate, less than candidate count
+	 * @return cost of candidate at specified index, lower meaning more likely, or 0 if not scored
+	 */
+	public int getCandidateCost(int index) {
+		if (index >= candidateCount)
+			throw new IndexOutOfBoundsException("Candidate index " + index + " not less than count " + candidateCount);
+		return candidateCosts[index];
+	}
+
+	/**
+	 * @param candidate possible corrected account number
+	 * @return true if added, false if capacity already reached
+	 */
+	public boolean addCandidate(int candidate) {
+		return addCandidate(candidate, 0);
+	}
+
+	/**
+	 * @param candidate possible corrected account number
+	 * @param cost cost of candidate, lower meaning more likely
+	 * @return true if added, false if capacity already reached
+	 */
+	public boolean addCandidate(int candidate, int cost) {
+		if (candidateCount == candidates.length) {
+			candidatesTruncated = true;
+			return false;
+		}
+		candidateCosts[candidateCount] = cost;
+		candidates[candidateCount++] = candidate;
+		return true;
+	}
+
+	/**
+	 * Add candidate, or if capacity already reached, replace the costliest candidate if it costs more.
+	 * @param candidate possible corrected account number
+	 * @param cost cost of candidate, lower meaning more likely
+	 */
+	void offerCandidate(int candidate, int cost) {
+		if (addCandidate(candidate, cost))
+			return;
+		int costliest = -1;
+		for (int i = 0; i < candidateCount; ++i) {
+			if (candidateCosts[i] > cost && (costliest == -1 || candidateCosts[i] > candidateCosts[costliest]))
+				costliest = i;
+		}
+		if (costliest != -1) {
+			candidates[costliest] = candidate;
+			candidateCosts[costliest] = cost;
+		}
+	}
+
+	/**
+	 * Drop candidates costing more than specified maximum, and sort the rest by ascending cost, then account.
+	 * @param maximumCost maximum cost of candidates to keep
+	 */
+	void rankCandidates(int maximumCost) {
+		int kept = 0;
+		for (int i = 0; i < candidateCount; ++i) {
+			if (candidateCosts[i] <= maximumCost) {
+				candidates[kept] = candidates[i];
+				candidateCosts[kept++] = candidateCosts[i];
+			}
+		}
+		candidateCount = kept;
+		// insertion sort, as there are only a few candidates
+		for (int i = 1; i < candidateCount; ++i) {
+			int candidate = candidates[i];
+			int cost = candidateCosts[i];
+			int j = i - 1;
+			for (; j >= 0 && (candidateCosts[j] > cost || (candidateCosts[j] == cost && candidates[j] > candidate)); --j) {
+				candidates[j + 1] = candidates[j];
+				candidateCosts[j + 1] = candidateCosts[j];
+			}
+			candidates[j + 1] = candidate;
+			candidateCosts[j + 1] = cost;
+		}
+	}
+
+	/**
+	 * Remove candidates not in specified set, keeping the rest in order.
+	 * @param accounts accounts to keep
+	 * @return number of candidates remaining
+	 */
+	public int retainCandidates(AccountSet accounts) {
+		int kept = 0;
+		for (int i = 0; i < candidateCount; ++i) {
+			if (accounts.contains(candidates[i])) {
+				candidates[kept] = candidates[i];
+				candidateCosts[kept++] = candidateCosts[i];
+			}
+		}
+		candidateCount = kept;
+		return kept;
+	}
+
+	public void clearCandidates() {
+		candidateCount = 0;
+		candidatesTruncated = false;
+	}
+
+	/**
+	 * Record that candidates were dropped elsewhere, e.g., by a binary record with fewer candidate slots.
+	 */
+	void markCandidatesTruncated() {
+		candidatesTruncated = true;
+	}
+
+	/**
+	 * @return whether any candidates were dropped because capacity was reached
+	 */
+	public boolean isCandidatesTruncated() {
+		return candidatesTruncated;
+	}
+
+	/**
+	 * @return byte offset of parsed block within its input, or -1 if not known
+	 */
+	public long getSourceOffset() {
+		return sourceOffset;
+	}
+
+	public void setSourceOffset(long sourceOffset) {
+		this.sourceOffset = sourceOffset;
+	}
+
+	/**
+	 * @return immutable copy of this result
+	 */
+	public AccountResult toAccountResult() {
+		return new AccountResult(account, illegibleMask, status, corrected, Arrays.copyOf(candidates, candidateCount),
+				Arrays.copyOf(candidateCosts, candidateCount),
+				sourceOffset);
+	}
+
+	/**
+	 * Append result in string format described in spec.
+	 * @param builder builder to append to
+	 * @return builder
+	 */
+	public StringBuilder appendTo(StringBuilder builder) {
+		AccountResult.appendFormatted(builder, account, illegibleMask, status, candidates, candidateCount);
+		return builder;
+	}
+
+	/**
+	 * @return result in string format described in spec, e.g., "490067715 AMB [490067115, 490067719, 490867715]"
+	 */
+	@Override
+	public String toString() {
+		return appendTo(new StringBuilder(16)).toString();
+	}
+}
@@ -0,0 +1,102 @@
+package us.stangl.katabankocr;
+
+/**
+ * Immutable description of the scanning faults OcrDataGenerator injects,
+ * each as a probability per block. Start from NONE and add faults with the
+ * with... methods, e.g., NoiseModel.NONE.withSegmentFlipRate(0.05).
+ *
+ * @author Alex Stangl
+ */
+public final class NoiseModel {
+	/** Model injecting no faults, generating only valid account numbers */
+	public static final NoiseModel NONE = new NoiseModel(0, 0, 0, 0, 0);
+
+	private final double invalidAccountRate;
+	private final double segmentFlipRate;
+	private final double missingCellRate;
+	private final double shortLineRate;
+	private final double ambiguousGlyphRate;
+
+	private NoiseModel(double invalidAccountRate, double segmentFlipRate, double missingCellRate,
+			double shortLineRate, double ambiguousGlyphRate)
+	{
+		this.invalidAccountRate = checkRate(invalidAccountRate);
+		this.segmentFlipRate = checkRate(segmentFlipRate);
+		this.missingCellRate = checkRate(missingCellRate);
+		this.shortLineRate = checkRate(shortLineRate);
+		this.ambiguousGlyphRate = checkRate(ambiguousGlyphRate);
+	}
+
+	/**
+	 * @param rate probability that true account number has a bad checksum
+	 * @return copy of this model with specified rate
+	 */
+	public NoiseModel withInvalidAccountRate(double rate) {
+		return new NoiseModel(rate, segmentFlipRate, missingCellRate, shortLineRate, ambiguousGlyphRate);
+	}
+
+	/**
+	 * @param rate probability that one segment of one digit is added or dropped
+	 * @return copy of this model with specified rate
+	 */
+	public NoiseModel withSegmentFlipRate(double rate) {
+		return new NoiseModel(invalidAccountRate, rate, missingCellRate, shortLineRate, ambiguousGlyphRate);
+	}
+
+	/**
+	 * @param rate probability that one digit is blank
+	 * @return copy of this model with specified rate
+	 */
+	public NoiseModel withMissingCellRate(double rate) {
+		return new NoiseModel(invalidAccountRate, segmentFlipRate, rate, shortLineRate, ambiguousGlyphRate);
+	}
+
+	/**
+	 * @param rate probability that one of the 3 glyph lines is cut short
+	 * @return copy of this model with specified rate
+	 */
+	public NoiseModel withShortLineRate(double rate) {
+		return new NoiseModel(invalidAccountRate, segmentFlipRate, missingCellRate, rate, ambiguousGlyphRate);
+	}
+
+	/**
+	 * @param rate probability that one digit is replaced by an illegible glyph one segment away from several digits
+	 * @return copy of this model with specified rate
+	 */
+	public NoiseModel withAmbiguousGlyphRate(double rate) {
+		return new NoiseModel(invalidAccountRate, segmentFlipRate, missingCellRate, shortLineRate, rate);
+	}
+
+	public double getInvalidAccountRate() {
+		return invalidAccountRate;
+	}
+
+	public double getSegmentFlipRate() {
+		return segmentFlipRate;
+	}
+
+	public double getMissingCellRate() {
+		return missingCellRate;
+	}
+
+	public double getShortLineRate() {
+		return shortLineRate;
+	}
+
+	public double getAmbiguousGlyphRate() {
+		return ambiguousGlyphRate;
+	}
+
+	@Override
+	public String toString() {
+		return "NoiseModel[invalidAccount=" + invalidAccountRate + ", segmentFlip=" + segmentFlipRate
+				+ ", missingCell=" + missingCellRate + ", shortLine=" + shortLineRate
+				+ ", ambiguousGlyph=" + ambiguousGlyphRate + "]";
+	}
+
+	private static double checkRate(double rate) {
+		if (! (rate >= 0 && rate <= 1))
+			throw new IllegalArgumentException("Rate " + rate + " not in range 0-1");
+		return rate;
+	}
+}
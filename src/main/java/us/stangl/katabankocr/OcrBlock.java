@@ -1,47 +1,251 @@
 package us.stangl.katabankocr;
 
+import java.nio.ByteBuffer;
+
 /**
  * Object which represents a block of 4 input lines for OCR scanning.
+ *
+ * A block either holds its own lines as strings, or is only a view of lines
+ * within a shared CharSequence or ByteBuffer, given by the offset and length
+ * of each line, so no characters are copied. Lines shorter than 27
+ * characters are treated as padded with spaces, without copying them.
+ * A view is valid only while the characters it refers to are unchanged, so
+ * parsers must not retain blocks after parsing them.
+ *
  * @author Alex Stangl
  */
-public class OcrBlock {
-	final String[] lines;
-	final String[] paddedLines;
-
+public abstract class OcrBlock {
 	/**
 	 * Factory method to return new OCR block based upon a block of 4 input lines.
 	 * @param lines input lines
 	 * @throws IllegalArgumentException if input null or of wrong length
 	 */
 	public static OcrBlock newInstance(String[] lines) {
-		return new OcrBlock(lines);
+		return new LinesBlock(lines);
 	}
-	
+
 	/**
-	 * Create new OCR block based upon a block of 4 input lines.
-	 * @param lines input lines
-	 * @throws IllegalArgumentException if input null or of wrong length
+	 * Return new OCR block which is a view of 4 lines within a shared sequence of characters.
+	 * @param chars characters holding block
+	 * @param lineOffsets index within chars of start of each of the 4 lines
+	 * @param lineLengths length of each of the 4 lines, excluding any line terminator
+	 * @throws IllegalArgumentException if a line lies outside chars, or 4th line not blank
+	 */
+	public static OcrBlock view(CharSequence chars, int[] lineOffsets, int[] lineLengths) {
+		return new CharSequenceBlock(chars, lineOffsets, lineLengths);
+	}
+
+	/**
+	 * Return new OCR block which is a view of 4 lines of ASCII bytes within a shared buffer.
+	 * @param buffer buffer holding block, read using absolute gets
+	 * @param lineOffsets index within buffer of start of each of the 4 lines
+	 * @param lineLengths length of each of the 4 lines, excluding any line terminator
+	 * @throws IllegalArgumentException if a line lies outside buffer's limit, or 4th line not blank
+	 */
+	public static OcrBlock view(ByteBuffer buffer, int[] lineOffsets, int[] lineLengths) {
+		ByteBufferBlock retval = new ByteBufferBlock();
+		retval.reset(buffer, lineOffsets, lineLengths);
+		return retval;
+	}
+
+	// subclasses only within package
+	OcrBlock() {
+	}
+
+	/**
+	 * @param line line number, 0-3
+	 * @return length of specified line, excluding padding
+	 */
+	abstract int lineLength(int line);
+
+	/**
+	 * @param line line number, 0-3
+	 * @param column column, less than lineLength(line)
+	 * @return character at specified column of specified line
+	 */
+	abstract int charAt(int line, int column);
+
+	/**
+	 * @return copy of the 4 lines of block, without padding
+	 */
+	String[] lines() {
+		String[] retval = new String[4];
+		for (int line = 0; line < 4; ++line) {
+			StringBuilder builder = new StringBuilder(lineLength(line));
+			for (int column = 0; column < lineLength(line); ++column) {
+				builder.append((char) charAt(line, column));
+			}
+			retval[line] = builder.toString();
+		}
+		return retval;
+	}
+
+	/**
+	 * @param cell cell number, 0-8
+	 * @return cell code of specified glyph cell, as described in GlyphTable
+	 */
+	int cellCode(int cell) {
+		int code = 0;
+		for (int row = 0; row < 3; ++row) {
+			int length = lineLength(row);
+			for (int column = 3 * cell, position = 3 * row; column < 3 * cell + 3; ++column, ++position) {
+				// characters past end of a short line are spaces, which contribute nothing
+				if (column < length)
+					code |= GlyphTable.positionBits(charAt(row, column), position);
+			}
+		}
+		return code;
+	}
+
+	/**
+	 * Decode 9 glyph cells of block.
+	 * @param cellCodes array to receive cell codes
+	 */
+	void readCellCodes(int[] cellCodes) {
+		for (int cell = 0; cell < 9; ++cell) {
+			cellCodes[cell] = cellCode(cell);
+		}
+	}
+
+	// whether 4th line holds only whitespace and control characters, like String.trim
+	boolean isFourthLineBlank() {
+		for (int column = 0; column < lineLength(3); ++column) {
+			if (charAt(3, column) > ' ')
+				return false;
+		}
+		return true;
+	}
+
+	private static void checkLines(int[] lineOffsets, int[] lineLengths, int size) {
+		if (lineOffsets == null || lineLengths == null)
+			throw new IllegalArgumentException("Null line offsets or lengths passed to OcrBlock");
+		if (lineOffsets.length < 4 || lineLengths.length < 4)
+			throw new IllegalArgumentException("Fewer than 4 line offsets or lengths passed to OcrBlock");
+		for (int line = 0; line < 4; ++line) {
+			if (lineOffsets[line] < 0 || lineLengths[line] < 0 || lineOffsets[line] + lineLengths[line] > size)
+				throw new IllegalArgumentException("Line " + line + " at offset " + lineOffsets[line] + " of length "
+						+ lineLengths[line] + " not within size " + size);
+		}
+	}
+
+	// block holding its own lines
+	private static final class LinesBlock extends OcrBlock {
+		private final String[] lines;
+
+		/**
+		 * Create new OCR block based upon a block of 4 input lines.
+		 * @param lines input lines
+		 * @throws IllegalArgumentException if input null or of wrong length
+		 */
+		LinesBlock(String[] lines) {
+			if (lines == null)
+				throw new IllegalArgumentException("Null passed to OcrBlockParser");
+			if (lines.length != 4)
+				throw new IllegalArgumentException("Array of length " + lines.length + " passed to OcrBlockParser. Expected length 4");
+			this.lines = lines;
+			if (! isFourthLineBlank())
+				throw new IllegalArgumentException("Third line '" + lines[3] + "' not empty.");
+		}
+
+		@Override
+		int lineLength(int line) {
+			return lines[line].length();
+		}
+
+		@Override
+		int charAt(int line, int column) {
+			return lines[line].charAt(column);
+		}
+
+		@Override
+		String[] lines() {
+			return lines.clone();
+		}
+	}
+
+	// view of lines within a shared CharSequence
+	private static final class CharSequenceBlock extends OcrBlock {
+		private final CharSequence chars;
+		private final int[] lineOffsets = new int[4];
+		private final int[] lineLengths = new int[4];
+
+		CharSequenceBlock(CharSequence chars, int[] lineOffsets, int[] lineLengths) {
+			if (chars == null)
+				throw new IllegalArgumentException("Null passed to OcrBlock.view");
+			checkLines(lineOffsets, lineLengths, chars.length());
+			this.chars = chars;
+			System.arraycopy(lineOffsets, 0, this.lineOffsets, 0, 4);
+			System.arraycopy(lineLengths, 0, this.lineLengths, 0, 4);
+			if (! isFourthLineBlank())
+				throw new IllegalArgumentException("Fourth line at offset " + lineOffsets[3] + " not blank");
+		}
+
+		@Override
+		int lineLength(int line) {
+			return lineLengths[line];
+		}
+
+		@Override
+		int charAt(int line, int column) {
+			return chars.charAt(lineOffsets[line] + column);
+		}
+	}
+
+	/**
+	 * View of lines of ASCII bytes within a shared ByteBuffer, which may be
+	 * repointed at another block, so one instance can serve every block of a
+	 * buffer. Cells are decoded a whole row at a time where possible.
 	 */
-	private OcrBlock(String[] lines) {
-		if (lines == null)
-			throw new IllegalArgumentException("Null passed to OcrBlockParser");
-		if (lines.length != 4)
-			throw new IllegalArgumentException("Array of length " + lines.length + " passed to OcrBlockParser. Expected length 4");
-		if (! lines[3].trim().isEmpty())
-			throw new IllegalArgumentException("Third line '" + lines[3] + "' not empty.");
-		this.lines = lines;
-		this.paddedLines = new String[4];
-		for (int i = 0; i < 4; ++i) {
-			this.paddedLines[i] = rightPadTo(lines[i], 27);
-		}
-	}
-	
-	private String rightPadTo(String inputString, int desiredLength) {
-		StringBuilder builder = new StringBuilder(desiredLength);
-		builder.append(inputString);
-		while (builder.length() < desiredLength) {
-			builder.append(' ');
-		}
-		return builder.toString();
+	static final class ByteBufferBlock extends OcrBlock {
+		private ByteBuffer buffer;
+		private final int[] lineStarts = new int[4];
+		private final int[] lineEnds = new int[4];
+
+		/**
+		 * Point view at another block.
+		 * @param buffer buffer holding block
+		 * @param lineOffsets index within buffer of start of each of the 4 lines
+		 * @param lineLengths length of each of the 4 lines, excluding any line terminator
+		 * @throws IllegalArgumentException if a line lies outside buffer's limit, or 4th line not blank
+		 */
+		void reset(ByteBuffer buffer, int[] lineOffsets, int[] lineLengths) {
+			if (buffer == null)
+				throw new IllegalArgumentException("Null passed to OcrBlock.view");
+			checkLines(lineOffsets, lineLengths, buffer.limit());
+			this.buffer = buffer;
+			for (int line = 0; line < 4; ++line) {
+				lineStarts[line] = lineOffsets[line];
+				lineEnds[line] = lineOffsets[line] + lineLengths[line];
+			}
+			if (! isFourthLineBlank())
+				throw new IllegalArgumentException("Fourth line at offset " + lineOffsets[3] + " not blank");
+		}
+
+		/**
+		 * Point view at block just framed, whose 4th line is already known to be blank.
+		 * @param buffer buffer holding block
+		 * @param framer framer holding line bounds of block
+		 */
+		void reset(ByteBuffer buffer, ByteBlockFramer framer) {
+			this.buffer = buffer;
+			System.arraycopy(framer.lineStarts, 0, lineStarts, 0, 4);
+			System.arraycopy(framer.lineEnds, 0, lineEnds, 0, 4);
+		}
+
+		@Override
+		int lineLength(int line) {
+			return lineEnds[line] - lineStarts[line];
+		}
+
+		@Override
+		int charAt(int line, int column) {
+			return buffer.get(lineStarts[line] + column) & 0xFF;
+		}
+
+		@Override
+		void readCellCodes(int[] cellCodes) {
+			if (! WordParallelDecoder.readCellCodes(buffer, lineStarts, lineEnds, cellCodes))
+				super.readCellCodes(cellCodes);
+		}
 	}
 }
@@ -0,0 +1,186 @@
+package us.stangl.katabankocr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Pull-style reader of OCR blocks from a byte channel, holding only a
+ * bounded buffer of input in memory at any time. The buffer starts at a
+ * fixed size and only grows if a single block does not fit in it.
+ *
+ * If lenient, lines not framing a block with a blank 4th line are skipped
+ * and reported, rather than returned as blocks.
+ *
+ * The current block remains valid until the next call to next().
+ * Not thread-safe.
+ *
+ * @author Alex Stangl
+ */
+final class OcrBlockReader {
+	static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final ReadableByteChannel channel;
+	// null if not measuring
+	private final OcrMetrics metrics;
+	// null unless lenient
+	private final MalformedRangeTracker malformedRanges;
+	private final ByteBlockFramer framer = new ByteBlockFramer();
+	private final OcrBlock.ByteBufferBlock view = new OcrBlock.ByteBufferBlock();
+	private ByteBuffer buffer;
+	// offset within input of index 0 of buffer
+	private long bufferOffset;
+	// index within buffer of start of next block
+	private int position;
+	private boolean endOfInput;
+
+	OcrBlockReader(ReadableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE, null, null);
+	}
+
+	OcrBlockReader(ReadableByteChannel channel, int bufferSize) {
+		this(channel, bufferSize, null, null);
+	}
+
+	/**
+	 * @param channel channel to read
+	 * @param bufferSize initial buffer size
+	 * @param metrics metrics to record bytes read into, or null for none
+	 * @param listener receiver of malformed input skipped, if lenient, or null to frame strictly
+	 */
+	OcrBlockReader(ReadableByteChannel channel, int bufferSize, OcrMetrics metrics, MalformedInputListener listener) {
+		this.channel = channel;
+		this.metrics = metrics;
+		this.malformedRanges = listener == null ? null : new MalformedRangeTracker(listener);
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		this.buffer.limit(0);
+	}
+
+	/**
+	 * Advance to next complete block. Unless lenient, a trailing partial block is ignored.
+	 * @return true if positioned at next block, false if input exhausted
+	 * @throws IOException if error occurs reading input
+	 * @throws OcrParseException if thrown by malformed input listener
+	 */
+	boolean next() throws IOException, OcrParseException {
+		while (true) {
+			int next = framer.frame(buffer, position, buffer.limit(), endOfInput);
+			if (next != -1) {
+				if (malformedRanges == null) {
+					position = next;
+					return true;
+				}
+				if (framer.isFourthLineBlank(buffer)) {
+					malformedRanges.resynchronized();
+					position = next;
+					return true;
+				}
+				// resynchronize by skipping first line, then framing again from the second
+				malformedRanges.skipLine(bufferOffset + framer.lineStarts[0], bufferOffset + framer.lineStarts[1]);
+				position = framer.lineStarts[1];
+			} else if (endOfInput) {
+				if (malformedRanges != null) {
+					if (ByteBlockFramer.isBlank(buffer, position, buffer.limit()))
+						malformedRanges.resynchronized();
+					else
+						malformedRanges.partialBlock(bufferOffset + position, bufferOffset + buffer.limit());
+				}
+				return false;
+			} else {
+				fill();
+			}
+		}
+	}
+
+	/**
+	 * @return offset within input of start of current block
+	 */
+	long blockOffset() {
+		return bufferOffset + framer.blockStart();
+	}
+
+	/**
+	 * @return offset within input just past end of current block, where next block starts
+	 */
+	long blockEndOffset() {
+		return bufferOffset + position;
+	}
+
+	/**
+	 * @return view of current block, valid only until the next call to next(), as the same view is reused
+	 * @throws IllegalArgumentException if 4th line of current block is not blank
+	 */
+	OcrBlock block() {
+		if (! framer.isFourthLineBlank(buffer))
+			throw new IllegalArgumentException("Fourth line of block at offset " + blockOffset() + " not blank");
+		view.reset(buffer, framer);
+		return view;
+	}
+
+	/**
+	 * @return total length of the 4 lines of current block, excluding line terminators
+	 */
+	int linesLength() {
+		return framer.linesLength();
+	}
+
+	/**
+	 * Copy the 4 lines of current block, without line terminators, so it outlives the next call to next().
+	 * @param dest array to copy lines into, with room for linesLength() bytes from offset
+	 * @param offset index within dest to copy first line to
+	 * @param lineLengths array to receive length of each line
+	 * @param lengthsOffset index within lineLengths to store length of first line at
+	 * @return index within dest just past copied lines
+	 */
+	int copyLines(byte[] dest, int offset, int[] lineLengths, int lengthsOffset) {
+		return framer.copyLines(buffer, dest, offset, lineLengths, lengthsOffset);
+	}
+
+	/**
+	 * @return whether 4th line of current block is blank
+	 */
+	boolean isFourthLineBlank() {
+		return framer.isFourthLineBlank(buffer);
+	}
+
+	/**
+	 * Decode 9 glyph cells of current block.
+	 * @param cellCodes array to receive cell codes
+	 */
+	void readCellCodes(int[] cellCodes) {
+		framer.readCellCodes(buffer, cellCodes);
+	}
+
+	// discard consumed input and read more, growing buffer only if it is full of a single incomplete block
+	private void fill() throws IOException {
+		int remaining = buffer.limit() - position;
+		if (position > 0) {
+			buffer.position(position);
+			buffer.compact();
+			bufferOffset += position;
+			position = 0;
+		} else {
+			buffer.position(buffer.limit());
+			buffer.limit(buffer.capacity());
+		}
+		if (remaining == buffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity());
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer);
+			if (count == -1) {
+				endOfInput = true;
+				break;
+			}
+			if (count > 0) {
+				if (metrics != null)
+					metrics.recordBytesRead(count);
+				break;
+			}
+		}
+		buffer.flip();
+	}
+}
@@ -0,0 +1,210 @@
+package us.stangl.katabankocr;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generator of synthetic OCR input files of any size, for load testing and
+ * measuring correction accuracy. Random account numbers are rendered using
+ * the reference digit glyphs, then scanning faults are injected according to
+ * a NoiseModel. Output is seeded, so the same seed and model always produce
+ * the same file, and streamed, so nothing is held in memory.
+ *
+ * An optional ground-truth sidecar gets one line per block, holding the true
+ * account number, VALID or INVALID according to its checksum, then the faults
+ * injected, if any, e.g.:
+ *   490867715 VALID flip:3:4 short:2:20
+ * Faults are flip:cell:position (segment position 0-8 added or dropped),
+ * missing:cell, short:line:length, and ambiguous:cell, with cells and lines
+ * numbered from 0.
+ *
+ * @author Alex Stangl
+ */
+public class OcrDataGenerator {
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	// segment positions which hold a segment in some digit, i.e., all but the top corners
+	private static final int[] SEGMENT_POSITIONS = { 1, 3, 4, 5, 6, 7, 8 };
+
+	// illegible cell codes without corner bits, one segment away from at least 2 digits
+	private static final int[] AMBIGUOUS_CODES;
+
+	static {
+		List<Integer> codes = new ArrayList<Integer>();
+		for (int code = 0; code < GlyphTable.CLEAN_CODES; ++code) {
+			if ((code & 0x5) == 0 && GlyphTable.digit(code) == -1 && Integer.bitCount(GlyphTable.neighbours(code)) >= 2)
+				codes.add(code);
+		}
+		AMBIGUOUS_CODES = new int[codes.size()];
+		for (int i = 0; i < AMBIGUOUS_CODES.length; ++i) {
+			AMBIGUOUS_CODES[i] = codes.get(i);
+		}
+	}
+
+	private final NoiseModel noiseModel;
+	private final Random random;
+
+	/**
+	 * @param noiseModel faults to inject
+	 * @param seed random seed
+	 */
+	public OcrDataGenerator(NoiseModel noiseModel, long seed) {
+		if (noiseModel == null)
+			throw new IllegalArgumentException("Null noise model passed to OcrDataGenerator");
+		this.noiseModel = noiseModel;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Generate blocks, writing each as soon as it is generated. Neither output is closed,
+	 * and both should be buffered.
+	 * @param nbrOfBlocks number of blocks to generate
+	 * @param data output for OCR data
+	 * @param groundTruth output for ground-truth sidecar, or null if not wanted
+	 * @throws IOException if error occurs writing output
+	 */
+	public void generate(long nbrOfBlocks, OutputStream data, Writer groundTruth) throws IOException {
+		char[][] lines = new char[3][27];
+		int[] lineLengths = new int[3];
+		byte[] blockBytes = new byte[4 * 28];
+		StringBuilder truth = new StringBuilder(64);
+		for (long block = 0; block < nbrOfBlocks; ++block) {
+			truth.setLength(0);
+			boolean valid = random.nextDouble() >= noiseModel.getInvalidAccountRate();
+			int account = valid ? randomValidAccount() : randomInvalidAccount();
+			AccountResult.appendAccount(truth, account, 0);
+			truth.append(valid ? " VALID" : " INVALID");
+			render(account, lines);
+			lineLengths[0] = lineLengths[1] = lineLengths[2] = 27;
+			injectFaults(lines, lineLengths, truth);
+
+			int length = 0;
+			for (int line = 0; line < 3; ++line) {
+				for (int i = 0; i < lineLengths[line]; ++i) {
+					blockBytes[length++] = (byte) lines[line][i];
+				}
+				blockBytes[length++] = '\n';
+			}
+			for (int i = 0; i < 27; ++i) {
+				blockBytes[length++] = ' ';
+			}
+			blockBytes[length++] = '\n';
+			data.write(blockBytes, 0, length);
+			if (groundTruth != null)
+				groundTruth.append(truth).append('\n');
+		}
+	}
+
+	private int randomValidAccount() {
+		while (true) {
+			int account = random.nextInt(100000000);
+			int sum = 0;
+			for (int weight = 2, rest = account; weight <= 9; ++weight, rest /= 10) {
+				sum += rest % 10 * weight;
+			}
+			// d1 has weight 1, so it is determined by the other digits, unless it would have to be 10
+			int checkDigit = Math.floorMod(-sum, 11);
+			if (checkDigit <= 9)
+				return account * 10 + checkDigit;
+		}
+	}
+
+	private int randomInvalidAccount() {
+		while (true) {
+			int account = random.nextInt(1000000000);
+			int sum = 0;
+			for (int weight = 1, rest = account; weight <= 9; ++weight, rest /= 10) {
+				sum += rest % 10 * weight;
+			}
+			if (sum % 11 != 0)
+				return account;
+		}
+	}
+
+	private void render(int account, char[][] lines) {
+		for (int position = 0; position < 9; ++position) {
+			int digit = AccountResult.digitAt(account, 0, position);
+			for (int row = 0; row < 3; ++row) {
+				BaseOcrBlockParser.DIGITS_LINES[row].getChars(3 * digit, 3 * digit + 3, lines[row], 3 * position);
+			}
+		}
+	}
+
+	private void injectFaults(char[][] lines, int[] lineLengths, StringBuilder truth) {
+		if (random.nextDouble() < noiseModel.getSegmentFlipRate()) {
+			int cell = random.nextInt(9);
+			int position = SEGMENT_POSITIONS[random.nextInt(SEGMENT_POSITIONS.length)];
+			int row = position / 3;
+			int column = 3 * cell + position % 3;
+			lines[row][column] = lines[row][column] == ' ' ? segmentChar(position) : ' ';
+			truth.append(" flip:").append(cell).append(':').append(position);
+		}
+		if (random.nextDouble() < noiseModel.getMissingCellRate()) {
+			int cell = random.nextInt(9);
+			renderCode(0, cell, lines);
+			truth.append(" missing:").append(cell);
+		}
+		if (random.nextDouble() < noiseModel.getAmbiguousGlyphRate()) {
+			int cell = random.nextInt(9);
+			renderCode(AMBIGUOUS_CODES[random.nextInt(AMBIGUOUS_CODES.length)], cell, lines);
+			truth.append(" ambiguous:").append(cell);
+		}
+		if (random.nextDouble() < noiseModel.getShortLineRate()) {
+			int line = random.nextInt(3);
+			int length = random.nextInt(27);
+			lineLengths[line] = length;
+			truth.append(" short:").append(line).append(':').append(length);
+		}
+	}
+
+	private static void renderCode(int code, int cell, char[][] lines) {
+		for (int position = 0; position < 9; ++position) {
+			lines[position / 3][3 * cell + position % 3] = (code & (1 << position)) != 0 ? segmentChar(position) : ' ';
+		}
+	}
+
+	private static char segmentChar(int position) {
+		return position % 3 == 1 ? '_' : '|';
+	}
+
+	/**
+	 * Command line entry point.
+	 * Usage: OcrDataGenerator blocks dataFile truthFile seed [invalid flip missing short ambiguous]
+	 * where the optional trailing arguments are the fault rates of the noise model.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4 && args.length != 9) {
+			System.err.println("Usage: OcrDataGenerator blocks dataFile truthFile seed [invalidRate flipRate missingRate shortRate ambiguousRate]");
+			System.exit(1);
+		}
+		NoiseModel noiseModel = NoiseModel.NONE;
+		if (args.length == 9) {
+			noiseModel = noiseModel.withInvalidAccountRate(Double.parseDouble(args[4]))
+					.withSegmentFlipRate(Double.parseDouble(args[5]))
+					.withMissingCellRate(Double.parseDouble(args[6]))
+					.withShortLineRate(Double.parseDouble(args[7]))
+					.withAmbiguousGlyphRate(Double.parseDouble(args[8]));
+		}
+		OcrDataGenerator generator = new OcrDataGenerator(noiseModel, Long.parseLong(args[3]));
+		OutputStream data = new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 20);
+		try {
+			Writer groundTruth = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[2]), US_ASCII), 1 << 20);
+			try {
+				generator.generate(Long.parseLong(args[0]), data, groundTruth);
+			} finally {
+				groundTruth.close();
+			}
+		} finally {
+			data.close();
+		}
+	}
+}
@@ -1,19 +1,66 @@
 package us.stangl.katabankocr;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Object that applies a block parser across an entire input file,
  * returning list of results.
+ *
+ * Results may instead be streamed, as each block is parsed, to an OcrResultSink,
+ * or pulled through an Iterator or Stream. Input is read through a bounded
+ * buffer, so streaming a file of any size takes constant memory.
+ * Input may be a File, InputStream, or ReadableByteChannel of ASCII text.
+ *
+ * If constructed with an OcrMetrics, bytes read are recorded there. Per-block
+ * measurements come from wrapping the block parser, e.g., in a MeteredOcrBlockParser.
+ *
+ * By default, blocks are framed strictly: every 4 lines form a block, a block
+ * whose 4th line is not blank fails the parse, and a trailing partial block
+ * is ignored. If constructed with a MalformedInputListener, framing is lenient:
+ * malformed lines are skipped and reported to the listener, and parsing
+ * resumes at the next valid block.
+ *
  * @author Alex Stangl
  */
 public class OcrFileParser {
+	// null if not measuring
+	private final OcrMetrics metrics;
+	// null if framing strictly
+	private final MalformedInputListener listener;
+
+	public OcrFileParser() {
+		this(null, null);
+	}
+
+	/**
+	 * @param metrics metrics to record bytes read into, or null for none
+	 */
+	public OcrFileParser(OcrMetrics metrics) {
+		this(metrics, null);
+	}
+
+	/**
+	 * @param metrics metrics to record bytes read into, or null for none
+	 * @param listener receiver of malformed input skipped by lenient framing, or null to frame strictly
+	 */
+	public OcrFileParser(OcrMetrics metrics, MalformedInputListener listener) {
+		this.metrics = metrics;
+		this.listener = listener;
+	}
+
 	/**
 	 * Parse OCR data from input file
 	 * @param inputFile file to parse
@@ -21,40 +68,183 @@ public class OcrFileParser {
 	 * @throws OcrParseException if error occurs during parsing
 	 */
 	public <T> List<T> parseFile(File inputFile, OcrBlockParser<T> parser) throws OcrParseException {
-		BufferedReader reader = null;
-		List<T> responseList = new ArrayList<T>();
+		final List<T> responseList = new ArrayList<T>();
+		parseFile(inputFile, parser, new OcrResultSink<T>() {
+			@Override
+			public void accept(T result) {
+				responseList.add(result);
+			}
+		});
+		return responseList;
+	}
+
+	/**
+	 * Parse OCR data from input file, passing each result to sink as soon as its block is parsed.
+	 * @param inputFile file to parse
+	 * @param parser parser to apply to each block
+	 * @param sink receiver of results
+	 * @throws OcrParseException if error occurs during parsing
+	 */
+	public <T> void parseFile(File inputFile, OcrBlockParser<T> parser, OcrResultSink<? super T> sink) throws OcrParseException {
+		FileInputStream input = null;
 		boolean normalTermination = false;
 		try {
-			String[] stringBlock = new String[4];
-			reader = new BufferedReader(new FileReader(inputFile));
-			for (int i = 0; ; i = (i + 1) % 4) {
-				String line = reader.readLine();
-				if (line == null) {
-					break;
-				}
-				stringBlock[i] = line;
-				if (i == 3) {
-					responseList.add(parser.parse(OcrBlock.newInstance(stringBlock)));
-				}
-			}
+			input = new FileInputStream(inputFile);
+			parse(newReader(input.getChannel()), parser, sink, inputFile.toString());
 			normalTermination = true;
 		} catch (FileNotFoundException e) {
 			throw new OcrParseException("FileNotFoundException unexpectedly caught trying to read " + inputFile, e);
-		} catch (IOException e) {
-			throw new OcrParseException("IOException unexpectedly caught trying to read " + inputFile, e);
 		} finally {
-			if (reader != null) {
+			close(input, inputFile, normalTermination);
+		}
+	}
+
+	/**
+	 * Parse OCR data from input stream, passing each result to sink as soon as its block is parsed.
+	 * The stream is not closed.
+	 * @param input stream to parse
+	 * @param parser parser to apply to each block
+	 * @param sink receiver of results
+	 * @throws OcrParseException if error occurs during parsing
+	 */
+	public <T> void parse(InputStream input, OcrBlockParser<T> parser, OcrResultSink<? super T> sink) throws OcrParseException {
+		parse(Channels.newChannel(input), parser, sink);
+	}
+
+	/**
+	 * Parse OCR data from channel, passing each result to sink as soon as its block is parsed.
+	 * The channel is not closed.
+	 * @param channel channel to parse
+	 * @param parser parser to apply to each block
+	 * @param sink receiver of results
+	 * @throws OcrParseException if error occurs during parsing
+	 */
+	public <T> void parse(ReadableByteChannel channel, OcrBlockParser<T> parser, OcrResultSink<? super T> sink) throws OcrParseException {
+		parse(newReader(channel), parser, sink, "input channel");
+	}
+
+	/**
+	 * Parse OCR data from channel, decoding glyphs directly from the bytes read, and passing
+	 * each result to sink as soon as its block is parsed. The same result object is passed
+	 * for every block, with its source offset set. The channel is not closed.
+	 * @param channel channel to parse
+	 * @param parser parser to apply to each block
+	 * @param sink receiver of results
+	 * @throws OcrParseException if error occurs during parsing, or a block's 4th line is not blank
+	 */
+	public void parseAccounts(ReadableByteChannel channel, AccountBlockParser parser, OcrResultSink<? super MutableAccountResult> sink)
+			throws OcrParseException
+	{
+		OcrBlockReader reader = newReader(channel);
+		MutableAccountResult result = new MutableAccountResult();
+		try {
+			while (reader.next()) {
+				if (! reader.isFourthLineBlank())
+					throw new OcrParseException("Fourth line of block at offset " + reader.blockOffset() + " of input channel not blank");
+				result.clear();
+				reader.readCellCodes(result.cellCodes);
+				result.setSourceOffset(reader.blockOffset());
+				parser.parseCellCodes(result);
+				sink.accept(result);
+			}
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to read input channel", e);
+		}
+	}
+
+	/**
+	 * Open iterator which parses OCR blocks of input file lazily, as results are requested.
+	 * Caller must close iterator to close file.
+	 * @param inputFile file to parse
+	 * @param parser parser to apply to each block
+	 * @return iterator over parse results
+	 * @throws OcrParseException if file cannot be opened
+	 */
+	public <T> OcrResultIterator<T> iterator(File inputFile, OcrBlockParser<T> parser) throws OcrParseException {
+		try {
+			FileInputStream input = new FileInputStream(inputFile);
+			return new OcrResultIterator<T>(newReader(input.getChannel()), parser, input, inputFile.toString());
+		} catch (FileNotFoundException e) {
+			throw new OcrParseException("FileNotFoundException unexpectedly caught trying to read " + inputFile, e);
+		}
+	}
+
+	/**
+	 * Open iterator which parses OCR blocks read from channel lazily, as results are requested.
+	 * Closing the iterator closes the channel.
+	 * @param channel channel to parse
+	 * @param parser parser to apply to each block
+	 * @return iterator over parse results
+	 */
+	public <T> OcrResultIterator<T> iterator(ReadableByteChannel channel, OcrBlockParser<T> parser) {
+		return new OcrResultIterator<T>(newReader(channel), parser, channel, "input channel");
+	}
+
+	/**
+	 * Open sequential stream which parses OCR blocks of input file lazily.
+	 * Caller must close stream to close file. Parse errors are thrown as UncheckedOcrParseException.
+	 * @param inputFile file to parse
+	 * @param parser parser to apply to each block
+	 * @return stream of parse results, in file order
+	 * @throws OcrParseException if file cannot be opened
+	 */
+	public <T> Stream<T> stream(File inputFile, OcrBlockParser<T> parser) throws OcrParseException {
+		return toStream(iterator(inputFile, parser));
+	}
+
+	/**
+	 * Open sequential stream which parses OCR blocks read from input stream lazily.
+	 * Closing the returned stream closes the input stream.
+	 * Parse errors are thrown as UncheckedOcrParseException.
+	 * @param input stream to parse
+	 * @param parser parser to apply to each block
+	 * @return stream of parse results, in input order
+	 */
+	public <T> Stream<T> stream(InputStream input, OcrBlockParser<T> parser) {
+		return toStream(iterator(Channels.newChannel(input), parser));
+	}
+
+	private OcrBlockReader newReader(ReadableByteChannel channel) {
+		return new OcrBlockReader(channel, OcrBlockReader.DEFAULT_BUFFER_SIZE, metrics, listener);
+	}
+
+	private <T> Stream<T> toStream(final OcrResultIterator<T> iterator) {
+		Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			@Override
+			public void run() {
 				try {
-					reader.close();
+					iterator.close();
 				} catch (IOException e) {
-					if (normalTermination) {
-						throw new OcrParseException("IOException unexpectedly caught trying to close " + inputFile, e);
-					}
-					// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
-					System.err.println("Suppressing IOException caught during abnormal termination of reading " + inputFile + ": " + e); 
+					throw new UncheckedIOException(e);
 				}
 			}
+		});
+	}
+
+	private <T> void parse(OcrBlockReader reader, OcrBlockParser<T> parser, OcrResultSink<? super T> sink, String inputName)
+			throws OcrParseException
+	{
+		try {
+			while (reader.next()) {
+				sink.accept(parser.parse(reader.block()));
+			}
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to read " + inputName, e);
+		}
+	}
+
+	private void close(InputStream input, File inputFile, boolean normalTermination) throws OcrParseException {
+		if (input != null) {
+			try {
+				input.close();
+			} catch (IOException e) {
+				if (normalTermination) {
+					throw new OcrParseException("IOException unexpectedly caught trying to close " + inputFile, e);
+				}
+				// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
+				System.err.println("Suppressing IOException caught during abnormal termination of reading " + inputFile + ": " + e);
+			}
 		}
-		return responseList;
 	}
 }
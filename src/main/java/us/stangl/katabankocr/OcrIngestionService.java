@@ -0,0 +1,290 @@
+package us.stangl.katabankocr;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Service parsing many OCR files concurrently, one task per file, so that
+ * waiting on the disk for one file overlaps with parsing others, and small
+ * files keep every core busy.
+ *
+ * Files may come from a directory, any Iterable, or a BlockingQueue fed by
+ * other threads. At most a fixed number of files are in progress at once,
+ * across all callers. Once that many are in progress, a caller takes no more
+ * files until one finishes, so producers filling a bounded queue are held
+ * back as well.
+ *
+ * Each file yields a FileIngestionResult, holding either its results or the
+ * OcrParseException which stopped it, so one bad file does not stop the
+ * batch. Results are passed to the caller's sink on the calling thread, in
+ * order of completion.
+ *
+ * Tasks run on an ExecutorService, by default a fixed pool owned by this
+ * service. Any executor may be supplied instead, e.g., one starting a virtual
+ * thread per task on Java 21, with concurrency still capped by this service.
+ * The block parser must be thread-safe, as are all parsers in this package.
+ *
+ * @param <T> type of parse result
+ * @author Alex Stangl
+ */
+public class OcrIngestionService<T> implements Closeable {
+	/** Marker which, taken from a queue, ends ingestion of the queue */
+	public static final File END_OF_QUEUE = new File("");
+
+	private final OcrFileParser fileParser;
+	private final OcrBlockParser<T> parser;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	// one permit per file which may be in progress
+	private final Semaphore permits;
+
+	/**
+	 * Create service with its own pool of 2 threads per processor, so parsing continues while some wait on the disk.
+	 * @param parser thread-safe parser to apply to each block
+	 */
+	public OcrIngestionService(OcrBlockParser<T> parser) {
+		this(parser, 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create service with its own pool of as many threads as files in progress.
+	 * @param parser thread-safe parser to apply to each block
+	 * @param maxConcurrentFiles maximum number of files in progress at once
+	 */
+	public OcrIngestionService(OcrBlockParser<T> parser, int maxConcurrentFiles) {
+		this(new OcrFileParser(), parser, newPool(maxConcurrentFiles), true, maxConcurrentFiles);
+	}
+
+	/**
+	 * Create service running tasks on supplied executor, which is not shut down on close.
+	 * @param fileParser parser to apply to each file, e.g., constructed with OcrMetrics
+	 * @param parser thread-safe parser to apply to each block
+	 * @param executor executor to run parsing tasks
+	 * @param maxConcurrentFiles maximum number of files in progress at once
+	 */
+	public OcrIngestionService(OcrFileParser fileParser, OcrBlockParser<T> parser, ExecutorService executor, int maxConcurrentFiles) {
+		this(fileParser, parser, executor, false, maxConcurrentFiles);
+	}
+
+	private OcrIngestionService(OcrFileParser fileParser, OcrBlockParser<T> parser, ExecutorService executor, boolean ownsExecutor,
+			int maxConcurrentFiles)
+	{
+		if (fileParser == null)
+			throw new IllegalArgumentException("Null file parser passed to OcrIngestionService");
+		if (parser == null)
+			throw new IllegalArgumentException("Null parser passed to OcrIngestionService");
+		if (executor == null)
+			throw new IllegalArgumentException("Null executor passed to OcrIngestionService");
+		this.fileParser = fileParser;
+		this.parser = parser;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.permits = new Semaphore(maxConcurrentFiles);
+	}
+
+	/**
+	 * Parse files, returning their outcomes.
+	 * @param files files to parse
+	 * @return outcome of each file, in order of completion
+	 * @throws OcrParseException if interrupted
+	 */
+	public List<FileIngestionResult<T>> ingest(Iterable<File> files) throws OcrParseException {
+		final List<FileIngestionResult<T>> retval = new ArrayList<FileIngestionResult<T>>();
+		ingest(files, new OcrResultSink<FileIngestionResult<T>>() {
+			@Override
+			public void accept(FileIngestionResult<T> result) {
+				retval.add(result);
+			}
+		});
+		return retval;
+	}
+
+	/**
+	 * Parse all regular files in directory, in name order, passing outcome of each to sink as it completes.
+	 * @param directory directory holding files to parse
+	 * @param sink receiver of outcomes, called on this thread
+	 * @throws OcrParseException if directory cannot be listed, if interrupted, or if thrown by sink
+	 */
+	public void ingestDirectory(File directory, OcrResultSink<? super FileIngestionResult<T>> sink) throws OcrParseException {
+		File[] entries = directory.listFiles();
+		if (entries == null)
+			throw new OcrParseException("Unable to list directory " + directory);
+		Arrays.sort(entries);
+		List<File> files = new ArrayList<File>(entries.length);
+		for (File entry : entries) {
+			if (entry.isFile())
+				files.add(entry);
+		}
+		ingest(files, sink);
+	}
+
+	/**
+	 * Parse files taken from queue, until END_OF_QUEUE is taken, passing outcome of each to sink as it completes.
+	 * @param queue queue of files to parse, fed by other threads
+	 * @param sink receiver of outcomes, called on this thread
+	 * @throws OcrParseException if interrupted, or if thrown by sink
+	 */
+	public void ingest(final BlockingQueue<File> queue, OcrResultSink<? super FileIngestionResult<T>> sink) throws OcrParseException {
+		ingest(new Iterable<File>() {
+			@Override
+			public Iterator<File> iterator() {
+				return new QueueIterator(queue);
+			}
+		}, sink);
+	}
+
+	/**
+	 * Parse files, passing outcome of each to sink as it completes.
+	 * If sink throws, files already in progress are finished, but their outcomes discarded.
+	 * @param files files to parse
+	 * @param sink receiver of outcomes, called on this thread
+	 * @throws OcrParseException if interrupted, or if thrown by sink
+	 */
+	public void ingest(Iterable<File> files, OcrResultSink<? super FileIngestionResult<T>> sink) throws OcrParseException {
+		CompletionService<FileIngestionResult<T>> completions = new ExecutorCompletionService<FileIngestionResult<T>>(executor);
+		int outstanding = 0;
+		try {
+			Iterator<File> iterator = files.iterator();
+			while (iterator.hasNext()) {
+				File file = iterator.next();
+				// wait for a permit, delivering own outcomes meanwhile, since their tasks release permits
+				while (! permits.tryAcquire()) {
+					if (outstanding == 0) {
+						permits.acquire();
+						break;
+					}
+					sink.accept(outcome(completions.take()));
+					--outstanding;
+				}
+				try {
+					completions.submit(new FileTask(file));
+				} catch (RuntimeException e) {
+					permits.release();
+					throw e;
+				}
+				++outstanding;
+				for (Future<FileIngestionResult<T>> done; (done = completions.poll()) != null; --outstanding) {
+					sink.accept(outcome(done));
+				}
+			}
+			for (; outstanding > 0; --outstanding) {
+				sink.accept(outcome(completions.take()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OcrParseException("Interrupted during ingestion with " + outstanding + " files in progress", e);
+		} catch (UncheckedInterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OcrParseException("Interrupted waiting on queue during ingestion", e.getCause());
+		}
+	}
+
+	/**
+	 * Shut down executor, if owned by this service, after files in progress finish.
+	 */
+	@Override
+	public void close() {
+		if (ownsExecutor)
+			executor.shutdown();
+	}
+
+	private FileIngestionResult<T> outcome(Future<FileIngestionResult<T>> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			// FileTask catches all exceptions, so only an Error can get here
+			Throwable cause = e.getCause();
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException("Programming error - unexpected exception from file task", cause);
+		}
+	}
+
+	private static ExecutorService newPool(int nbrThreads) {
+		if (nbrThreads <= 0)
+			throw new IllegalArgumentException("Maximum concurrent files " + nbrThreads + " not positive");
+		return Executors.newFixedThreadPool(nbrThreads);
+	}
+
+	// parses one file, releasing its permit when done
+	private final class FileTask implements Callable<FileIngestionResult<T>> {
+		private final File file;
+
+		FileTask(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public FileIngestionResult<T> call() {
+			try {
+				return FileIngestionResult.success(file, fileParser.parseFile(file, parser));
+			} catch (OcrParseException e) {
+				return FileIngestionResult.failure(file, e);
+			} catch (RuntimeException e) {
+				return FileIngestionResult.failure(file, new OcrParseException(e.getClass().getSimpleName()
+						+ " unexpectedly caught trying to parse " + file, e));
+			} finally {
+				permits.release();
+			}
+		}
+	}
+
+	// iterator taking files from queue until END_OF_QUEUE
+	private static final class QueueIterator implements Iterator<File> {
+		private final BlockingQueue<File> queue;
+		private File next;
+
+		QueueIterator(BlockingQueue<File> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				try {
+					next = queue.take();
+				} catch (InterruptedException e) {
+					throw new UncheckedInterruptedException(e);
+				}
+			}
+			return next != END_OF_QUEUE;
+		}
+
+		@Override
+		public File next() {
+			if (! hasNext())
+				throw new NoSuchElementException();
+			File retval = next;
+			next = null;
+			return retval;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	// carries InterruptedException out of Iterator.hasNext
+	private static final class UncheckedInterruptedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		UncheckedInterruptedException(InterruptedException cause) {
+			super(cause);
+		}
+	}
+}
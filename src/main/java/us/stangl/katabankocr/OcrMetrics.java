@@ -0,0 +1,182 @@
+package us.stangl.katabankocr;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters of parsing activity: blocks parsed by status, automatic
+ * corrections, failures, bytes read, time spent searching for error
+ * correction candidates, and a histogram of per-block parse latency.
+ *
+ * One instance may be shared by any number of parsers and threads.
+ * It is fed by MeteredOcrBlockParser, MeteredAccountBlockParser,
+ * ErrorCorrectingBlockParser and OcrFileParser when passed to them; those
+ * not given one skip all measurement. Recording only increments striped
+ * LongAdders, so it does not allocate in steady state and scales under
+ * contention. Counters are read through snapshot(), or over JMX once
+ * registered.
+ *
+ * @author Alex Stangl
+ */
+public final class OcrMetrics implements OcrMetricsMXBean {
+	private final LongAdder blocksParsed = new LongAdder();
+	private final LongAdder okCount = new LongAdder();
+	private final LongAdder illegibleCount = new LongAdder();
+	private final LongAdder errorCount = new LongAdder();
+	private final LongAdder ambiguousCount = new LongAdder();
+	private final LongAdder correctedCount = new LongAdder();
+	private final LongAdder failureCount = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder candidateSearchCount = new LongAdder();
+	private final LongAdder candidateSearchNanos = new LongAdder();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * Record one block parsed.
+	 * @param nanos time taken to parse block
+	 * @param status status of result, or null if not known
+	 * @param corrected whether result was automatically corrected
+	 */
+	public void recordBlock(long nanos, AccountStatus status, boolean corrected) {
+		blocksParsed.increment();
+		latency.record(nanos);
+		if (status == AccountStatus.OK)
+			okCount.increment();
+		else if (status == AccountStatus.ILL)
+			illegibleCount.increment();
+		else if (status == AccountStatus.ERR)
+			errorCount.increment();
+		else if (status == AccountStatus.AMB)
+			ambiguousCount.increment();
+		if (corrected)
+			correctedCount.increment();
+	}
+
+	/**
+	 * Record one block whose parse threw an exception.
+	 * @param nanos time taken before failure
+	 */
+	public void recordFailure(long nanos) {
+		blocksParsed.increment();
+		failureCount.increment();
+		latency.record(nanos);
+	}
+
+	/**
+	 * @param count number of input bytes read
+	 */
+	public void recordBytesRead(long count) {
+		bytesRead.add(count);
+	}
+
+	/**
+	 * @param nanos time taken by one error correction candidate search
+	 */
+	public void recordCandidateSearch(long nanos) {
+		candidateSearchCount.increment();
+		candidateSearchNanos.add(nanos);
+	}
+
+	/**
+	 * @return copy of current counters
+	 */
+	public OcrMetricsSnapshot snapshot() {
+		return new OcrMetricsSnapshot(blocksParsed.sum(), okCount.sum(), illegibleCount.sum(), errorCount.sum(),
+				ambiguousCount.sum(), correctedCount.sum(), failureCount.sum(), bytesRead.sum(),
+				candidateSearchCount.sum(), candidateSearchNanos.sum(), latency.bucketCounts());
+	}
+
+	/**
+	 * Register with platform MBean server, as us.stangl.katabankocr:type=OcrMetrics,name=<name>.
+	 * @param name name distinguishing this instance, e.g., name of input feed
+	 * @return name registered under, for unregister
+	 * @throws JMException if name is malformed or already registered
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName("us.stangl.katabankocr:type=OcrMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	/**
+	 * Unregister from platform MBean server.
+	 * @param objectName name returned by register
+	 * @throws JMException if not registered
+	 */
+	public static void unregister(ObjectName objectName) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+	}
+
+	@Override
+	public long getBlocksParsed() {
+		return blocksParsed.sum();
+	}
+
+	@Override
+	public long getOkCount() {
+		return okCount.sum();
+	}
+
+	@Override
+	public long getIllegibleCount() {
+		return illegibleCount.sum();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errorCount.sum();
+	}
+
+	@Override
+	public long getAmbiguousCount() {
+		return ambiguousCount.sum();
+	}
+
+	@Override
+	public long getCorrectedCount() {
+		return correctedCount.sum();
+	}
+
+	@Override
+	public long getFailureCount() {
+		return failureCount.sum();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getCandidateSearchCount() {
+		return candidateSearchCount.sum();
+	}
+
+	@Override
+	public long getCandidateSearchNanos() {
+		return candidateSearchNanos.sum();
+	}
+
+	@Override
+	public long getLatencyMedianNanos() {
+		return LatencyHistogram.valueAtPercentile(latency.bucketCounts(), 50);
+	}
+
+	@Override
+	public long getLatency99thPercentileNanos() {
+		return LatencyHistogram.valueAtPercentile(latency.bucketCounts(), 99);
+	}
+
+	@Override
+	public long getLatency999thPercentileNanos() {
+		return LatencyHistogram.valueAtPercentile(latency.bucketCounts(), 99.9);
+	}
+
+	@Override
+	public long getLatencyMaxNanos() {
+		return LatencyHistogram.valueAtPercentile(latency.bucketCounts(), 100);
+	}
+}
@@ -0,0 +1,36 @@
+package us.stangl.katabankocr;
+
+/**
+ * JMX management interface of OcrMetrics. Latencies are in nanoseconds.
+ *
+ * @author Alex Stangl
+ */
+public interface OcrMetricsMXBean {
+	long getBlocksParsed();
+
+	long getOkCount();
+
+	long getIllegibleCount();
+
+	long getErrorCount();
+
+	long getAmbiguousCount();
+
+	long getCorrectedCount();
+
+	long getFailureCount();
+
+	long getBytesRead();
+
+	long getCandidateSearchCount();
+
+	long getCandidateSearchNanos();
+
+	long getLatencyMedianNanos();
+
+	long getLatency99thPercentileNanos();
+
+	long getLatency999thPercentileNanos();
+
+	long getLatencyMaxNanos();
+}
@@ -0,0 +1,114 @@
+package us.stangl.katabankocr;
+
+/**
+ * Immutable point-in-time copy of the counters of an OcrMetrics.
+ * Counters are read one at a time while parsing may continue, so they
+ * are individually exact but not necessarily mutually consistent.
+ *
+ * @author Alex Stangl
+ */
+public final class OcrMetricsSnapshot {
+	private final long blocksParsed;
+	private final long okCount;
+	private final long illegibleCount;
+	private final long errorCount;
+	private final long ambiguousCount;
+	private final long correctedCount;
+	private final long failureCount;
+	private final long bytesRead;
+	private final long candidateSearchCount;
+	private final long candidateSearchNanos;
+	private final long[] latencyBucketCounts;
+
+	OcrMetricsSnapshot(long blocksParsed, long okCount, long illegibleCount, long errorCount, long ambiguousCount,
+			long correctedCount, long failureCount, long bytesRead, long candidateSearchCount, long candidateSearchNanos,
+			long[] latencyBucketCounts)
+	{
+		this.blocksParsed = blocksParsed;
+		this.okCount = okCount;
+		this.illegibleCount = illegibleCount;
+		this.errorCount = errorCount;
+		this.ambiguousCount = ambiguousCount;
+		this.correctedCount = correctedCount;
+		this.failureCount = failureCount;
+		this.bytesRead = bytesRead;
+		this.candidateSearchCount = candidateSearchCount;
+		this.candidateSearchNanos = candidateSearchNanos;
+		this.latencyBucketCounts = latencyBucketCounts;
+	}
+
+	/**
+	 * @return number of blocks parsed, including those whose parse failed
+	 */
+	public long getBlocksParsed() {
+		return blocksParsed;
+	}
+
+	/**
+	 * @return number of blocks with status OK, including those automatically corrected
+	 */
+	public long getOkCount() {
+		return okCount;
+	}
+
+	public long getIllegibleCount() {
+		return illegibleCount;
+	}
+
+	public long getErrorCount() {
+		return errorCount;
+	}
+
+	public long getAmbiguousCount() {
+		return ambiguousCount;
+	}
+
+	/**
+	 * @return number of blocks automatically corrected; not known for parsers returning strings
+	 */
+	public long getCorrectedCount() {
+		return correctedCount;
+	}
+
+	/**
+	 * @return number of blocks whose parse threw an exception
+	 */
+	public long getFailureCount() {
+		return failureCount;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return number of error correction candidate searches
+	 */
+	public long getCandidateSearchCount() {
+		return candidateSearchCount;
+	}
+
+	/**
+	 * @return total time spent in error correction candidate searches
+	 */
+	public long getCandidateSearchNanos() {
+		return candidateSearchNanos;
+	}
+
+	/**
+	 * @param percentile percentile, in range 0-100
+	 * @return per-block parse latency at percentile, to within 12.5%, or 0 if none recorded
+	 */
+	public long getLatencyPercentileNanos(double percentile) {
+		return LatencyHistogram.valueAtPercentile(latencyBucketCounts, percentile);
+	}
+
+	@Override
+	public String toString() {
+		return "OcrMetricsSnapshot[blocks=" + blocksParsed + ", ok=" + okCount + ", ill=" + illegibleCount
+				+ ", err=" + errorCount + ", amb=" + ambiguousCount + ", corrected=" + correctedCount
+				+ ", failures=" + failureCount + ", bytesRead=" + bytesRead
+				+ ", candidateSearches=" + candidateSearchCount + ", candidateSearchNanos=" + candidateSearchNanos
+				+ ", p50=" + getLatencyPercentileNanos(50) + "ns, p99=" + getLatencyPercentileNanos(99) + "ns]";
+	}
+}
@@ -0,0 +1,72 @@
+package us.stangl.katabankocr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator which reads and parses OCR blocks lazily, one block per call to next(),
+ * so results are available as soon as each block is parsed and memory use is bounded.
+ * Parse errors are thrown as UncheckedOcrParseException.
+ *
+ * Closing the iterator closes the underlying input.
+ *
+ * @param <T> type of parse result
+ * @author Alex Stangl
+ */
+public class OcrResultIterator<T> implements Iterator<T>, Closeable {
+	private final OcrBlockReader reader;
+	private final OcrBlockParser<T> parser;
+	private final Closeable input;
+	private final String inputName;
+	private T nextResult;
+	private boolean nextResultPending;
+	private boolean exhausted;
+
+	OcrResultIterator(OcrBlockReader reader, OcrBlockParser<T> parser, Closeable input, String inputName) {
+		this.reader = reader;
+		this.parser = parser;
+		this.input = input;
+		this.inputName = inputName;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (! nextResultPending && ! exhausted) {
+			try {
+				if (reader.next()) {
+					nextResult = parser.parse(reader.block());
+					nextResultPending = true;
+				} else {
+					exhausted = true;
+				}
+			} catch (IOException e) {
+				throw new UncheckedOcrParseException(new OcrParseException("IOException unexpectedly caught trying to read " + inputName, e));
+			} catch (OcrParseException e) {
+				throw new UncheckedOcrParseException(e);
+			}
+		}
+		return nextResultPending;
+	}
+
+	@Override
+	public T next() {
+		if (! hasNext())
+			throw new NoSuchElementException();
+		T retval = nextResult;
+		nextResult = null;
+		nextResultPending = false;
+		return retval;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("remove not supported by OcrResultIterator");
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+}
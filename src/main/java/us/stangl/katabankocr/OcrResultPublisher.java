@@ -0,0 +1,422 @@
+package us.stangl.katabankocr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Flow.Publisher of the parse results of an input file, which reads and
+ * parses blocks only as subscribers request them, so a slow subscriber
+ * throttles reading rather than results piling up in memory.
+ *
+ * Each subscriber gets its own pass over the file, read through an
+ * AsynchronousFileChannel, so no thread waits on the disk. Blocks are
+ * framed as soon as they are read, then parsed in batches on an Executor,
+ * by default the common ForkJoinPool. Up to a configurable number of batches
+ * are parsed concurrently, ahead of delivery, but never more blocks than the
+ * subscriber has requested and not yet received. Results are delivered in
+ * file order, and deliveries to one subscriber never overlap, as the
+ * Flow specification requires. Cancelling stops reading and closes the file.
+ *
+ * Framing is strict, as with OcrFileParser by default: a block whose 4th
+ * line is not blank ends the subscription with an OcrParseException, and a
+ * trailing partial block is ignored. The block parser must be thread-safe,
+ * as are all parsers in this package.
+ *
+ * @param <T> type of parse result
+ * @author Alex Stangl
+ */
+public class OcrResultPublisher<T> implements Flow.Publisher<T> {
+	/** Default maximum number of blocks per batch */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/** Default maximum number of batches parsed ahead of delivery */
+	public static final int DEFAULT_PREFETCH = 4;
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final Path inputFile;
+	private final OcrBlockParser<T> parser;
+	private final Executor executor;
+	private final int batchSize;
+	private final int prefetch;
+
+	/**
+	 * Create publisher parsing on the common ForkJoinPool.
+	 * @param inputFile file to parse
+	 * @param parser thread-safe parser to apply to each block
+	 */
+	public OcrResultPublisher(Path inputFile, OcrBlockParser<T> parser) {
+		this(inputFile, parser, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE, DEFAULT_PREFETCH);
+	}
+
+	/**
+	 * @param inputFile file to parse
+	 * @param parser thread-safe parser to apply to each block
+	 * @param executor executor to parse batches and deliver results on
+	 * @param batchSize maximum number of blocks per batch
+	 * @param prefetch maximum number of batches parsed ahead of delivery, and so concurrently
+	 */
+	public OcrResultPublisher(Path inputFile, OcrBlockParser<T> parser, Executor executor, int batchSize, int prefetch) {
+		if (inputFile == null)
+			throw new IllegalArgumentException("Null input file passed to OcrResultPublisher");
+		if (parser == null)
+			throw new IllegalArgumentException("Null parser passed to OcrResultPublisher");
+		if (executor == null)
+			throw new IllegalArgumentException("Null executor passed to OcrResultPublisher");
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size " + batchSize + " not positive");
+		if (prefetch <= 0)
+			throw new IllegalArgumentException("Prefetch " + prefetch + " not positive");
+		this.inputFile = inputFile;
+		this.parser = parser;
+		this.executor = executor;
+		this.batchSize = batchSize;
+		this.prefetch = prefetch;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("Null subscriber passed to OcrResultPublisher");
+		AsynchronousFileChannel channel;
+		try {
+			channel = AsynchronousFileChannel.open(inputFile, StandardOpenOption.READ);
+		} catch (IOException e) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new OcrParseException("IOException unexpectedly caught trying to open " + inputFile, e));
+			return;
+		}
+		new Subscription(subscriber, channel).start();
+	}
+
+	// lines of a batch of blocks, copied out of the read buffer to be parsed concurrently with reading more
+	private static final class RawBatch {
+		byte[] data = new byte[1024];
+		int[] lineLengths;
+		int size;
+		int dataLength;
+
+		RawBatch(int batchSize) {
+			this.lineLengths = new int[4 * batchSize];
+		}
+
+		void add(ByteBuffer buffer, ByteBlockFramer framer) {
+			int needed = dataLength + framer.linesLength();
+			if (needed > data.length)
+				data = Arrays.copyOf(data, Math.max(needed, 2 * data.length));
+			dataLength = framer.copyLines(buffer, data, dataLength, lineLengths, 4 * size++);
+		}
+	}
+
+	/**
+	 * State of one subscriber's pass over the file. All state other than the
+	 * atomic and volatile fields is touched only by the drain loop, which runs
+	 * on the executor, one pass at a time, whenever demand, a read, or a batch
+	 * parse changes.
+	 */
+	private final class Subscription implements Flow.Subscription, Runnable {
+		private final Flow.Subscriber<? super T> subscriber;
+		private final AsynchronousFileChannel channel;
+		// number of requests for a drain pass, nonzero while one is scheduled or running
+		private final AtomicInteger work = new AtomicInteger();
+		// results requested but not yet delivered
+		private final AtomicLong demand = new AtomicLong();
+		private volatile boolean cancelled;
+		// invalid request count, to report from drain loop
+		private volatile boolean badRequest;
+		private volatile long badRequestCount;
+		// outcome of read in flight, set by completion handler: bytes read, or -1 at end of file
+		private volatile boolean readCompleted;
+		private volatile int readCount;
+		private volatile Throwable readFailure;
+
+		private final ByteBlockFramer framer = new ByteBlockFramer();
+		private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		// index within buffer of start of next block to frame
+		private int position;
+		private long fileOffset;
+		private boolean readInFlight;
+		private boolean endOfFile;
+		// batches being parsed, in file order
+		private final ArrayDeque<CompletableFuture<Object[]>> parsing = new ArrayDeque<CompletableFuture<Object[]>>();
+		// results of batch being delivered
+		private Object[] delivering;
+		private int deliveryIndex;
+		// blocks framed but not yet delivered
+		private long outstanding;
+		private boolean done;
+
+		Subscription(Flow.Subscriber<? super T> subscriber, AsynchronousFileChannel channel) {
+			this.subscriber = subscriber;
+			this.channel = channel;
+			buffer.limit(0);
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				badRequestCount = n;
+				badRequest = true;
+			} else {
+				// demand saturates at Long.MAX_VALUE, meaning unbounded
+				long current;
+				long next;
+				do {
+					current = demand.get();
+					next = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while (! demand.compareAndSet(current, next));
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			drain();
+		}
+
+		/**
+		 * Signal onSubscribe, holding back drain passes until it returns, so no
+		 * other signal can overlap it (Flow rule 1.3), even if the subscriber
+		 * requests from within it. A subscriber throwing from onSubscribe is
+		 * treated as having cancelled.
+		 */
+		void start() {
+			work.set(1);
+			try {
+				subscriber.onSubscribe(this);
+			} catch (RuntimeException e) {
+				cancelled = true;
+				throw e;
+			} finally {
+				// run any passes requested meanwhile
+				if (work.decrementAndGet() != 0)
+					executor.execute(this);
+			}
+		}
+
+		// schedule a drain pass, unless one is already scheduled or running, which will then make another pass
+		private void drain() {
+			if (work.getAndIncrement() == 0)
+				executor.execute(this);
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				if (! done) {
+					try {
+						pass();
+					} catch (Throwable t) {
+						finish(t);
+					}
+				}
+				missed = work.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		// one pass of the drain loop: take in completed read, frame and parse ahead, deliver, and complete if done
+		private void pass() throws Throwable {
+			if (cancelled) {
+				finish(null);
+				return;
+			}
+			if (badRequest) {
+				finish(new IllegalArgumentException("Non-positive request " + badRequestCount + " violates Flow specification rule 3.9"));
+				return;
+			}
+			if (readInFlight && readCompleted) {
+				readInFlight = false;
+				readCompleted = false;
+				if (readFailure != null)
+					throw new OcrParseException("IOException unexpectedly caught trying to read " + inputFile, readFailure);
+				if (readCount == -1)
+					endOfFile = true;
+				else
+					fileOffset += readCount;
+				buffer.flip();
+				position = 0;
+			}
+			if (! readInFlight)
+				frameAhead();
+			deliver();
+			if (endOfFile && ! readInFlight && parsing.isEmpty() && delivering == null && outstanding == 0)
+				finish(null);
+		}
+
+		// frame blocks into batches for parsing, while subscriber wants more than is already framed
+		private void frameAhead() throws OcrParseException {
+			RawBatch batch = null;
+			while (parsing.size() < prefetch && outstanding < demand.get()) {
+				int next = framer.frame(buffer, position, buffer.limit(), endOfFile);
+				if (next == -1) {
+					if (! endOfFile)
+						read();
+					break;
+				}
+				if (! framer.isFourthLineBlank(buffer))
+					throw new OcrParseException("Fourth line of block at offset " + (fileOffset - buffer.limit() + position)
+							+ " of " + inputFile + " not blank");
+				if (batch == null)
+					batch = new RawBatch(batchSize);
+				batch.add(buffer, framer);
+				position = next;
+				++outstanding;
+				if (batch.size == batchSize) {
+					parse(batch);
+					batch = null;
+				}
+			}
+			if (batch != null)
+				parse(batch);
+		}
+
+		// read more of file after unframed input, growing buffer only if it is full of a single incomplete block
+		private void read() {
+			int remaining = buffer.limit() - position;
+			buffer.position(position);
+			if (remaining == buffer.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity());
+				larger.put(buffer);
+				buffer = larger;
+			} else {
+				buffer.compact();
+			}
+			position = 0;
+			readInFlight = true;
+			channel.read(buffer, fileOffset, null, new CompletionHandler<Integer, Void>() {
+				@Override
+				public void completed(Integer count, Void attachment) {
+					readCount = count;
+					readCompleted = true;
+					drain();
+				}
+
+				@Override
+				public void failed(Throwable t, Void attachment) {
+					readFailure = t;
+					readCompleted = true;
+					drain();
+				}
+			});
+		}
+
+		private void parse(final RawBatch batch) {
+			CompletableFuture<Object[]> future = CompletableFuture.supplyAsync(new Supplier<Object[]>() {
+				@Override
+				public Object[] get() {
+					try {
+						return parseBatch(batch);
+					} catch (OcrParseException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, executor);
+			parsing.add(future);
+			future.whenComplete(new BiConsumer<Object[], Throwable>() {
+				@Override
+				public void accept(Object[] results, Throwable t) {
+					drain();
+				}
+			});
+		}
+
+		private Object[] parseBatch(RawBatch batch) throws OcrParseException {
+			ByteBuffer data = ByteBuffer.wrap(batch.data, 0, batch.dataLength);
+			OcrBlock.ByteBufferBlock view = new OcrBlock.ByteBufferBlock();
+			int[] lineOffsets = new int[4];
+			int[] lineLengths = new int[4];
+			Object[] retval = new Object[batch.size];
+			int offset = 0;
+			for (int block = 0; block < batch.size; ++block) {
+				for (int line = 0; line < 4; ++line) {
+					lineOffsets[line] = offset;
+					lineLengths[line] = batch.lineLengths[4 * block + line];
+					offset += lineLengths[line];
+				}
+				view.reset(data, lineOffsets, lineLengths);
+				retval[block] = parser.parse(view);
+			}
+			return retval;
+		}
+
+		// deliver parsed results in order, as far as demand allows
+		@SuppressWarnings("unchecked")
+		private void deliver() throws Throwable {
+			while (demand.get() > 0 && ! cancelled) {
+				if (delivering == null) {
+					CompletableFuture<Object[]> next = parsing.peek();
+					if (next == null || ! next.isDone())
+						return;
+					parsing.poll();
+					try {
+						delivering = next.join();
+					} catch (CompletionException e) {
+						throw e.getCause();
+					}
+					deliveryIndex = 0;
+				}
+				T result = (T) delivering[deliveryIndex];
+				delivering[deliveryIndex++] = null;
+				if (deliveryIndex == delivering.length)
+					delivering = null;
+				--outstanding;
+				if (demand.get() != Long.MAX_VALUE)
+					demand.decrementAndGet();
+				try {
+					subscriber.onNext(result);
+				} catch (RuntimeException e) {
+					// subscriber violated rule 2.13, so treat subscription as cancelled
+					cancelled = true;
+					throw e;
+				}
+			}
+		}
+
+		// end subscription, signalling completion if failure is null and not cancelled, or failure
+		private void finish(Throwable failure) {
+			done = true;
+			for (CompletableFuture<Object[]> future : parsing) {
+				future.cancel(false);
+			}
+			parsing.clear();
+			delivering = null;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if (failure == null && ! cancelled)
+					failure = new OcrParseException("IOException unexpectedly caught trying to close " + inputFile, e);
+			}
+			if (cancelled)
+				return;
+			if (failure == null)
+				subscriber.onComplete();
+			else
+				subscriber.onError(failure);
+		}
+	}
+}
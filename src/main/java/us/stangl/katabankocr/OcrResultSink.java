@@ -0,0 +1,19 @@
+package us.stangl.katabankocr;
+
+/**
+ * Receiver of parse results, called once per block in input order.
+ *
+ * @param <T> type of parse result
+ * @author Alex Stangl
+ */
+public interface OcrResultSink<T> {
+	/**
+	 * Accept next parse result. Callers may reuse a mutable result object
+	 * (e.g., MutableAccountResult) for the next block once this returns,
+	 * so a sink retaining results must copy them.
+	 *
+	 * @param result parse result
+	 * @throws OcrParseException if sink is unable to accept the result, aborting the parse
+	 */
+	void accept(T result) throws OcrParseException;
+}
@@ -0,0 +1,119 @@
+package us.stangl.katabankocr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.PrimitiveIterator;
+
+/**
+ * Set of account numbers held in an open-addressing hash table of ints in
+ * a direct (off-heap) buffer, so tens of millions of accounts cost neither
+ * boxing nor garbage collection work, at 8-16 bytes per account. A lookup is
+ * a hash and usually a single probe.
+ *
+ * Slots are probed linearly from the account's hash, and empty slots hold -1,
+ * which is never an account number. The table doubles once half full.
+ * Accounts are added by one thread; once added, and the set safely published,
+ * any number of threads may look them up concurrently.
+ *
+ * @author Alex Stangl
+ */
+public class OffHeapAccountHashSet implements AccountSet {
+	private static final int EMPTY = -1;
+	// direct buffers are limited to 2^31 - 1 bytes, so 2^28 slots of 4 bytes, the largest power of 2 fitting
+	private static final int MAXIMUM_SLOTS = 1 << 28;
+
+	private ByteBuffer slots;
+	private int mask;
+	private int size;
+
+	/**
+	 * @param expectedSize number of accounts expected, to size table without growing
+	 */
+	public OffHeapAccountHashSet(int expectedSize) {
+		if (expectedSize < 0 || expectedSize > MAXIMUM_SLOTS / 2)
+			throw new IllegalArgumentException("Expected size " + expectedSize + " not in range 0-" + MAXIMUM_SLOTS / 2);
+		allocate(Math.max(16, Integer.highestOneBit(Math.max(1, 2 * expectedSize - 1)) << 1));
+	}
+
+	/**
+	 * @param account account number, in range 0-999999999
+	 * @return true if added, false if already present
+	 */
+	public boolean add(int account) {
+		if (account < 0 || account >= MappedAccountBitSet.ACCOUNT_COUNT)
+			throw new IllegalArgumentException("Account " + account + " not in range 0-" + (MappedAccountBitSet.ACCOUNT_COUNT - 1));
+		if (! insert(account))
+			return false;
+		if (++size > (mask + 1) / 2)
+			grow();
+		return true;
+	}
+
+	/**
+	 * @param accounts accounts to add
+	 */
+	public void addAll(PrimitiveIterator.OfInt accounts) {
+		while (accounts.hasNext()) {
+			add(accounts.nextInt());
+		}
+	}
+
+	@Override
+	public boolean contains(int account) {
+		if (account < 0)
+			return false;
+		for (int slot = hash(account) & mask; ; slot = (slot + 1) & mask) {
+			int value = slots.getInt(slot << 2);
+			if (value == account)
+				return true;
+			if (value == EMPTY)
+				return false;
+		}
+	}
+
+	/**
+	 * @return number of accounts in set
+	 */
+	public int size() {
+		return size;
+	}
+
+	// store account in first empty slot of its probe sequence, unless already present
+	private boolean insert(int account) {
+		for (int slot = hash(account) & mask; ; slot = (slot + 1) & mask) {
+			int value = slots.getInt(slot << 2);
+			if (value == account)
+				return false;
+			if (value == EMPTY) {
+				slots.putInt(slot << 2, account);
+				return true;
+			}
+		}
+	}
+
+	private void grow() {
+		if (mask + 1 == MAXIMUM_SLOTS)
+			throw new IllegalStateException("OffHeapAccountHashSet full at " + size + " accounts");
+		ByteBuffer old = slots;
+		allocate(2 * (mask + 1));
+		for (int i = 0; i < old.capacity(); i += 4) {
+			int value = old.getInt(i);
+			if (value != EMPTY)
+				insert(value);
+		}
+	}
+
+	private void allocate(int nbrSlots) {
+		slots = ByteBuffer.allocateDirect(4 * nbrSlots).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < 4 * nbrSlots; i += 4) {
+			slots.putInt(i, EMPTY);
+		}
+		mask = nbrSlots - 1;
+	}
+
+	// spread sequential account numbers across the table
+	private static int hash(int account) {
+		int h = account * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,247 @@
+package us.stangl.katabankocr;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Object that applies a block parser across an entire input file using
+ * multiple threads. The file is memory-mapped and split into block-aligned
+ * chunks, each parsed as a separate task in a ForkJoinPool, and the results
+ * are returned in original file order.
+ *
+ * Finding block-aligned chunk boundaries requires a quick sequential scan
+ * for line terminators; all glyph decoding and parsing runs in parallel.
+ * Block parsers must be thread-safe, as are all the parsers in this package.
+ *
+ * @author Alex Stangl
+ */
+public class ParallelOcrFileParser {
+	/** Default approximate number of bytes of input per parallel task */
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	// number of blocks parsed per call by parsePacked
+	private static final int PACKED_BATCH_SIZE = 1024;
+
+	// size of each mapped window while scanning for chunk boundaries
+	private static final int SCAN_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final ForkJoinPool pool;
+	private final int chunkSize;
+
+	/**
+	 * Create parallel parser using the common ForkJoinPool.
+	 */
+	public ParallelOcrFileParser() {
+		this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param pool pool in which to run parsing tasks
+	 * @param chunkSize approximate number of bytes of input per parsing task
+	 */
+	public ParallelOcrFileParser(ForkJoinPool pool, int chunkSize) {
+		if (pool == null)
+			throw new IllegalArgumentException("Null pool passed to ParallelOcrFileParser");
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("Chunk size " + chunkSize + " not positive");
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Parse OCR data from input file in parallel.
+	 * @param inputFile file to parse
+	 * @param parser thread-safe parser to apply to each block
+	 * @return parsed data, in file order
+	 * @throws OcrParseException if error occurs during parsing
+	 */
+	public <T> List<T> parseFile(final File inputFile, final OcrBlockParser<T> parser) throws OcrParseException {
+		return parseChunks(inputFile, new ChunkParser<T>() {
+			@Override
+			public void parseChunk(ByteBuffer buffer, long chunkOffset, List<T> output) throws OcrParseException {
+				ByteBlockFramer framer = new ByteBlockFramer();
+				OcrBlock.ByteBufferBlock view = new OcrBlock.ByteBufferBlock();
+				int limit = buffer.limit();
+				for (int position = 0, next; (next = framer.frame(buffer, position, limit, true)) != -1; position = next) {
+					if (! framer.isFourthLineBlank(buffer))
+						throw new OcrParseException("Fourth line of block at offset " + (chunkOffset + position) + " of " + inputFile + " not blank");
+					view.reset(buffer, framer);
+					output.add(parser.parse(view));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Parse OCR data from input file in parallel, decoding glyphs directly from the mapped bytes.
+	 * @param inputFile file to parse
+	 * @param parser thread-safe parser to apply to each block
+	 * @return parsed data, in file order, with source offsets set
+	 * @throws OcrParseException if error occurs during parsing, or a block's 4th line is not blank
+	 */
+	public List<AccountResult> parseAccounts(final File inputFile, final AccountBlockParser parser) throws OcrParseException {
+		return parseChunks(inputFile, new ChunkParser<AccountResult>() {
+			@Override
+			public void parseChunk(ByteBuffer buffer, long chunkOffset, List<AccountResult> output) throws OcrParseException {
+				ByteBlockFramer framer = new ByteBlockFramer();
+				MutableAccountResult result = new MutableAccountResult();
+				int limit = buffer.limit();
+				for (int position = 0, next; (next = framer.frame(buffer, position, limit, true)) != -1; position = next) {
+					long blockOffset = chunkOffset + position;
+					if (! framer.isFourthLineBlank(buffer))
+						throw new OcrParseException("Fourth line of block at offset " + blockOffset + " of " + inputFile + " not blank");
+					result.clear();
+					framer.readCellCodes(buffer, result.cellCodes);
+					result.setSourceOffset(blockOffset);
+					parser.parseCellCodes(result);
+					output.add(result.toAccountResult());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Parse OCR data from input file in parallel, a batch of blocks at a time, into packed results.
+	 * @param inputFile file to parse
+	 * @param parser thread-safe parser to apply to each batch of blocks
+	 * @return packed result of each block, as described in BlockBatch, in file order
+	 * @throws OcrParseException if error occurs during parsing, or a block's 4th line is not blank
+	 */
+	public long[] parsePacked(final File inputFile, final BatchBlockParser parser) throws OcrParseException {
+		List<long[]> batches = parseChunks(inputFile, new ChunkParser<long[]>() {
+			@Override
+			public void parseChunk(ByteBuffer buffer, long chunkOffset, List<long[]> output) throws OcrParseException {
+				BlockBatch batch = new BlockBatch(PACKED_BATCH_SIZE);
+				int limit = buffer.limit();
+				try {
+					for (int position = 0; parser.parseBlocks(buffer, position, limit, true, batch) > 0; position = batch.end()) {
+						output.add(Arrays.copyOf(batch.results(), batch.size()));
+					}
+				} catch (OcrParseException e) {
+					throw new OcrParseException(e.getMessage() + " in chunk at offset " + chunkOffset + " of " + inputFile, e);
+				}
+			}
+		});
+		int total = 0;
+		for (long[] batch : batches) {
+			total += batch.length;
+		}
+		long[] retval = new long[total];
+		int index = 0;
+		for (long[] batch : batches) {
+			System.arraycopy(batch, 0, retval, index, batch.length);
+			index += batch.length;
+		}
+		return retval;
+	}
+
+	// parses the blocks of a single block-aligned chunk
+	private interface ChunkParser<R> {
+		void parseChunk(ByteBuffer buffer, long chunkOffset, List<R> output) throws OcrParseException;
+	}
+
+	private <R> List<R> parseChunks(File inputFile, final ChunkParser<R> chunkParser) throws OcrParseException {
+		RandomAccessFile file = null;
+		List<Future<List<R>>> futures = new ArrayList<Future<List<R>>>();
+		boolean normalTermination = false;
+		try {
+			file = new RandomAccessFile(inputFile, "r");
+			FileChannel channel = file.getChannel();
+			List<Long> chunkStarts = findChunkStarts(channel, inputFile);
+			long size = channel.size();
+			for (int i = 0; i < chunkStarts.size(); ++i) {
+				final long chunkOffset = chunkStarts.get(i);
+				long chunkEnd = i + 1 < chunkStarts.size() ? chunkStarts.get(i + 1) : size;
+				final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunkOffset, chunkEnd - chunkOffset);
+				futures.add(pool.submit(new Callable<List<R>>() {
+					@Override
+					public List<R> call() throws OcrParseException {
+						List<R> output = new ArrayList<R>();
+						chunkParser.parseChunk(buffer, chunkOffset, output);
+						return output;
+					}
+				}));
+			}
+			List<R> responseList = new ArrayList<R>();
+			for (Future<List<R>> future : futures) {
+				responseList.addAll(future.get());
+			}
+			normalTermination = true;
+			return responseList;
+		} catch (FileNotFoundException e) {
+			throw new OcrParseException("FileNotFoundException unexpectedly caught trying to read " + inputFile, e);
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to read " + inputFile, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OcrParseException("Interrupted while parsing " + inputFile, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof OcrParseException)
+				throw (OcrParseException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new OcrParseException("Exception unexpectedly caught parsing " + inputFile, cause);
+		} finally {
+			if (! normalTermination) {
+				for (Future<List<R>> future : futures) {
+					future.cancel(false);
+				}
+			}
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					if (normalTermination) {
+						throw new OcrParseException("IOException unexpectedly caught trying to close " + inputFile, e);
+					}
+					// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
+					System.err.println("Suppressing IOException caught during abnormal termination of reading " + inputFile + ": " + e);
+				}
+			}
+		}
+	}
+
+	// scan file sequentially for block boundaries, returning offset of start of each chunk
+	private List<Long> findChunkStarts(FileChannel channel, File inputFile) throws IOException, OcrParseException {
+		List<Long> chunkStarts = new ArrayList<Long>();
+		chunkStarts.add(0L);
+		long size = channel.size();
+		long chunkStart = 0;
+		long windowStart = 0;
+		ByteBlockFramer framer = new ByteBlockFramer();
+		while (windowStart < size) {
+			int windowLength = (int) Math.min(SCAN_WINDOW_SIZE, size - windowStart);
+			boolean endOfInput = windowStart + windowLength == size;
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+			int position = 0;
+			for (int next; (next = framer.frame(buffer, position, windowLength, endOfInput)) != -1; position = next) {
+				long blockOffset = windowStart + position;
+				if (blockOffset - chunkStart >= chunkSize) {
+					chunkStarts.add(blockOffset);
+					chunkStart = blockOffset;
+				}
+			}
+			if (endOfInput)
+				break;
+			if (position == 0)
+				throw new OcrParseException("Block at offset " + windowStart + " of " + inputFile + " larger than window size " + SCAN_WINDOW_SIZE);
+			windowStart += position;
+		}
+		return chunkStarts;
+	}
+}
@@ -0,0 +1,157 @@
+package us.stangl.katabankocr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Immutable record of how far CheckpointingOcrFileParser has got through an
+ * input file: the offset of the next block to parse, the number of blocks
+ * parsed before it, and the length of output written for them.
+ *
+ * Checkpoint files are small property files, replaced atomically, so a crash
+ * while saving leaves the previous checkpoint intact.
+ *
+ * @author Alex Stangl
+ */
+public final class ParseCheckpoint {
+	/** Checkpoint of a parse not yet started */
+	public static final ParseCheckpoint START = new ParseCheckpoint(0, 0, 0);
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final String INPUT_OFFSET = "inputOffset";
+	private static final String BLOCK_INDEX = "blockIndex";
+	private static final String OUTPUT_POSITION = "outputPosition";
+
+	private final long inputOffset;
+	private final long blockIndex;
+	private final long outputPosition;
+
+	/**
+	 * @param inputOffset offset within input of next block to parse
+	 * @param blockIndex number of blocks parsed before it
+	 * @param outputPosition length of output written for those blocks
+	 */
+	public ParseCheckpoint(long inputOffset, long blockIndex, long outputPosition) {
+		if (inputOffset < 0 || blockIndex < 0 || outputPosition < 0)
+			throw new IllegalArgumentException("Negative checkpoint value in " + inputOffset + ", " + blockIndex + ", " + outputPosition);
+		this.inputOffset = inputOffset;
+		this.blockIndex = blockIndex;
+		this.outputPosition = outputPosition;
+	}
+
+	public long getInputOffset() {
+		return inputOffset;
+	}
+
+	public long getBlockIndex() {
+		return blockIndex;
+	}
+
+	public long getOutputPosition() {
+		return outputPosition;
+	}
+
+	/**
+	 * Read checkpoint saved by save.
+	 * @param checkpointFile file to read
+	 * @return checkpoint read, or START if file does not exist
+	 * @throws OcrParseException if file cannot be read or is malformed
+	 */
+	public static ParseCheckpoint load(File checkpointFile) throws OcrParseException {
+		if (! checkpointFile.exists())
+			return START;
+		Properties properties = new Properties();
+		InputStream input = null;
+		try {
+			input = new FileInputStream(checkpointFile);
+			properties.load(input);
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to read checkpoint " + checkpointFile, e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					System.err.println("Suppressing IOException caught closing checkpoint " + checkpointFile + ": " + e);
+				}
+			}
+		}
+		try {
+			return new ParseCheckpoint(Long.parseLong(properties.getProperty(INPUT_OFFSET)),
+					Long.parseLong(properties.getProperty(BLOCK_INDEX)), Long.parseLong(properties.getProperty(OUTPUT_POSITION)));
+		} catch (IllegalArgumentException e) {
+			// includes NumberFormatException
+			throw new OcrParseException("Malformed checkpoint " + checkpointFile, e);
+		}
+	}
+
+	/**
+	 * Save checkpoint durably, atomically replacing any previous checkpoint in file.
+	 * @param checkpointFile file to write
+	 * @throws OcrParseException if file cannot be written
+	 */
+	public void save(File checkpointFile) throws OcrParseException {
+		File temporaryFile = new File(checkpointFile.getPath() + ".tmp");
+		String contents = INPUT_OFFSET + "=" + inputOffset + "\n" + BLOCK_INDEX + "=" + blockIndex + "\n"
+				+ OUTPUT_POSITION + "=" + outputPosition + "\n";
+		FileOutputStream output = null;
+		boolean normalTermination = false;
+		try {
+			output = new FileOutputStream(temporaryFile);
+			output.write(contents.getBytes(US_ASCII));
+			output.getFD().sync();
+			normalTermination = true;
+		} catch (FileNotFoundException e) {
+			throw new OcrParseException("FileNotFoundException unexpectedly caught trying to write " + temporaryFile, e);
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to write " + temporaryFile, e);
+		} finally {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					if (normalTermination)
+						throw new OcrParseException("IOException unexpectedly caught trying to close " + temporaryFile, e);
+					// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
+					System.err.println("Suppressing IOException caught during abnormal termination of writing " + temporaryFile + ": " + e);
+				}
+			}
+		}
+		try {
+			try {
+				Files.move(temporaryFile.toPath(), checkpointFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporaryFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to replace checkpoint " + checkpointFile, e);
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (! (obj instanceof ParseCheckpoint))
+			return false;
+		ParseCheckpoint other = (ParseCheckpoint) obj;
+		return inputOffset == other.inputOffset && blockIndex == other.blockIndex && outputPosition == other.outputPosition;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (31 * (31 * inputOffset + blockIndex) + outputPosition);
+	}
+
+	@Override
+	public String toString() {
+		return "ParseCheckpoint[inputOffset=" + inputOffset + ", blockIndex=" + blockIndex + ", outputPosition=" + outputPosition + "]";
+	}
+}
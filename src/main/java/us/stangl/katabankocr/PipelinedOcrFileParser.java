@@ -0,0 +1,391 @@
+package us.stangl.katabankocr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Object that applies a block parser across an input file in a pipeline of
+ * threads, so reading input overlaps with parsing it, and parsing is spread
+ * over several cores, while results are still delivered in input order.
+ *
+ * A reader stage frames blocks, copying them into batches of raw lines. Batch
+ * n goes to decoder stage n mod N, which parses each of its blocks, through
+ * an OcrBlock view of its lines, with any OcrBlockParser. The calling thread
+ * is the writer stage, taking batch n back from decoder n mod N and passing
+ * its results to the sink in order. Stages are connected by lock-free
+ * single-producer, single-consumer ring buffers, and a fixed set of batches
+ * is preallocated and recycled from writer back to reader, so a slow sink
+ * holds back reading rather than buffering more input. Handing over whole
+ * batches keeps the cost of each handoff small relative to the work in it.
+ *
+ * Framing is strict, or lenient if constructed with a MalformedInputListener,
+ * as with OcrFileParser; the listener is called on the reader thread. If any
+ * stage fails, the others stop and the failure is thrown to the caller. The
+ * block parser must be thread-safe, as are all parsers in this package.
+ *
+ * @author Alex Stangl
+ */
+public class PipelinedOcrFileParser {
+	/** Default number of blocks per batch */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	// batches per decoder, enough for one being decoded, one queued for it, and others on their way to and from writer
+	private static final int BATCHES_PER_DECODER = 4;
+
+	private final int nbrDecoders;
+	private final int batchSize;
+	// null if not measuring
+	private final OcrMetrics metrics;
+	// null if framing strictly
+	private final MalformedInputListener listener;
+
+	/**
+	 * Create parser with a decoder per processor, less one for the reader.
+	 */
+	public PipelinedOcrFileParser() {
+		this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), DEFAULT_BATCH_SIZE, null, null);
+	}
+
+	/**
+	 * @param nbrDecoders number of decoder threads
+	 * @param batchSize number of blocks per batch
+	 * @param metrics metrics to record bytes read into, or null for none
+	 * @param listener receiver of malformed input skipped by lenient framing, or null to frame strictly
+	 */
+	public PipelinedOcrFileParser(int nbrDecoders, int batchSize, OcrMetrics metrics, MalformedInputListener listener) {
+		if (nbrDecoders <= 0)
+			throw new IllegalArgumentException("Number of decoders " + nbrDecoders + " not positive");
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size " + batchSize + " not positive");
+		this.nbrDecoders = nbrDecoders;
+		this.batchSize = batchSize;
+		this.metrics = metrics;
+		this.listener = listener;
+	}
+
+	/**
+	 * Parse OCR data from input file
+	 * @param inputFile file to parse
+	 * @param parser thread-safe parser to apply to each block
+	 * @return parsed data, in input order
+	 * @throws OcrParseException if error occurs during parsing
+	 */
+	public <T> List<T> parseFile(File inputFile, OcrBlockParser<T> parser) throws OcrParseException {
+		final List<T> retval = new ArrayList<T>();
+		parseFile(inputFile, parser, new OcrResultSink<T>() {
+			@Override
+			public void accept(T result) {
+				retval.add(result);
+			}
+		});
+		return retval;
+	}
+
+	/**
+	 * Parse OCR data from input file, passing each result to sink on this thread, in input order.
+	 * @param inputFile file to parse
+	 * @param parser thread-safe parser to apply to each block
+	 * @param sink receiver of parse results
+	 * @throws OcrParseException if error occurs during parsing, or thrown by sink
+	 */
+	public <T> void parseFile(File inputFile, OcrBlockParser<T> parser, OcrResultSink<? super T> sink) throws OcrParseException {
+		FileInputStream input = null;
+		boolean normalTermination = false;
+		try {
+			input = new FileInputStream(inputFile);
+			parse(input.getChannel(), parser, sink, inputFile.toString());
+			normalTermination = true;
+		} catch (FileNotFoundException e) {
+			throw new OcrParseException("FileNotFoundException unexpectedly caught trying to open " + inputFile, e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					if (normalTermination)
+						throw new OcrParseException("IOException unexpectedly caught trying to close " + inputFile, e);
+					// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
+					System.err.println("Suppressing IOException caught during abnormal termination of reading " + inputFile + ": " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse OCR data from channel, which is not closed, passing each result to sink on this thread, in input order.
+	 * @param channel channel to read
+	 * @param parser thread-safe parser to apply to each block
+	 * @param sink receiver of parse results
+	 * @throws OcrParseException if error occurs during parsing, or thrown by sink
+	 */
+	public <T> void parse(ReadableByteChannel channel, OcrBlockParser<T> parser, OcrResultSink<? super T> sink) throws OcrParseException {
+		parse(channel, parser, sink, "channel");
+	}
+
+	private <T> void parse(ReadableByteChannel channel, OcrBlockParser<T> parser, OcrResultSink<? super T> sink, String inputName)
+			throws OcrParseException
+	{
+		new Pipeline<T>(channel, parser, inputName).run(sink);
+	}
+
+	// blocks handed between stages together, with their parse results
+	private static final class Batch {
+		// lines of each block, without line terminators
+		byte[] data = new byte[128];
+		// length of each line, 4 per block
+		final int[] lineLengths;
+		final Object[] results;
+		int size;
+		int dataLength;
+
+		Batch(int batchSize) {
+			this.lineLengths = new int[4 * batchSize];
+			this.results = new Object[batchSize];
+		}
+
+		void add(OcrBlockReader reader) {
+			int needed = dataLength + reader.linesLength();
+			if (needed > data.length)
+				data = Arrays.copyOf(data, Math.max(needed, 2 * data.length));
+			dataLength = reader.copyLines(data, dataLength, lineLengths, 4 * size++);
+		}
+
+		<T> void decode(OcrBlockParser<T> parser) throws OcrParseException {
+			ByteBuffer buffer = ByteBuffer.wrap(data, 0, dataLength);
+			OcrBlock.ByteBufferBlock view = new OcrBlock.ByteBufferBlock();
+			int[] lineOffsets = new int[4];
+			int[] blockLineLengths = new int[4];
+			int offset = 0;
+			for (int block = 0; block < size; ++block) {
+				for (int line = 0; line < 4; ++line) {
+					lineOffsets[line] = offset;
+					blockLineLengths[line] = lineLengths[4 * block + line];
+					offset += blockLineLengths[line];
+				}
+				view.reset(buffer, lineOffsets, blockLineLengths);
+				results[block] = parser.parse(view);
+			}
+		}
+
+		void clear() {
+			Arrays.fill(results, 0, size, null);
+			size = 0;
+			dataLength = 0;
+		}
+	}
+
+	// threads and queues of one parse
+	private final class Pipeline<T> {
+		private final ReadableByteChannel channel;
+		private final OcrBlockParser<T> parser;
+		private final String inputName;
+		// batches emptied by writer, for reader to refill
+		private final SpscRingBuffer<Batch> free;
+		private final List<SpscRingBuffer<Batch>> decoderInputs = new ArrayList<SpscRingBuffer<Batch>>();
+		private final List<SpscRingBuffer<Batch>> decoderOutputs = new ArrayList<SpscRingBuffer<Batch>>();
+		// first failure of any stage, which stops all stages
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		// number of batches read, set once reader reaches end of input, -1 before then
+		private volatile long batchCount = -1;
+
+		Pipeline(ReadableByteChannel channel, OcrBlockParser<T> parser, String inputName) {
+			this.channel = channel;
+			this.parser = parser;
+			this.inputName = inputName;
+			int nbrBatches = BATCHES_PER_DECODER * nbrDecoders;
+			free = new SpscRingBuffer<Batch>(nbrBatches);
+			for (int i = 0; i < nbrBatches; ++i) {
+				free.offer(new Batch(batchSize));
+			}
+			for (int i = 0; i < nbrDecoders; ++i) {
+				decoderInputs.add(new SpscRingBuffer<Batch>(nbrBatches));
+				decoderOutputs.add(new SpscRingBuffer<Batch>(nbrBatches));
+			}
+		}
+
+		void run(OcrResultSink<? super T> sink) throws OcrParseException {
+			List<Thread> threads = new ArrayList<Thread>();
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						read();
+					} catch (Throwable t) {
+						fail(t);
+					}
+				}
+			}, "ocr-pipeline-reader"));
+			for (int i = 0; i < nbrDecoders; ++i) {
+				final int decoder = i;
+				threads.add(new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							decode(decoder);
+						} catch (Throwable t) {
+							fail(t);
+						}
+					}
+				}, "ocr-pipeline-decoder-" + i));
+			}
+			try {
+				for (Thread thread : threads) {
+					thread.setDaemon(true);
+					thread.start();
+				}
+				write(sink);
+			} catch (OcrParseException e) {
+				fail(e);
+			} catch (RuntimeException e) {
+				fail(e);
+			} catch (Error e) {
+				fail(e);
+			} finally {
+				join(threads);
+			}
+			rethrowFailure();
+		}
+
+		// reader stage: fill free batches with blocks, sending batch n to decoder n mod N
+		private void read() throws IOException, OcrParseException {
+			OcrBlockReader reader = new OcrBlockReader(channel, OcrBlockReader.DEFAULT_BUFFER_SIZE, metrics, listener);
+			long sequence = 0;
+			Batch batch = null;
+			while (reader.next()) {
+				if (! reader.isFourthLineBlank())
+					throw new OcrParseException("Fourth line of block at offset " + reader.blockOffset() + " of " + inputName + " not blank");
+				if (batch == null) {
+					batch = take(free);
+					if (batch == null)
+						return;
+				}
+				batch.add(reader);
+				if (batch.size == batchSize) {
+					if (! put(decoderInputs.get((int) (sequence++ % nbrDecoders)), batch))
+						return;
+					batch = null;
+				}
+			}
+			if (batch != null && ! put(decoderInputs.get((int) (sequence++ % nbrDecoders)), batch))
+				return;
+			batchCount = sequence;
+		}
+
+		// decoder stage: parse each batch sent to this decoder, passing it on to writer
+		private void decode(int decoder) throws OcrParseException {
+			SpscRingBuffer<Batch> input = decoderInputs.get(decoder);
+			SpscRingBuffer<Batch> output = decoderOutputs.get(decoder);
+			int attempt = 0;
+			while (true) {
+				Batch batch = input.poll();
+				if (batch == null) {
+					if (failure.get() != null)
+						return;
+					if (batchCount < 0) {
+						attempt = SpscRingBuffer.backOff(attempt);
+						continue;
+					}
+					// reader finished, possibly just after the poll above, so poll once more
+					batch = input.poll();
+					if (batch == null)
+						return;
+				}
+				attempt = 0;
+				batch.decode(parser);
+				if (! put(output, batch))
+					return;
+			}
+		}
+
+		// writer stage: take batches back in order, passing their results to sink and recycling them
+		@SuppressWarnings("unchecked")
+		private void write(OcrResultSink<? super T> sink) throws OcrParseException {
+			long sequence = 0;
+			int attempt = 0;
+			while (true) {
+				Batch batch = decoderOutputs.get((int) (sequence % nbrDecoders)).poll();
+				if (batch == null) {
+					if (failure.get() != null || sequence == batchCount)
+						return;
+					if (Thread.interrupted()) {
+						Thread.currentThread().interrupt();
+						throw new OcrParseException("Interrupted parsing " + inputName);
+					}
+					attempt = SpscRingBuffer.backOff(attempt);
+					continue;
+				}
+				attempt = 0;
+				for (int i = 0; i < batch.size; ++i) {
+					sink.accept((T) batch.results[i]);
+				}
+				batch.clear();
+				// free queue holds every batch, so is never full
+				free.offer(batch);
+				++sequence;
+			}
+		}
+
+		// wait for room in queue, then add batch, returning false if pipeline failed meanwhile
+		private boolean put(SpscRingBuffer<Batch> queue, Batch batch) {
+			for (int attempt = 0; ! queue.offer(batch); attempt = SpscRingBuffer.backOff(attempt)) {
+				if (failure.get() != null)
+					return false;
+			}
+			return true;
+		}
+
+		// wait for batch in queue, then remove it, returning null if pipeline failed meanwhile
+		private Batch take(SpscRingBuffer<Batch> queue) {
+			Batch batch;
+			for (int attempt = 0; (batch = queue.poll()) == null; attempt = SpscRingBuffer.backOff(attempt)) {
+				if (failure.get() != null)
+					return null;
+			}
+			return batch;
+		}
+
+		private void fail(Throwable t) {
+			failure.compareAndSet(null, t);
+		}
+
+		// wait for stage threads to finish, which they do promptly once input is done or pipeline failed
+		private void join(List<Thread> threads) {
+			boolean interrupted = false;
+			for (Thread thread : threads) {
+				while (thread.isAlive()) {
+					try {
+						thread.join();
+					} catch (InterruptedException e) {
+						interrupted = true;
+						fail(new OcrParseException("Interrupted parsing " + inputName, e));
+					}
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		private void rethrowFailure() throws OcrParseException {
+			Throwable t = failure.get();
+			if (t == null)
+				return;
+			if (t instanceof OcrParseException)
+				throw (OcrParseException) t;
+			if (t instanceof IOException)
+				throw new OcrParseException("IOException unexpectedly caught trying to read " + inputName, t);
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			if (t instanceof Error)
+				throw (Error) t;
+			throw new RuntimeException("Programming error - unexpected exception in pipeline stage", t);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package us.stangl.katabankocr;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Error-correcting OCR block parser which weighs segment differences by a
+ * SegmentCostModel, and reports candidates ranked best first, each with its
+ * total cost, lower meaning more likely.
+ *
+ * Like MultiErrorCorrectingBlockParser, it searches for valid account numbers
+ * within a maximum total cost of the scanned glyphs. Rather than stopping at
+ * the nearest distance having any, candidates are kept while within a margin
+ * of the cheapest found: a candidate cheaper than every other by at least the
+ * margin clearly wins, and is automatically corrected, while several within
+ * the margin of the cheapest give status AMB, listed by ascending cost, then
+ * account number. Costs are available from MutableAccountResult and
+ * AccountResult. With the UNIFORM model and a margin of 1, results are the
+ * same as MultiErrorCorrectingBlockParser with a maximum edit count equal to
+ * the maximum cost.
+ *
+ * The search is a depth-first branch and bound over the 9 digit positions,
+ * trying digits of each position cheapest first:
+ *  - each remaining position costs at least its cheapest digit, so branches
+ *    which cannot finish within the bound are cut
+ *  - the last digit is not searched, but computed from the mod 11 checksum
+ *  - once a candidate is found, the bound is lowered to just below its cost
+ *    plus the margin, so the search stops early once the top candidate is
+ *    clearly winning
+ * Each block is also limited to a fixed number of search steps, so worst-case
+ * latency is bounded. A block exhausting its budget is left uncorrected.
+ *
+ * @author Alex Stangl
+ */
+public class RankedCorrectingBlockParser extends BaseOcrBlockParser implements OcrBlockParser<String> {
+	/** Default maximum total cost of a candidate */
+	public static final int DEFAULT_MAX_COST = 4;
+
+	/** Default margin by which a candidate must be cheapest to win */
+	public static final int DEFAULT_WIN_MARGIN = 2;
+
+	/** Default maximum number of search steps per block */
+	public static final int DEFAULT_WORK_BUDGET = 100000;
+
+	private final SegmentCostModel costModel;
+	private final int maxCost;
+	private final int winMargin;
+	private final int workBudget;
+	private final LongAdder budgetExhaustedCount = new LongAdder();
+
+	public RankedCorrectingBlockParser() {
+		this(SegmentCostModel.DROPOUT, DEFAULT_MAX_COST, DEFAULT_WIN_MARGIN, DEFAULT_WORK_BUDGET);
+	}
+
+	/**
+	 * @param costModel weighting of segment differences
+	 * @param maxCost maximum total cost of a candidate, across all digits
+	 * @param winMargin margin by which a candidate must be cheaper than every other to be automatically corrected
+	 * @param workBudget maximum number of search steps per block
+	 */
+	public RankedCorrectingBlockParser(SegmentCostModel costModel, int maxCost, int winMargin, int workBudget) {
+		if (costModel == null)
+			throw new IllegalArgumentException("Null cost model passed to RankedCorrectingBlockParser");
+		if (maxCost < 1)
+			throw new IllegalArgumentException("Maximum cost " + maxCost + " not positive");
+		if (winMargin < 1)
+			throw new IllegalArgumentException("Win margin " + winMargin + " not positive");
+		if (workBudget <= 0)
+			throw new IllegalArgumentException("Work budget " + workBudget + " not positive");
+		this.costModel = costModel;
+		this.maxCost = maxCost;
+		this.winMargin = winMargin;
+		this.workBudget = workBudget;
+	}
+
+	@Override
+	public String parse(OcrBlock block) throws OcrParseException {
+		return parseToString(block);
+	}
+
+	@Override
+	public void parseCellCodes(MutableAccountResult result) {
+		int sum = decodeRawDigits(result);
+		int nbrOfIllegibles = Integer.bitCount(result.getIllegibleMask());
+		if (nbrOfIllegibles == 0 && sum % 11 == 0) {
+			result.setStatus(AccountStatus.OK);
+			return;
+		}
+		Search search = new Search(result);
+		if (search.minimumRemaining[0] <= maxCost && ! search.run(0, 0, 0, 0)) {
+			// incomplete search proves nothing, so leave uncorrected
+			budgetExhaustedCount.increment();
+			result.clearCandidates();
+		}
+		// candidates found before the bound was last lowered may no longer be within it
+		result.rankCandidates(search.bound);
+		int nbrReplacements = result.getCandidateCount();
+		if (nbrReplacements == 1)
+			result.setCorrected(result.getCandidate(0));
+		else if (nbrReplacements > 1)
+			result.setStatus(AccountStatus.AMB);
+		else
+			result.setStatus(nbrOfIllegibles == 0 ? AccountStatus.ERR : AccountStatus.ILL);
+	}
+
+	/**
+	 * @return number of blocks left uncorrected because their search exceeded the work budget
+	 */
+	public long getBudgetExhaustedCount() {
+		return budgetExhaustedCount.sum();
+	}
+
+	// state of search of one block, whose tables are kept in the result's scratch space so are not allocated per block
+	private final class Search {
+		private final MutableAccountResult result;
+		// costs of each digit at each position, at index 10 * position + digit
+		private final int[] costs;
+		// digits of each position, cheapest first, at index 10 * position + rank
+		private final int[] digitOrder;
+		// minimum cost of positions from index onwards
+		private final int[] minimumRemaining;
+		// maximum total cost of candidates still wanted
+		private int bound = maxCost;
+		private int budget = workBudget;
+
+		Search(MutableAccountResult result) {
+			this.result = result;
+			this.costs = result.digitCosts;
+			this.digitOrder = result.digitOrder;
+			this.minimumRemaining = result.minimumRemaining;
+			minimumRemaining[9] = 0;
+			for (int position = 8; position >= 0; --position) {
+				int code = result.cellCodes[position];
+				int base = 10 * position;
+				for (int digit = 0; digit <= 9; ++digit) {
+					int cost = costModel.cost(code, digit);
+					// insertion sort of digits by cost
+					int rank = digit;
+					for (; rank > 0 && costs[base + digitOrder[base + rank - 1]] > cost; --rank) {
+						digitOrder[base + rank] = digitOrder[base + rank - 1];
+					}
+					digitOrder[base + rank] = digit;
+					costs[base + digit] = cost;
+				}
+				minimumRemaining[position] = minimumRemaining[position + 1] + costs[base + digitOrder[base]];
+			}
+		}
+
+		/**
+		 * Offer to result all valid account numbers, within bound, extending the digits chosen so far.
+		 * @param position position of next digit to choose
+		 * @param partialCost total cost of digits chosen so far
+		 * @param partialSum checksum weighted sum of digits chosen so far
+		 * @param partialAccount digits chosen so far
+		 * @return false if work budget exhausted
+		 */
+		boolean run(int position, int partialCost, int partialSum, int partialAccount) {
+			if (--budget < 0)
+				return false;
+			if (position == 8) {
+				// weight of d1 is 1, so checksum leaves only one possible last digit
+				int digit = Math.floorMod(-partialSum, 11);
+				if (digit <= 9) {
+					int cost = partialCost + costs[80 + digit];
+					if (cost <= bound) {
+						result.offerCandidate(partialAccount * 10 + digit, cost);
+						bound = Math.min(bound, cost + winMargin - 1);
+					}
+				}
+				return true;
+			}
+			int base = 10 * position;
+			int weight = 9 - position;
+			for (int rank = 0; rank <= 9; ++rank) {
+				int digit = digitOrder[base + rank];
+				int cost = partialCost + costs[base + digit];
+				// digits are cheapest first, so no later one can be within bound either
+				if (cost + minimumRemaining[position + 1] > bound)
+					break;
+				if (! run(position + 1, cost, partialSum + digit * weight, partialAccount * 10 + digit))
+					return false;
+			}
+			return true;
+		}
+	}
+}
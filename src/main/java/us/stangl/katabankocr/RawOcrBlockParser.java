@@ -1,5 +1,7 @@
 package us.stangl.katabankocr;
 
+import java.nio.ByteBuffer;
+
 /**
  * Object performing most rudimentary parsing of OCR data, showing
  * illegible digits as ? and otherwise performing no further error return/correction.
@@ -11,6 +13,25 @@ public class RawOcrBlockParser extends BaseOcrBlockParser implements OcrBlockPar
 
 	@Override
 	public String parse(OcrBlock block) throws OcrParseException {
-		return parseRawDigitsString(block);
+		return parseToString(block);
+	}
+
+	@Override
+	public void parseCellCodes(MutableAccountResult result) {
+		decodeRawDigits(result);
+	}
+
+	@Override
+	public int parseBlocks(ByteBuffer buffer, int start, int limit, boolean endOfInput, BlockBatch batch) throws OcrParseException {
+		ByteBlockFramer framer = batch.framer;
+		MutableAccountResult result = batch.result;
+		batch.reset(start);
+		for (int position = start, next; ! batch.isFull() && (next = framer.frame(buffer, position, limit, endOfInput)) != -1; position = next) {
+			checkFourthLineBlank(buffer, framer, position);
+			framer.readCellCodes(buffer, result.cellCodes);
+			decodeRawDigits(result);
+			batch.add(position, BlockBatch.pack(result.getAccount(), result.getIllegibleMask(), AccountStatus.UNCHECKED, false, 0), next);
+		}
+		return batch.size();
 	}
 }
@@ -0,0 +1,315 @@
+package us.stangl.katabankocr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Online profile of the corrections made to a scanner's output, used to learn
+ * its drift, e.g., a segment stuck on or dead at a particular cell position.
+ *
+ * The profile counts how often each clean cell code at each of the 9 digit
+ * positions was corrected to each digit. Once one correction of a code at a
+ * position has been seen often enough, and makes up a large enough share of
+ * the corrections of that code there, it is promoted into a fast-path table,
+ * which DriftCorrectingBlockParser consults before its general search. A
+ * promotion is withdrawn again if its share later falls.
+ *
+ * Counters are updated lock-free, so one profile may be shared by all threads
+ * parsing output of the same scanner. Memory is fixed at one counter per
+ * position, clean code and digit, about 360K. Cells holding unexpected
+ * characters are rare, and are not profiled.
+ *
+ * A profile may be exported to a file and imported again, so a warmed
+ * profile survives restarts. The file holds only the nonzero counters, after
+ * an 8-byte header:
+ *    0  int    magic number "KDRF"
+ *    4  short  format version
+ *    6  short  unused, 0
+ * followed by an int count of counters, and for each an int index and long count.
+ *
+ * @author Alex Stangl
+ */
+public final class ScannerDriftProfile {
+	/** Default number of times a correction must be seen before it is promoted */
+	public static final int DEFAULT_PROMOTION_COUNT = 8;
+
+	/** Default percentage of the corrections of a code at a position that one correction must make up to be promoted */
+	public static final int DEFAULT_PROMOTION_PERCENT = 90;
+
+	private static final int MAGIC = 0x4B445246;
+	private static final short VERSION = 1;
+	private static final int POSITIONS = 9;
+	private static final int COUNTERS = POSITIONS * GlyphTable.CLEAN_CODES * 10;
+
+	private final int promotionCount;
+	private final int promotionPercent;
+	// count of corrections to digit of code at position, at index (position * CLEAN_CODES + code) * 10 + digit
+	private final AtomicLongArray counts = new AtomicLongArray(COUNTERS);
+	// promoted digit + 1 of code at position, at index position * CLEAN_CODES + code, or 0 if none
+	private final AtomicIntegerArray promoted = new AtomicIntegerArray(POSITIONS * GlyphTable.CLEAN_CODES);
+
+	public ScannerDriftProfile() {
+		this(DEFAULT_PROMOTION_COUNT, DEFAULT_PROMOTION_PERCENT);
+	}
+
+	/**
+	 * @param promotionCount number of times a correction must be seen before it is promoted
+	 * @param promotionPercent percentage of the corrections of a code at a position that one correction
+	 *     must make up to be promoted, over 50 so only one can be
+	 */
+	public ScannerDriftProfile(int promotionCount, int promotionPercent) {
+		if (promotionCount <= 0)
+			throw new IllegalArgumentException("Promotion count " + promotionCount + " not positive");
+		if (promotionPercent <= 50 || promotionPercent > 100)
+			throw new IllegalArgumentException("Promotion percent " + promotionPercent + " not in range 51-100");
+		this.promotionCount = promotionCount;
+		this.promotionPercent = promotionPercent;
+	}
+
+	/**
+	 * Record that a cell was corrected, promoting or withdrawing the fast-path correction of its code as needed.
+	 * @param position digit position within account, 0-8
+	 * @param code cell code scanned, as described in GlyphTable; ignored if it holds unexpected characters
+	 * @param digit digit cell was corrected to
+	 */
+	public void record(int position, int code, int digit) {
+		checkPosition(position);
+		if (digit < 0 || digit > 9)
+			throw new IllegalArgumentException("Digit " + digit + " not in range 0-9");
+		if (code < 0 || code >= GlyphTable.CLEAN_CODES)
+			return;
+		int cell = position * GlyphTable.CLEAN_CODES + code;
+		counts.incrementAndGet(cell * 10 + digit);
+		evaluate(cell);
+	}
+
+	/**
+	 * @param position digit position within account, 0-8
+	 * @param code cell code scanned, as described in GlyphTable
+	 * @return digit which code at position has been promoted to be corrected to, or -1 if none
+	 */
+	public int promotedDigit(int position, int code) {
+		if (code < 0 || code >= GlyphTable.CLEAN_CODES)
+			return -1;
+		return promoted.get(position * GlyphTable.CLEAN_CODES + code) - 1;
+	}
+
+	/**
+	 * @param position digit position within account, 0-8
+	 * @param code cell code scanned, as described in GlyphTable
+	 * @param digit digit cell was corrected to
+	 * @return number of times code at position was corrected to digit
+	 */
+	public long getCount(int position, int code, int digit) {
+		checkPosition(position);
+		if (digit < 0 || digit > 9)
+			throw new IllegalArgumentException("Digit " + digit + " not in range 0-9");
+		if (code < 0 || code >= GlyphTable.CLEAN_CODES)
+			return 0;
+		return counts.get((position * GlyphTable.CLEAN_CODES + code) * 10 + digit);
+	}
+
+	/**
+	 * @param position digit position within account, 0-8
+	 * @param segment segment position within cell, 0-8, as described in GlyphTable
+	 * @return number of corrections at position which added a segment missing from the scan
+	 */
+	public long getMissingSegmentCount(int position, int segment) {
+		return segmentErrorCount(position, segment, true);
+	}
+
+	/**
+	 * @param position digit position within account, 0-8
+	 * @param segment segment position within cell, 0-8, as described in GlyphTable
+	 * @return number of corrections at position which removed an extra segment from the scan
+	 */
+	public long getExtraSegmentCount(int position, int segment) {
+		return segmentErrorCount(position, segment, false);
+	}
+
+	/**
+	 * @return number of corrections currently promoted to the fast path
+	 */
+	public int getPromotedCount() {
+		int retval = 0;
+		for (int i = 0; i < promoted.length(); ++i) {
+			if (promoted.get(i) != 0)
+				++retval;
+		}
+		return retval;
+	}
+
+	/**
+	 * Write counters to file, atomically replacing any previous export.
+	 * Counters updated concurrently may or may not be included.
+	 * @param profileFile file to write
+	 * @throws OcrParseException if file cannot be written
+	 */
+	public void exportTo(File profileFile) throws OcrParseException {
+		File temporaryFile = new File(profileFile.getPath() + ".tmp");
+		int nbrCounters = 0;
+		long[] snapshot = new long[COUNTERS];
+		for (int i = 0; i < COUNTERS; ++i) {
+			snapshot[i] = counts.get(i);
+			if (snapshot[i] != 0)
+				++nbrCounters;
+		}
+		FileOutputStream fileOutput = null;
+		boolean normalTermination = false;
+		try {
+			fileOutput = new FileOutputStream(temporaryFile);
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+			output.writeInt(MAGIC);
+			output.writeShort(VERSION);
+			output.writeShort(0);
+			output.writeInt(nbrCounters);
+			for (int i = 0; i < COUNTERS; ++i) {
+				if (snapshot[i] != 0) {
+					output.writeInt(i);
+					output.writeLong(snapshot[i]);
+				}
+			}
+			output.flush();
+			fileOutput.getFD().sync();
+			normalTermination = true;
+		} catch (FileNotFoundException e) {
+			throw new OcrParseException("FileNotFoundException unexpectedly caught trying to write " + temporaryFile, e);
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to write " + temporaryFile, e);
+		} finally {
+			if (fileOutput != null) {
+				try {
+					fileOutput.close();
+				} catch (IOException e) {
+					if (normalTermination)
+						throw new OcrParseException("IOException unexpectedly caught trying to close " + temporaryFile, e);
+					// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
+					System.err.println("Suppressing IOException caught during abnormal termination of writing " + temporaryFile + ": " + e);
+				}
+			}
+		}
+		try {
+			try {
+				Files.move(temporaryFile.toPath(), profileFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporaryFile.toPath(), profileFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to replace profile " + profileFile, e);
+		}
+	}
+
+	/**
+	 * Add counters exported by exportTo to this profile's, and promote corrections accordingly.
+	 * @param profileFile file to read
+	 * @return whether file existed and was imported
+	 * @throws OcrParseException if file cannot be read or is malformed, in which case no counters are added
+	 */
+	public boolean importFrom(File profileFile) throws OcrParseException {
+		if (! profileFile.exists())
+			return false;
+		int[] indexes;
+		long[] values;
+		DataInputStream input = null;
+		boolean normalTermination = false;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(profileFile)));
+			if (input.readInt() != MAGIC)
+				throw new OcrParseException(profileFile + " not in scanner drift profile format");
+			short version = input.readShort();
+			if (version != VERSION)
+				throw new OcrParseException("Unsupported scanner drift profile format version " + version + " in " + profileFile);
+			input.readShort();
+			int nbrCounters = input.readInt();
+			if (nbrCounters < 0 || nbrCounters > COUNTERS)
+				throw new OcrParseException("Malformed scanner drift profile " + profileFile + ": " + nbrCounters + " counters");
+			indexes = new int[nbrCounters];
+			values = new long[nbrCounters];
+			for (int i = 0; i < nbrCounters; ++i) {
+				indexes[i] = input.readInt();
+				values[i] = input.readLong();
+				if (indexes[i] < 0 || indexes[i] >= COUNTERS || values[i] < 0)
+					throw new OcrParseException("Malformed scanner drift profile " + profileFile + ": counter " + indexes[i]
+							+ " of " + values[i]);
+			}
+			normalTermination = true;
+		} catch (EOFException e) {
+			throw new OcrParseException("Truncated scanner drift profile " + profileFile, e);
+		} catch (IOException e) {
+			throw new OcrParseException("IOException unexpectedly caught trying to read " + profileFile, e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					if (normalTermination)
+						throw new OcrParseException("IOException unexpectedly caught trying to close " + profileFile, e);
+					// Not throwing OcrParseException here because we are terminating abnormally and don't want to lose the primary exception
+					System.err.println("Suppressing IOException caught during abnormal termination of reading " + profileFile + ": " + e);
+				}
+			}
+		}
+		for (int i = 0; i < indexes.length; ++i) {
+			counts.addAndGet(indexes[i], values[i]);
+		}
+		for (int cell = 0; cell < promoted.length(); ++cell) {
+			evaluate(cell);
+		}
+		return true;
+	}
+
+	// promote the dominant correction of the code at a position, if frequent enough, else withdraw any promotion
+	private void evaluate(int cell) {
+		long total = 0;
+		long best = 0;
+		int bestDigit = 0;
+		for (int digit = 0; digit <= 9; ++digit) {
+			long count = counts.get(cell * 10 + digit);
+			total += count;
+			if (count > best) {
+				best = count;
+				bestDigit = digit;
+			}
+		}
+		boolean promote = best >= promotionCount && best * 100 >= total * promotionPercent;
+		int value = promote ? bestDigit + 1 : 0;
+		// concurrent evaluations of one cell may race, but the next correction recorded there evaluates it again
+		if (promoted.get(cell) != value)
+			promoted.set(cell, value);
+	}
+
+	private long segmentErrorCount(int position, int segment, boolean missing) {
+		checkPosition(position);
+		if (segment < 0 || segment >= GlyphTable.CELL_BITS)
+			throw new IllegalArgumentException("Segment " + segment + " not in range 0-8");
+		int bit = 1 << segment;
+		long retval = 0;
+		for (int code = 0; code < GlyphTable.CLEAN_CODES; ++code) {
+			for (int digit = 0; digit <= 9; ++digit) {
+				int digitCode = GlyphTable.digitCode(digit);
+				boolean differs = missing ? (digitCode & ~code & bit) != 0 : (code & ~digitCode & bit) != 0;
+				if (differs)
+					retval += counts.get((position * GlyphTable.CLEAN_CODES + code) * 10 + digit);
+			}
+		}
+		return retval;
+	}
+
+	private static void checkPosition(int position) {
+		if (position < 0 || position >= POSITIONS)
+			throw new IllegalArgumentException("Position " + position + " not in range 0-8");
+	}
+}
@@ -0,0 +1,142 @@
+package us.stangl.katabankocr;
+
+import java.util.Arrays;
+
+/**
+ * Immutable weighting of the segment differences between a scanned cell and
+ * a digit, for ranking error correction candidates by likelihood.
+ *
+ * Unlike GlyphTable.distance, which counts every difference as 1, each
+ * position has its own cost for a segment missing from the scan (present in
+ * the digit but not scanned) and for an extra segment (scanned but not in the
+ * digit), and a garbage character costs a fixed amount wherever it is.
+ * Scanners which mostly drop segments are modelled by a missing cost lower
+ * than the extra cost, as in DROPOUT. All costs are at least 1, so any cell
+ * not exactly matching a digit costs at least 1.
+ *
+ * Costs of all clean cell codes against all digits are precomputed into a
+ * table on construction; cells with garbage are costed directly.
+ *
+ * @author Alex Stangl
+ */
+public final class SegmentCostModel {
+	/** Model in which every difference costs 1, the same as GlyphTable.distance */
+	public static final SegmentCostModel UNIFORM = of(1, 1, 1);
+
+	/** Model of a scanner which drops segments more often than it adds them */
+	public static final SegmentCostModel DROPOUT = of(1, 2, 2);
+
+	private final int[] missingCosts;
+	private final int[] extraCosts;
+	private final int garbageCost;
+
+	// cost of clean code c against digit d at index 10 * c + d
+	private final int[] table = new int[GlyphTable.CLEAN_CODES * 10];
+
+	private SegmentCostModel(int[] missingCosts, int[] extraCosts, int garbageCost) {
+		for (int position = 0; position < GlyphTable.CELL_BITS; ++position) {
+			checkCost(missingCosts[position]);
+			checkCost(extraCosts[position]);
+		}
+		checkCost(garbageCost);
+		this.missingCosts = missingCosts;
+		this.extraCosts = extraCosts;
+		this.garbageCost = garbageCost;
+		for (int code = 0; code < GlyphTable.CLEAN_CODES; ++code) {
+			for (int digit = 0; digit <= 9; ++digit) {
+				table[10 * code + digit] = computeCost(code, digit);
+			}
+		}
+	}
+
+	/**
+	 * @param missingCost cost of a segment missing from scan, at every position
+	 * @param extraCost cost of an extra segment in scan, at every position
+	 * @param garbageCost cost of a garbage character, at any position
+	 * @return model with specified costs
+	 */
+	public static SegmentCostModel of(int missingCost, int extraCost, int garbageCost) {
+		int[] missingCosts = new int[GlyphTable.CELL_BITS];
+		int[] extraCosts = new int[GlyphTable.CELL_BITS];
+		Arrays.fill(missingCosts, missingCost);
+		Arrays.fill(extraCosts, extraCost);
+		return new SegmentCostModel(missingCosts, extraCosts, garbageCost);
+	}
+
+	/**
+	 * @param position segment position, 0-8, numbered as in GlyphTable
+	 * @param cost cost of a segment missing from scan at specified position
+	 * @return copy of this model with specified cost
+	 */
+	public SegmentCostModel withMissingCost(int position, int cost) {
+		int[] missingCosts = this.missingCosts.clone();
+		missingCosts[checkPosition(position)] = cost;
+		return new SegmentCostModel(missingCosts, extraCosts, garbageCost);
+	}
+
+	/**
+	 * @param position segment position, 0-8, numbered as in GlyphTable
+	 * @param cost cost of an extra segment in scan at specified position
+	 * @return copy of this model with specified cost
+	 */
+	public SegmentCostModel withExtraCost(int position, int cost) {
+		int[] extraCosts = this.extraCosts.clone();
+		extraCosts[checkPosition(position)] = cost;
+		return new SegmentCostModel(missingCosts, extraCosts, garbageCost);
+	}
+
+	public int getMissingCost(int position) {
+		return missingCosts[checkPosition(position)];
+	}
+
+	public int getExtraCost(int position) {
+		return extraCosts[checkPosition(position)];
+	}
+
+	public int getGarbageCost() {
+		return garbageCost;
+	}
+
+	/**
+	 * @param code cell code
+	 * @param digit digit to compare against
+	 * @return cost of differences between cell and specified digit, 0 if it matches exactly
+	 */
+	int cost(int code, int digit) {
+		if (code < GlyphTable.CLEAN_CODES)
+			return table[10 * code + digit];
+		return computeCost(code, digit);
+	}
+
+	private int computeCost(int code, int digit) {
+		int garbage = code >>> GlyphTable.CELL_BITS;
+		int digitCode = GlyphTable.digitCode(digit);
+		int missing = digitCode & ~code & ~garbage & GlyphTable.SEGMENT_MASK;
+		int extra = code & ~digitCode & ~garbage & GlyphTable.SEGMENT_MASK;
+		int retval = Integer.bitCount(garbage) * garbageCost;
+		for (; missing != 0; missing &= missing - 1) {
+			retval += missingCosts[Integer.numberOfTrailingZeros(missing)];
+		}
+		for (; extra != 0; extra &= extra - 1) {
+			retval += extraCosts[Integer.numberOfTrailingZeros(extra)];
+		}
+		return retval;
+	}
+
+	private static void checkCost(int cost) {
+		if (cost < 1 || cost > 1000)
+			throw new IllegalArgumentException("Segment cost " + cost + " not in range 1-1000");
+	}
+
+	private static int checkPosition(int position) {
+		if (position < 0 || position >= GlyphTable.CELL_BITS)
+			throw new IllegalArgumentException("Segment position " + position + " not in range 0-8");
+		return position;
+	}
+
+	@Override
+	public String toString() {
+		return "SegmentCostModel[missing=" + Arrays.toString(missingCosts) + ", extra=" + Arrays.toString(extraCosts)
+				+ ", garbage=" + garbageCost + "]";
+	}
+}
@@ -1,5 +1,7 @@
 package us.stangl.katabankocr;
 
+import java.nio.ByteBuffer;
+
 /**
  * Object which tries to parse series of 4 consecutive
  * lines of "OCR" codes, which look like 7-segment LED
@@ -30,14 +32,33 @@ public class SimpleOcrBlockParser extends BaseOcrBlockParser implements OcrBlock
 	
 	@Override
 	public String parse(OcrBlock block) throws OcrParseException {
-		String rawDigitsString = parseRawDigitsString(block);
-		boolean allLegible = rawDigitsString.indexOf('?') == -1;
-		boolean checksumGood = allLegible && checksumGood(rawDigitsString);
-		StringBuilder retval = new StringBuilder(rawDigitsString);
-		if (! allLegible)
-			retval.append(ILLEGIBLE_SUFFIX);
-		else if (! checksumGood)
-			retval.append(ERROR_SUFFIX);
-		return retval.toString();
+		return parseToString(block);
+	}
+
+	@Override
+	public void parseCellCodes(MutableAccountResult result) {
+		int sum = decodeRawDigits(result);
+		if (result.getIllegibleMask() != 0)
+			result.setStatus(AccountStatus.ILL);
+		else if (sum % 11 == 0)
+			result.setStatus(AccountStatus.OK);
+		else
+			result.setStatus(AccountStatus.ERR);
+	}
+
+	@Override
+	public int parseBlocks(ByteBuffer buffer, int start, int limit, boolean endOfInput, BlockBatch batch) throws OcrParseException {
+		ByteBlockFramer framer = batch.framer;
+		MutableAccountResult result = batch.result;
+		batch.reset(start);
+		for (int position = start, next; ! batch.isFull() && (next = framer.frame(buffer, position, limit, endOfInput)) != -1; position = next) {
+			checkFourthLineBlank(buffer, framer, position);
+			framer.readCellCodes(buffer, result.cellCodes);
+			int sum = decodeRawDigits(result);
+			int illegibleMask = result.getIllegibleMask();
+			AccountStatus status = illegibleMask != 0 ? AccountStatus.ILL : sum % 11 == 0 ? AccountStatus.OK : AccountStatus.ERR;
+			batch.add(position, BlockBatch.pack(result.getAccount(), illegibleMask, status, false, 0), next);
+		}
+		return batch.size();
 	}
 }
@@ -0,0 +1,102 @@
+package us.stangl.katabankocr;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free bounded queue for handing objects from exactly one producer
+ * thread to exactly one consumer thread.
+ *
+ * Elements live in a power-of-2 sized array indexed by ever-increasing head
+ * and tail counters. Each counter is written only by its own side, with an
+ * ordered (release) store, so neither offer nor poll ever locks, spins on a
+ * compare-and-set, or allocates. Each side caches the last value it read of
+ * the other's counter, and only rereads it when the cached value says the
+ * queue is full or empty, so the two threads rarely touch the same cache line.
+ *
+ * Callers which must wait for room or for an element poll repeatedly,
+ * calling backOff between attempts.
+ *
+ * @param <E> type of element
+ * @author Alex Stangl
+ */
+final class SpscRingBuffer<E> {
+	private static final int SPIN_ATTEMPTS = 64;
+	private static final int YIELD_ATTEMPTS = 128;
+	private static final long PARK_NANOS = 50000;
+
+	private final Object[] elements;
+	private final int mask;
+	// index of next element to poll, written only by consumer
+	private final AtomicLong head = new AtomicLong();
+	// index of next element to offer, written only by producer
+	private final AtomicLong tail = new AtomicLong();
+	// producer's last read of head
+	private long cachedHead;
+	// consumer's last read of tail
+	private long cachedTail;
+
+	/**
+	 * @param minimumCapacity minimum number of elements held, rounded up to a power of 2
+	 */
+	SpscRingBuffer(int minimumCapacity) {
+		if (minimumCapacity <= 0 || minimumCapacity > 1 << 30)
+			throw new IllegalArgumentException("Ring buffer capacity " + minimumCapacity + " not in range 1-2^30");
+		int capacity = Integer.highestOneBit(minimumCapacity);
+		if (capacity < minimumCapacity)
+			capacity <<= 1;
+		this.elements = new Object[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Add element, if there is room. Call only from the producer thread.
+	 * @param element non-null element to add
+	 * @return true if added, false if full
+	 */
+	boolean offer(E element) {
+		long index = tail.get();
+		if (index - cachedHead == elements.length) {
+			cachedHead = head.get();
+			if (index - cachedHead == elements.length)
+				return false;
+		}
+		elements[(int) index & mask] = element;
+		// publishes element to consumer
+		tail.lazySet(index + 1);
+		return true;
+	}
+
+	/**
+	 * Remove oldest element, if any. Call only from the consumer thread.
+	 * @return element removed, or null if empty
+	 */
+	@SuppressWarnings("unchecked")
+	E poll() {
+		long index = head.get();
+		if (index == cachedTail) {
+			cachedTail = tail.get();
+			if (index == cachedTail)
+				return null;
+		}
+		int slot = (int) index & mask;
+		E retval = (E) elements[slot];
+		elements[slot] = null;
+		// releases slot to producer
+		head.lazySet(index + 1);
+		return retval;
+	}
+
+	/**
+	 * Wait a little before retrying an offer or poll: spin at first, then yield, then park.
+	 * @param attempt number of unsuccessful attempts so far
+	 * @return attempt + 1
+	 */
+	static int backOff(int attempt) {
+		if (attempt >= YIELD_ATTEMPTS)
+			LockSupport.parkNanos(PARK_NANOS);
+		else if (attempt >= SPIN_ATTEMPTS)
+			Thread.yield();
+		return attempt + 1;
+	}
+}
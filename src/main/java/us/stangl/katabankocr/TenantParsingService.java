@@ -0,0 +1,415 @@
+package us.stangl.katabankocr;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-lived service parsing the feeds of many tenants, e.g., customers, on
+ * a shared pool of worker threads, so that one tenant's huge feed does not
+ * starve other tenants' small, latency-sensitive ones.
+ *
+ * Each tenant has its own bounded queue of feeds, a weight, and a limit on
+ * how many of its feeds may be parsed at once. A caller submitting to a full
+ * queue waits for room, so a tenant's producers are held back without
+ * affecting other tenants. Free workers take the next feed from the eligible
+ * tenant which has received the least service relative to its weight
+ * (stride scheduling). Service is charged in blocks parsed, so a tenant
+ * submitting few large feeds and one submitting many small ones get the same
+ * share of the workers at the same weight. A tenant which was idle resumes at
+ * the current virtual time, rather than catching up on service it did not
+ * ask for.
+ *
+ * A worker parses a feed in slices of a bounded number of blocks, then
+ * requeues it ahead of its tenant's unstarted feeds and schedules afresh, so
+ * even when every worker is busy with huge feeds, another tenant's small feed
+ * waits at most one slice. A feed counts towards its tenant's concurrency
+ * limit from its first slice until its last.
+ *
+ * Feeds are files, or streams such as in-memory ByteArrayInputStreams, which
+ * are closed once parsed. Each submission returns a CompletableFuture of the
+ * feed's results, completed exceptionally with the OcrParseException, or
+ * Error, which stopped it, so one bad feed does not affect others, and the
+ * worker parsing it carries on with the next. The exception is a
+ * VirtualMachineError, such as OutOfMemoryError, which after failing the
+ * feed is rethrown, ending the worker. Per-tenant counts and
+ * latency percentiles are available as TenantStats. The block parser must be
+ * thread-safe, as are all parsers in this package.
+ *
+ * @param <T> type of parse result
+ * @author Alex Stangl
+ */
+public class TenantParsingService<T> implements Closeable {
+	// virtual time charged per block parsed, divided by tenant's weight
+	private static final long STRIDE = 1L << 20;
+
+	/** Default maximum number of blocks parsed before a worker reschedules */
+	public static final int DEFAULT_SLICE_BLOCKS = 256;
+
+	private final OcrFileParser fileParser;
+	private final OcrBlockParser<T> parser;
+	private final int sliceSize;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition workAvailable = lock.newCondition();
+	// guarded by lock; in registration order, which breaks ties between tenants
+	private final Map<String, Tenant> tenants = new LinkedHashMap<String, Tenant>();
+	// guarded by lock: pass of tenant most recently dispatched
+	private long virtualTime;
+	private boolean closed;
+
+	/**
+	 * Create service with one worker per processor.
+	 * @param parser thread-safe parser to apply to each block
+	 */
+	public TenantParsingService(OcrBlockParser<T> parser) {
+		this(new OcrFileParser(), parser, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param fileParser parser to apply to each feed, e.g., constructed with OcrMetrics
+	 * @param parser thread-safe parser to apply to each block
+	 * @param nbrWorkers number of worker threads, shared by all tenants
+	 */
+	public TenantParsingService(OcrFileParser fileParser, OcrBlockParser<T> parser, int nbrWorkers) {
+		this(fileParser, parser, nbrWorkers, DEFAULT_SLICE_BLOCKS);
+	}
+
+	/**
+	 * @param fileParser parser to apply to each feed, e.g., constructed with OcrMetrics
+	 * @param parser thread-safe parser to apply to each block
+	 * @param nbrWorkers number of worker threads, shared by all tenants
+	 * @param sliceSize maximum number of blocks parsed before a worker reschedules
+	 */
+	public TenantParsingService(OcrFileParser fileParser, OcrBlockParser<T> parser, int nbrWorkers, int sliceSize) {
+		if (fileParser == null)
+			throw new IllegalArgumentException("Null file parser passed to TenantParsingService");
+		if (parser == null)
+			throw new IllegalArgumentException("Null parser passed to TenantParsingService");
+		if (nbrWorkers <= 0)
+			throw new IllegalArgumentException("Number of workers " + nbrWorkers + " not positive");
+		if (sliceSize <= 0)
+			throw new IllegalArgumentException("Slice size " + sliceSize + " not positive");
+		this.fileParser = fileParser;
+		this.parser = parser;
+		this.sliceSize = sliceSize;
+		for (int i = 0; i < nbrWorkers; ++i) {
+			Thread worker = new Thread(new Worker(), "ocr-tenant-worker-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Register tenant, so feeds may be submitted for it.
+	 * @param tenantId unique identifier of tenant
+	 * @param weight relative share of workers tenant receives while others also have feeds queued
+	 * @param maxConcurrentFeeds maximum number of tenant's feeds parsed at once
+	 * @param queueCapacity maximum number of tenant's feeds queued and not yet being parsed
+	 * @throws IllegalArgumentException if tenant already registered, or a limit is not positive
+	 */
+	public void addTenant(String tenantId, int weight, int maxConcurrentFeeds, int queueCapacity) {
+		if (tenantId == null)
+			throw new IllegalArgumentException("Null tenant passed to TenantParsingService");
+		if (weight <= 0)
+			throw new IllegalArgumentException("Weight " + weight + " of tenant " + tenantId + " not positive");
+		if (maxConcurrentFeeds <= 0)
+			throw new IllegalArgumentException("Maximum concurrent feeds " + maxConcurrentFeeds + " of tenant " + tenantId + " not positive");
+		if (queueCapacity <= 0)
+			throw new IllegalArgumentException("Queue capacity " + queueCapacity + " of tenant " + tenantId + " not positive");
+		lock.lock();
+		try {
+			if (tenants.containsKey(tenantId))
+				throw new IllegalArgumentException("Tenant " + tenantId + " already registered");
+			tenants.put(tenantId, new Tenant(tenantId, weight, maxConcurrentFeeds, queueCapacity));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queue file for parsing on behalf of tenant, waiting for room in tenant's queue.
+	 * @param tenantId tenant submitting file
+	 * @param file file to parse
+	 * @return future of file's results
+	 * @throws OcrParseException if interrupted waiting for room
+	 * @throws IllegalArgumentException if tenant not registered
+	 * @throws IllegalStateException if service closed
+	 */
+	public CompletableFuture<List<T>> submit(String tenantId, File file) throws OcrParseException {
+		if (file == null)
+			throw new IllegalArgumentException("Null file passed to TenantParsingService");
+		return enqueue(tenantId, new Feed(file, null));
+	}
+
+	/**
+	 * Queue stream for parsing on behalf of tenant, waiting for room in tenant's queue.
+	 * The stream is closed once parsed.
+	 * @param tenantId tenant submitting stream
+	 * @param input stream to parse, e.g., a ByteArrayInputStream
+	 * @return future of stream's results
+	 * @throws OcrParseException if interrupted waiting for room
+	 * @throws IllegalArgumentException if tenant not registered
+	 * @throws IllegalStateException if service closed
+	 */
+	public CompletableFuture<List<T>> submit(String tenantId, InputStream input) throws OcrParseException {
+		if (input == null)
+			throw new IllegalArgumentException("Null input passed to TenantParsingService");
+		return enqueue(tenantId, new Feed(null, input));
+	}
+
+	/**
+	 * @param tenantId tenant to report on
+	 * @return snapshot of tenant's statistics
+	 * @throws IllegalArgumentException if tenant not registered
+	 */
+	public TenantStats getStats(String tenantId) {
+		lock.lock();
+		try {
+			Tenant tenant = tenant(tenantId);
+			return new TenantStats(tenantId, tenant.queue.size(), tenant.running, tenant.submittedCount, tenant.completedCount,
+					tenant.failedCount, tenant.blocksParsed, tenant.parseNanos, tenant.latency.bucketCounts());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting feeds. Workers finish feeds already queued, then exit.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			workAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private CompletableFuture<List<T>> enqueue(String tenantId, Feed feed) throws OcrParseException {
+		lock.lock();
+		try {
+			Tenant tenant = tenant(tenantId);
+			while (tenant.queue.size() == tenant.queueCapacity && ! closed) {
+				try {
+					tenant.notFull.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new OcrParseException("Interrupted waiting for room in queue of tenant " + tenantId, e);
+				}
+			}
+			if (closed)
+				throw new IllegalStateException("TenantParsingService closed");
+			// an idle tenant resumes at current virtual time, rather than with credit for time it was idle
+			if (tenant.queue.isEmpty() && tenant.running == 0)
+				tenant.pass = Math.max(tenant.pass, virtualTime);
+			feed.submitNanos = System.nanoTime();
+			tenant.queue.add(feed);
+			++tenant.submittedCount;
+			workAvailable.signal();
+			return feed.future;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// guarded by lock
+	private Tenant tenant(String tenantId) {
+		Tenant retval = tenants.get(tenantId);
+		if (retval == null)
+			throw new IllegalArgumentException("Tenant " + tenantId + " not registered");
+		return retval;
+	}
+
+	// guarded by lock: tenant with a started feed to resume, or with a queued feed and below its concurrency limit,
+	// which has least pass, or null if none
+	private Tenant nextTenant() {
+		Tenant retval = null;
+		for (Tenant tenant : tenants.values()) {
+			boolean eligible = ! tenant.resumable.isEmpty() || (! tenant.queue.isEmpty() && tenant.running < tenant.maxConcurrentFeeds);
+			if (eligible && (retval == null || tenant.pass < retval.pass))
+				retval = tenant;
+		}
+		return retval;
+	}
+
+	// guarded by lock
+	private boolean isIdle() {
+		for (Tenant tenant : tenants.values()) {
+			if (! tenant.queue.isEmpty() || ! tenant.resumable.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	// parse up to sliceSize more blocks of feed into its results, opening it first if need be
+	private void parseSlice(Feed feed) throws OcrParseException {
+		if (feed.iterator == null) {
+			feed.iterator = feed.file != null ? fileParser.iterator(feed.file, parser)
+					: fileParser.iterator(Channels.newChannel(feed.input), parser);
+		}
+		try {
+			for (int i = 0; i < sliceSize && feed.iterator.hasNext(); ++i) {
+				feed.results.add(feed.iterator.next());
+			}
+		} catch (UncheckedOcrParseException e) {
+			throw e.getCause();
+		}
+	}
+
+	// close input of finished feed, returning failure to report: that passed, or else any failure to close
+	private Throwable close(Feed feed, Throwable failure) {
+		try {
+			if (feed.iterator != null)
+				feed.iterator.close();
+			else if (feed.input != null)
+				feed.input.close();
+		} catch (IOException e) {
+			if (failure == null)
+				return new OcrParseException("IOException unexpectedly caught trying to close feed", e);
+			// Not reporting this because we are terminating abnormally and don't want to lose the primary exception
+			System.err.println("Suppressing IOException caught during abnormal termination of reading feed: " + e);
+		}
+		return failure;
+	}
+
+	// parses slices of feeds from tenants' queues, in scheduled order, until closed and all queues empty
+	private final class Worker implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				Tenant tenant;
+				Feed feed;
+				lock.lock();
+				try {
+					while ((tenant = nextTenant()) == null) {
+						if (closed && isIdle())
+							return;
+						workAvailable.awaitUninterruptibly();
+					}
+					// finish feeds already started before starting more
+					feed = tenant.resumable.poll();
+					if (feed == null) {
+						feed = tenant.queue.poll();
+						++tenant.running;
+						tenant.notFull.signal();
+					}
+					virtualTime = tenant.pass;
+					// charge one block now, so the tenant yields to others while the slice is parsed
+					tenant.pass += tenant.stride;
+				} finally {
+					lock.unlock();
+				}
+
+				long start = System.nanoTime();
+				int resultsBefore = feed.results.size();
+				Throwable failure = null;
+				try {
+					parseSlice(feed);
+				} catch (OcrParseException e) {
+					failure = e;
+				} catch (RuntimeException e) {
+					failure = new OcrParseException(e.getClass().getSimpleName() + " unexpectedly caught trying to parse feed of tenant "
+							+ tenant.tenantId, e);
+				} catch (Error e) {
+					// fail the feed, so its caller is not left waiting and tenant's slot is not lost;
+					// a VirtualMachineError is rethrown below, but any other is confined to this feed
+					failure = e;
+				} finally {
+					int blocks = feed.results.size() - resultsBefore;
+					// a failed or short slice finishes the feed
+					boolean finished = failure != null || blocks < sliceSize;
+					if (finished)
+						failure = close(feed, failure);
+					long end = System.nanoTime();
+					lock.lock();
+					try {
+						tenant.parseNanos += end - start;
+						// charge remaining blocks of slice, now they are known
+						tenant.pass += Math.max(0, blocks - 1) * tenant.stride;
+						if (! finished) {
+							tenant.resumable.add(feed);
+						} else {
+							--tenant.running;
+							if (failure != null) {
+								++tenant.failedCount;
+							} else {
+								++tenant.completedCount;
+								tenant.blocksParsed += feed.results.size();
+							}
+						}
+						// tenant's concurrency limit may have been holding back its next feed
+						workAvailable.signalAll();
+					} finally {
+						lock.unlock();
+					}
+					if (finished) {
+						tenant.latency.record(end - feed.submitNanos);
+						if (failure != null)
+							feed.future.completeExceptionally(failure);
+						else
+							feed.future.complete(feed.results);
+					}
+				}
+				if (failure instanceof VirtualMachineError)
+					throw (VirtualMachineError) failure;
+			}
+		}
+	}
+
+	// queued file or stream, its progress, and future of its results
+	private final class Feed {
+		final File file;
+		final InputStream input;
+		final CompletableFuture<List<T>> future = new CompletableFuture<List<T>>();
+		final List<T> results = new ArrayList<T>();
+		// opened by first slice; touched only by the worker parsing a slice
+		OcrResultIterator<T> iterator;
+		long submitNanos;
+
+		Feed(File file, InputStream input) {
+			this.file = file;
+			this.input = input;
+		}
+	}
+
+	// scheduling state and statistics of a tenant; guarded by lock, except for latency
+	private final class Tenant {
+		final String tenantId;
+		final long stride;
+		final int maxConcurrentFeeds;
+		final int queueCapacity;
+		final ArrayDeque<Feed> queue = new ArrayDeque<Feed>();
+		// started feeds between slices
+		final ArrayDeque<Feed> resumable = new ArrayDeque<Feed>();
+		final Condition notFull = lock.newCondition();
+		final LatencyHistogram latency = new LatencyHistogram();
+		// number of feeds started and not yet finished
+		int running;
+		// virtual time of service received, advancing by stride per block
+		long pass;
+		long submittedCount;
+		long completedCount;
+		long failedCount;
+		long blocksParsed;
+		long parseNanos;
+
+		Tenant(String tenantId, int weight, int maxConcurrentFeeds, int queueCapacity) {
+			this.tenantId = tenantId;
+			this.stride = STRIDE / weight;
+			this.maxConcurrentFeeds = maxConcurrentFeeds;
+			this.queueCapacity = queueCapacity;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package us.stangl.katabankocr;
+
+/**
+ * Immutable point-in-time copy of the statistics of one tenant of a
+ * TenantParsingService. Latency runs from submission of a feed to completion
+ * of its parse, so includes time queued behind other feeds.
+ *
+ * @author Alex Stangl
+ */
+public final class TenantStats {
+	private final String tenantId;
+	private final int queuedCount;
+	private final int runningCount;
+	private final long submittedCount;
+	private final long completedCount;
+	private final long failedCount;
+	private final long blocksParsed;
+	private final long parseNanos;
+	private final long[] latencyBucketCounts;
+
+	TenantStats(String tenantId, int queuedCount, int runningCount, long submittedCount, long completedCount, long failedCount,
+			long blocksParsed, long parseNanos, long[] latencyBucketCounts)
+	{
+		this.tenantId = tenantId;
+		this.queuedCount = queuedCount;
+		this.runningCount = runningCount;
+		this.submittedCount = submittedCount;
+		this.completedCount = completedCount;
+		this.failedCount = failedCount;
+		this.blocksParsed = blocksParsed;
+		this.parseNanos = parseNanos;
+		this.latencyBucketCounts = latencyBucketCounts;
+	}
+
+	public String getTenantId() {
+		return tenantId;
+	}
+
+	/**
+	 * @return number of feeds queued and not yet being parsed
+	 */
+	public int getQueuedCount() {
+		return queuedCount;
+	}
+
+	/**
+	 * @return number of feeds started and not yet finished
+	 */
+	public int getRunningCount() {
+		return runningCount;
+	}
+
+	public long getSubmittedCount() {
+		return submittedCount;
+	}
+
+	/**
+	 * @return number of feeds parsed successfully
+	 */
+	public long getCompletedCount() {
+		return completedCount;
+	}
+
+	/**
+	 * @return number of feeds whose parse failed
+	 */
+	public long getFailedCount() {
+		return failedCount;
+	}
+
+	/**
+	 * @return number of blocks parsed, in feeds parsed successfully
+	 */
+	public long getBlocksParsed() {
+		return blocksParsed;
+	}
+
+	/**
+	 * @return total time workers spent parsing tenant's feeds, including those which failed
+	 */
+	public long getParseNanos() {
+		return parseNanos;
+	}
+
+	/**
+	 * @return blocks parsed per second of worker time, or 0 if none parsed
+	 */
+	public double getBlocksPerSecond() {
+		return parseNanos == 0 ? 0 : blocksParsed * 1e9 / parseNanos;
+	}
+
+	/**
+	 * @param percentile percentile, in range 0-100
+	 * @return per-feed latency at percentile, to within 12.5%, or 0 if none recorded
+	 */
+	public long getLatencyPercentileNanos(double percentile) {
+		return LatencyHistogram.valueAtPercentile(latencyBucketCounts, percentile);
+	}
+
+	@Override
+	public String toString() {
+		return "TenantStats[tenant=" + tenantId + ", queued=" + queuedCount + ", running=" + runningCount
+				+ ", submitted=" + submittedCount + ", completed=" + completedCount + ", failed=" + failedCount
+				+ ", blocks=" + blocksParsed + ", parseNanos=" + parseNanos
+				+ ", p50=" + getLatencyPercentileNanos(50) + "ns, p99=" + getLatencyPercentileNanos(99) + "ns]";
+	}
+}
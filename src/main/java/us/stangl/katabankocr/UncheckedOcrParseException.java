@@ -0,0 +1,19 @@
+package us.stangl.katabankocr;
+
+/**
+ * Unchecked wrapper for OcrParseException, thrown where the checked
+ * exception cannot be, e.g., from Iterator and Stream methods.
+ * @author Alex Stangl
+ */
+public class UncheckedOcrParseException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public UncheckedOcrParseException(OcrParseException cause) {
+		super(cause.getMessage(), cause);
+	}
+
+	@Override
+	public OcrParseException getCause() {
+		return (OcrParseException) super.getCause();
+	}
+}
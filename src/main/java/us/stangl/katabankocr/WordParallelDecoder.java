@@ -0,0 +1,105 @@
+package us.stangl.katabankocr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decoder of all 9 glyph cells of a block at once, using SWAR (SIMD within a
+ * register) arithmetic on 64-bit words rather than comparing characters one
+ * at a time.
+ *
+ * Each 27-byte glyph row is loaded as 4 longs. Bytewise comparisons against
+ * ' ', '_' and '|' are done 8 bytes at a time, and the resulting byte masks
+ * are compressed to one bit per column, giving 27-bit row masks. Masks of the
+ * 3 rows then yield all 9 cell codes with straight-line shifts, ready for
+ * table lookup in GlyphTable. Results are identical to decoding each position
+ * with GlyphTable.positionBits.
+ *
+ * @author Alex Stangl
+ */
+final class WordParallelDecoder {
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+	// multiplier gathering bit 8i of a word to bit 56+i
+	private static final long GATHER = 0x0102040810204080L;
+
+	private static final long BLANKS = ' ' * ONES;
+	private static final long UNDERSCORES = '_' * ONES;
+	private static final long PIPES = '|' * ONES;
+
+	// middle column of each cell, where '_' belongs, and side columns
+	private static final int MIDDLE_COLUMNS = 0x2492492;
+	private static final int SIDE_COLUMNS = ((1 << 27) - 1) & ~MIDDLE_COLUMNS;
+
+	// number of bytes loaded per row
+	private static final int ROW_BYTES = 32;
+
+	private WordParallelDecoder() {
+	}
+
+	/**
+	 * Decode 9 glyph cells of block, if all 3 rows can be loaded as whole words.
+	 * @param buffer buffer holding block
+	 * @param lineStarts index of start of each line
+	 * @param lineEnds index of end of each line, excluding terminator
+	 * @param cellCodes array to receive cell codes
+	 * @return true if decoded, false if too near end of buffer, in which case cells must be decoded individually
+	 */
+	static boolean readCellCodes(ByteBuffer buffer, int[] lineStarts, int[] lineEnds, int[] cellCodes) {
+		int limit = buffer.limit();
+		if (lineStarts[0] + ROW_BYTES > limit || lineStarts[1] + ROW_BYTES > limit || lineStarts[2] + ROW_BYTES > limit)
+			return false;
+		boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+
+		long row0 = rowBits(buffer, lineStarts[0], lineEnds[0], true, bigEndian);
+		long row1 = rowBits(buffer, lineStarts[1], lineEnds[1], false, bigEndian);
+		long row2 = rowBits(buffer, lineStarts[2], lineEnds[2], false, bigEndian);
+		for (int cell = 0, shift = 0; cell < 9; ++cell, shift += 3) {
+			cellCodes[cell] = cellBits(row0, shift) | cellBits(row1, shift) << 3 | cellBits(row2, shift) << 6;
+		}
+		return true;
+	}
+
+	/**
+	 * @return segment bits of row, one per column as in GlyphTable, in low 32 bits, and garbage bits in high 32 bits
+	 */
+	private static long rowBits(ByteBuffer buffer, int start, int end, boolean topRow, boolean bigEndian) {
+		int blanks = 0;
+		int underscores = 0;
+		int pipes = 0;
+		for (int word = 0; word < 4; ++word) {
+			long value = buffer.getLong(start + 8 * word);
+			if (bigEndian)
+				value = Long.reverseBytes(value);
+			blanks |= equalBytes(value, BLANKS) << (8 * word);
+			underscores |= equalBytes(value, UNDERSCORES) << (8 * word);
+			pipes |= equalBytes(value, PIPES) << (8 * word);
+		}
+		// short lines are implicitly padded with blanks
+		int columns = (1 << Math.min(27, end - start)) - 1;
+		int nonBlanks = ~blanks & columns;
+		// top corners hold no segment in any digit, so any character there counts as a segment
+		int sides = topRow ? nonBlanks : pipes & columns;
+		int segments = (underscores & columns & MIDDLE_COLUMNS) | (sides & SIDE_COLUMNS);
+		return (segments & 0xFFFFFFFFL) | (long) (nonBlanks & ~segments) << 32;
+	}
+
+	/**
+	 * @return 3 segment bits of cell at specified shift within row, with its 3 garbage bits shifted up by CELL_BITS
+	 */
+	private static int cellBits(long rowBits, int shift) {
+		int segments = (int) (rowBits >>> shift) & 7;
+		int garbage = (int) (rowBits >>> (32 + shift)) & 7;
+		return segments | garbage << GlyphTable.CELL_BITS;
+	}
+
+	/**
+	 * @return 8-bit mask with bit i set if byte i (little-endian) of value equals byte i of pattern
+	 */
+	private static int equalBytes(long value, long pattern) {
+		long difference = value ^ pattern;
+		// high bit of each byte set exactly where difference byte is zero, without borrows between bytes
+		long zeroes = ~(((difference & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | difference | LOW_SEVEN_BITS);
+		return (int) (((zeroes >>> 7) * GATHER) >>> 56);
+	}
+}
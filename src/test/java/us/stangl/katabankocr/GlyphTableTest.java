@@ -0,0 +1,86 @@
+package us.stangl.katabankocr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GlyphTableTest {
+	private static final char[] CELL_CHARS = { ' ', '_', '|', 'x' };
+
+	@Test
+	public void testTableAgreesWithCharacterComparison() {
+		String[] cell = new String[3];
+		char[][] rows = new char[3][3];
+		int combinations = 1;
+		for (int i = 0; i < 9; ++i) {
+			combinations *= CELL_CHARS.length;
+		}
+		for (int combination = 0; combination < combinations; ++combination) {
+			int remaining = combination;
+			for (int position = 0; position < 9; ++position) {
+				rows[position / 3][position % 3] = CELL_CHARS[remaining % CELL_CHARS.length];
+				remaining /= CELL_CHARS.length;
+			}
+			for (int row = 0; row < 3; ++row) {
+				cell[row] = new String(rows[row]);
+			}
+			int code = GlyphTable.cellCode(cell, 0);
+			int expectedDigit = -1;
+			int expectedNeighbours = 0;
+			for (int digit = 0; digit <= 9; ++digit) {
+				int differences = referenceDifferences(cell, digit);
+				assertEquals(differences, GlyphTable.distance(code, digit));
+				if (differences == 0)
+					expectedDigit = digit;
+				else if (differences == 1)
+					expectedNeighbours |= 1 << digit;
+			}
+			assertEquals(expectedDigit, GlyphTable.digit(code));
+			assertEquals(expectedNeighbours, GlyphTable.neighbours(code));
+		}
+	}
+
+	// straightforward character-by-character comparison against reference glyphs
+	private static int referenceDifferences(String[] cell, int digit) {
+		int retval = 0;
+		for (int row = 0; row < 3; ++row) {
+			for (int index = 0; index < 3; ++index) {
+				if (cell[row].charAt(index) != BaseOcrBlockParser.DIGITS_LINES[row].charAt(3 * digit + index))
+					++retval;
+			}
+		}
+		return retval;
+	}
+
+	@Test
+	public void testWordParallelDecoderAgreesWithIndividualDecoding() {
+		byte[] alphabet = { ' ', '_', '|', 'x', '\t', (byte) 0xFC };
+		Random random = new Random(1234L);
+		ByteBlockFramer framer = new ByteBlockFramer();
+		int[] expected = new int[9];
+		int[] actual = new int[9];
+		for (int trial = 0; trial < 20000; ++trial) {
+			// 3 lines of random length, lots of slack so whole words can be loaded
+			ByteBuffer buffer = ByteBuffer.allocate(200);
+			buffer.order(trial % 2 == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < buffer.capacity(); ++i) {
+				buffer.put(i, alphabet[random.nextInt(alphabet.length)]);
+			}
+			int position = random.nextInt(5);
+			for (int line = 0; line < 3; ++line) {
+				framer.lineStarts[line] = position;
+				framer.lineEnds[line] = position + random.nextInt(31);
+				position = framer.lineEnds[line] + 1;
+			}
+			framer.readCellCodesIndividually(buffer, expected);
+			assertTrue(WordParallelDecoder.readCellCodes(buffer, framer.lineStarts, framer.lineEnds, actual));
+			assertTrue(Arrays.equals(expected, actual));
+		}
+	}
+}
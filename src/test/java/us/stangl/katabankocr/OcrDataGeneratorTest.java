@@ -0,0 +1,52 @@
+package us.stangl.katabankocr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OcrDataGeneratorTest {
+	@Test
+	public void testNoiselessOutputParsesToGroundTruth() throws IOException, OcrParseException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		StringWriter truth = new StringWriter();
+		new OcrDataGenerator(NoiseModel.NONE.withInvalidAccountRate(0.3), 42L).generate(1000, data, truth);
+
+		final List<String> parsed = new ArrayList<String>();
+		new OcrFileParser().parse(new ByteArrayInputStream(data.toByteArray()), new SimpleOcrBlockParser(), new OcrResultSink<String>() {
+			@Override
+			public void accept(String result) {
+				parsed.add(result);
+			}
+		});
+		String[] truthLines = truth.toString().split("\n");
+		assertEquals(1000, parsed.size());
+		assertEquals(1000, truthLines.length);
+		for (int i = 0; i < truthLines.length; ++i) {
+			String[] fields = truthLines[i].split(" ");
+			String expected = fields[1].equals("VALID") ? fields[0] : fields[0] + " ERR";
+			assertEquals(expected, parsed.get(i));
+		}
+	}
+
+	@Test
+	public void testSameSeedGivesSameOutput() throws IOException {
+		NoiseModel noiseModel = NoiseModel.NONE.withSegmentFlipRate(0.5).withMissingCellRate(0.1)
+				.withShortLineRate(0.1).withAmbiguousGlyphRate(0.1);
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		StringWriter truth = new StringWriter();
+		new OcrDataGenerator(noiseModel, 7L).generate(500, first, truth);
+		new OcrDataGenerator(noiseModel, 7L).generate(500, second, null);
+		assertTrue(Arrays.equals(first.toByteArray(), second.toByteArray()));
+		assertTrue(truth.toString().contains(" flip:"));
+	}
+}
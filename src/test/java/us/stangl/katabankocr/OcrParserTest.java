@@ -2,12 +2,38 @@ package us.stangl.katabankocr;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.ObjectName;
 
 import org.junit.Test;
 
@@ -156,6 +182,864 @@ public class OcrParserTest {
 		assertEquals("012345678 ERR", output.get(5));
 	}
 	
+	@Test
+	public void testMappedFileParserMatchesReaderParser() throws OcrParseException {
+		File inputFile = new File("UserStory2Data.txt");
+		List<String> expected = new OcrFileParser().parseFile(inputFile, simpleParser);
+		// small windows force blocks to straddle window boundaries
+		for (int windowSize : new int[] { 120, 257, MappedOcrFileParser.DEFAULT_WINDOW_SIZE }) {
+			List<AccountResult> output = new MappedOcrFileParser(windowSize).parseFile(inputFile, new SimpleOcrBlockParser());
+			assertEquals(expected.size(), output.size());
+			for (int i = 0; i < expected.size(); ++i) {
+				assertEquals(expected.get(i), output.get(i).toString());
+			}
+			assertEquals(0L, output.get(0).getSourceOffset());
+		}
+	}
+	
+	@Test
+	public void testParallelFileParserPreservesOrder() throws OcrParseException {
+		File inputFile = new File("UserStory2Data.txt");
+		List<String> expected = new OcrFileParser().parseFile(inputFile, errorCorrectingParser);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			// chunk size of 1 byte places every block in its own task
+			ParallelOcrFileParser parallelParser = new ParallelOcrFileParser(pool, 1);
+			assertEquals(expected, parallelParser.parseFile(inputFile, errorCorrectingParser));
+			List<AccountResult> accounts = parallelParser.parseAccounts(inputFile, new ErrorCorrectingBlockParser());
+			assertEquals(expected.size(), accounts.size());
+			for (int i = 0; i < expected.size(); ++i) {
+				assertEquals(expected.get(i), accounts.get(i).toString());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	public void testBatchParsingMatchesSingleBlockParsing() throws Exception {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		new OcrDataGenerator(NoiseModel.NONE.withInvalidAccountRate(0.3).withSegmentFlipRate(0.3), 21L).generate(3000, data, null);
+		File inputFile = File.createTempFile("batch", ".txt");
+		try {
+			Files.write(inputFile.toPath(), data.toByteArray());
+			ForkJoinPool pool = new ForkJoinPool(4);
+			try {
+				ParallelOcrFileParser parallelParser = new ParallelOcrFileParser(pool, 16 * 1024);
+				for (BaseOcrBlockParser parser : new BaseOcrBlockParser[] {
+						new RawOcrBlockParser(), new SimpleOcrBlockParser(), new ErrorCorrectingBlockParser() }) {
+					List<AccountResult> expected = new MappedOcrFileParser().parseFile(inputFile, parser);
+					long[] packed = parallelParser.parsePacked(inputFile, parser);
+					assertEquals(expected.size(), packed.length);
+					for (int i = 0; i < packed.length; ++i) {
+						AccountResult result = expected.get(i);
+						assertEquals(result.getAccount(), BlockBatch.account(packed[i]));
+						assertEquals(result.getIllegibleMask(), BlockBatch.illegibleMask(packed[i]));
+						assertEquals(result.getStatus(), BlockBatch.status(packed[i]));
+						assertEquals(result.isCorrected(), BlockBatch.isCorrected(packed[i]));
+						assertEquals(result.getCandidates().length, BlockBatch.candidateCount(packed[i]));
+					}
+				}
+			} finally {
+				pool.shutdown();
+			}
+
+			// a small batch is resumed from where the last call ended
+			byte[] bytes = data.toByteArray();
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			BlockBatch batch = new BlockBatch(7);
+			List<AccountResult> expected = new MappedOcrFileParser().parseFile(inputFile, new SimpleOcrBlockParser());
+			int count = 0;
+			for (int position = 0; new SimpleOcrBlockParser().parseBlocks(buffer, position, bytes.length, true, batch) > 0; position = batch.end()) {
+				for (int i = 0; i < batch.size(); ++i, ++count) {
+					assertEquals(expected.get(count).getSourceOffset(), batch.blockStart(i));
+					assertEquals(expected.get(count).getAccount(), BlockBatch.account(batch.get(i)));
+					assertEquals(expected.get(count).getStatus(), BlockBatch.status(batch.get(i)));
+				}
+			}
+			assertEquals(expected.size(), count);
+		} finally {
+			inputFile.delete();
+		}
+	}
+
+	@Test
+	public void testPipelinedFileParserPreservesOrder() throws Exception {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		new OcrDataGenerator(NoiseModel.NONE.withInvalidAccountRate(0.3).withSegmentFlipRate(0.3), 20L).generate(1000, data, null);
+		File inputFile = File.createTempFile("pipelined", ".txt");
+		try {
+			Files.write(inputFile.toPath(), data.toByteArray());
+			List<String> expected = new OcrFileParser().parseFile(inputFile, errorCorrectingParser);
+			// small batches, not dividing the number of blocks, make many handoffs and a partial last batch
+			PipelinedOcrFileParser pipelinedParser = new PipelinedOcrFileParser(3, 7, null, null);
+			assertEquals(expected, pipelinedParser.parseFile(inputFile, errorCorrectingParser));
+
+			final int[] calls = new int[1];
+			OcrBlockParser<String> failingParser = new OcrBlockParser<String>() {
+				@Override
+				public String parse(OcrBlock block) throws OcrParseException {
+					synchronized (calls) {
+						if (++calls[0] == 500)
+							throw new OcrParseException("Failing block");
+					}
+					return errorCorrectingParser.parse(block);
+				}
+			};
+			try {
+				pipelinedParser.parseFile(inputFile, failingParser);
+				fail("Expected OcrParseException from failing parser");
+			} catch (OcrParseException e) {
+				assertEquals("Failing block", e.getMessage());
+			}
+		} finally {
+			inputFile.delete();
+		}
+	}
+
+	@Test
+	public void testPublisherDeliversOnlyRequestedResultsInOrder() throws Exception {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		new OcrDataGenerator(NoiseModel.NONE.withInvalidAccountRate(0.3).withSegmentFlipRate(0.3), 21L).generate(1000, data, null);
+		File inputFile = File.createTempFile("publisher", ".txt");
+		try {
+			Files.write(inputFile.toPath(), data.toByteArray());
+			List<String> expected = new OcrFileParser().parseFile(inputFile, errorCorrectingParser);
+			ExecutorService executor = Executors.newFixedThreadPool(3);
+			try {
+				// small batches, not dividing the number of blocks, make many batches and a partial last batch
+				OcrResultPublisher<String> publisher = new OcrResultPublisher<String>(inputFile.toPath(), errorCorrectingParser,
+						executor, 7, 3);
+				final List<String> received = new ArrayList<String>();
+				final List<String> violations = new ArrayList<String>();
+				final BlockingQueue<Object> terminal = new ArrayBlockingQueue<Object>(1);
+				final CountDownLatch delivered = new CountDownLatch(1);
+				publisher.subscribe(new Flow.Subscriber<String>() {
+					private Flow.Subscription subscription;
+					private long requested;
+
+					@Override
+					public void onSubscribe(Flow.Subscription subscription) {
+						// request before setting state onNext relies on, which is safe only if onNext cannot overlap this
+						requested = 5;
+						subscription.request(5);
+						try {
+							if (delivered.await(200, TimeUnit.MILLISECONDS))
+								violations.add("onNext signalled during onSubscribe");
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						this.subscription = subscription;
+					}
+
+					@Override
+					public void onNext(String item) {
+						delivered.countDown();
+						if (subscription == null)
+							violations.add("onNext signalled before onSubscribe returned");
+						received.add(item);
+						if (received.size() > requested)
+							violations.add("received " + received.size() + " of " + requested + " requested");
+						if (received.size() % 5 == 0) {
+							requested += 5;
+							subscription.request(5);
+						}
+					}
+
+					@Override
+					public void onError(Throwable throwable) {
+						terminal.add(throwable);
+					}
+
+					@Override
+					public void onComplete() {
+						terminal.add("complete");
+					}
+				});
+				assertEquals("complete", terminal.poll(10, TimeUnit.SECONDS));
+				assertEquals(new ArrayList<String>(), violations);
+				assertEquals(expected, received);
+			} finally {
+				executor.shutdown();
+			}
+
+			// once cancelled, nothing more is delivered, even though more was requested
+			ExecutorService singleExecutor = Executors.newSingleThreadExecutor();
+			try {
+				OcrResultPublisher<String> publisher = new OcrResultPublisher<String>(inputFile.toPath(), errorCorrectingParser,
+						singleExecutor, 7, 3);
+				final List<String> beforeCancel = new ArrayList<String>();
+				final BlockingQueue<Object> cancelled = new ArrayBlockingQueue<Object>(2);
+				publisher.subscribe(new Flow.Subscriber<String>() {
+					private Flow.Subscription subscription;
+
+					@Override
+					public void onSubscribe(Flow.Subscription subscription) {
+						this.subscription = subscription;
+						subscription.request(100);
+					}
+
+					@Override
+					public void onNext(String item) {
+						beforeCancel.add(item);
+						if (beforeCancel.size() == 10) {
+							subscription.cancel();
+							cancelled.add("cancelled");
+						}
+					}
+
+					@Override
+					public void onError(Throwable throwable) {
+						cancelled.add(throwable);
+					}
+
+					@Override
+					public void onComplete() {
+						cancelled.add("complete");
+					}
+				});
+				assertEquals("cancelled", cancelled.poll(10, TimeUnit.SECONDS));
+				// drain passes run on the single thread, so once a task queued behind them has run, any further signal would have been made
+				singleExecutor.submit(new Runnable() {
+					@Override
+					public void run() {
+					}
+				}).get(10, TimeUnit.SECONDS);
+				assertEquals(expected.subList(0, 10), beforeCancel);
+				assertTrue(cancelled.isEmpty());
+			} finally {
+				singleExecutor.shutdown();
+			}
+		} finally {
+			inputFile.delete();
+		}
+	}
+
+	@Test
+	public void testTenantServiceSharesWorkerFairly() throws Exception {
+		final CountDownLatch gateStarted = new CountDownLatch(1);
+		final CountDownLatch gateReleased = new CountDownLatch(1);
+		final StringBuffer order = new StringBuffer();
+		OcrBlockParser<String> recordingParser = new OcrBlockParser<String>() {
+			@Override
+			public String parse(OcrBlock block) throws OcrParseException {
+				String retval = rawParser.parse(block);
+				order.append(retval.charAt(0));
+				if (retval.startsWith("0")) {
+					gateStarted.countDown();
+					try {
+						gateReleased.await();
+					} catch (InterruptedException e) {
+						throw new OcrParseException("Interrupted", e);
+					}
+				}
+				return retval;
+			}
+		};
+		TenantParsingService<String> service = new TenantParsingService<String>(new OcrFileParser(), recordingParser, 1);
+		try {
+			service.addTenant("bulk", 1, 1, 10);
+			service.addTenant("small", 1, 1, 10);
+			List<CompletableFuture<List<String>>> futures = new ArrayList<CompletableFuture<List<String>>>();
+			// gate feed occupies the only worker while the others queue
+			futures.add(service.submit("bulk", tenantFeed("000000000")));
+			assertTrue(gateStarted.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < 4; ++i) {
+				futures.add(service.submit("bulk", tenantFeed("111111111")));
+			}
+			for (int i = 0; i < 4; ++i) {
+				futures.add(service.submit("small", tenantFeed("222222222")));
+			}
+			assertEquals(4, service.getStats("bulk").getQueuedCount());
+			assertEquals(1, service.getStats("bulk").getRunningCount());
+			gateReleased.countDown();
+			for (CompletableFuture<List<String>> future : futures) {
+				assertEquals(1, future.get(10, TimeUnit.SECONDS).size());
+			}
+			// in submission order, small's feeds would wait behind all of bulk's
+			assertEquals("021212121", order.toString());
+
+			CompletableFuture<List<String>> failed = service.submit("small", new ByteArrayInputStream("xxx\nxxx\nxxx\nxxx\n".getBytes()));
+			try {
+				failed.get(10, TimeUnit.SECONDS);
+				fail("Expected ExecutionException for malformed feed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof OcrParseException);
+			}
+			TenantStats bulkStats = service.getStats("bulk");
+			assertEquals(5, bulkStats.getSubmittedCount());
+			assertEquals(5, bulkStats.getCompletedCount());
+			assertEquals(5, bulkStats.getBlocksParsed());
+			assertTrue(bulkStats.getLatencyPercentileNanos(99) > 0);
+			TenantStats smallStats = service.getStats("small");
+			assertEquals(4, smallStats.getCompletedCount());
+			assertEquals(1, smallStats.getFailedCount());
+			assertEquals(0, smallStats.getQueuedCount() + smallStats.getRunningCount());
+		} finally {
+			service.close();
+		}
+		try {
+			service.submit("bulk", tenantFeed("111111111"));
+			fail("Expected IllegalStateException submitting to closed service");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testTenantServicePreemptsHugeFeed() throws Exception {
+		final CountDownLatch gateStarted = new CountDownLatch(1);
+		final CountDownLatch gateReleased = new CountDownLatch(1);
+		final StringBuffer order = new StringBuffer();
+		OcrBlockParser<String> recordingParser = new OcrBlockParser<String>() {
+			@Override
+			public String parse(OcrBlock block) throws OcrParseException {
+				String retval = rawParser.parse(block);
+				order.append(retval.charAt(0));
+				if (retval.startsWith("0")) {
+					gateStarted.countDown();
+					try {
+						gateReleased.await();
+					} catch (InterruptedException e) {
+						throw new OcrParseException("Interrupted", e);
+					}
+				}
+				return retval;
+			}
+		};
+		TenantParsingService<String> service = new TenantParsingService<String>(new OcrFileParser(), recordingParser, 1, 64);
+		try {
+			service.addTenant("bulk", 1, 1, 10);
+			service.addTenant("small", 1, 1, 10);
+			StringBuilder bulkFeed = new StringBuilder();
+			String[] gateLines = driftBlock("000000000");
+			String[] lines = driftBlock("111111111");
+			bulkFeed.append(gateLines[0]).append('\n').append(gateLines[1]).append('\n').append(gateLines[2]).append("\n\n");
+			for (int i = 0; i < 1000; ++i) {
+				bulkFeed.append(lines[0]).append('\n').append(lines[1]).append('\n').append(lines[2]).append("\n\n");
+			}
+			CompletableFuture<List<String>> bulk = service.submit("bulk", new ByteArrayInputStream(bulkFeed.toString().getBytes()));
+			assertTrue(gateStarted.await(10, TimeUnit.SECONDS));
+			CompletableFuture<List<String>> small = service.submit("small", tenantFeed("222222222"));
+			gateReleased.countDown();
+			assertEquals(Arrays.asList("222222222"), small.get(10, TimeUnit.SECONDS));
+			assertEquals(1001, bulk.get(10, TimeUnit.SECONDS).size());
+			// small feed waits only for the slice of the huge feed under way
+			assertEquals(64, order.indexOf("2"));
+			assertEquals(1001, service.getStats("bulk").getBlocksParsed());
+			assertEquals(0, service.getStats("bulk").getRunningCount());
+		} finally {
+			service.close();
+		}
+	}
+
+	@Test
+	public void testTenantServiceLimitsHugeFeedConcurrency() throws Exception {
+		final List<byte[]> hugeFeeds = new ArrayList<byte[]>();
+		for (int i = 0; i < 6; ++i) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			new OcrDataGenerator(NoiseModel.NONE.withSegmentFlipRate(0.3), 30L + i).generate(2000, data, null);
+			hugeFeeds.add(data.toByteArray());
+		}
+		final TenantParsingService<String> service = new TenantParsingService<String>(new OcrFileParser(), errorCorrectingParser, 3);
+		try {
+			service.addTenant("huge", 1, 1, 2);
+			service.addTenant("small", 4, 2, 4);
+			// queue of 2 holds the producer back until feeds are taken
+			final List<CompletableFuture<List<String>>> hugeFutures = new ArrayList<CompletableFuture<List<String>>>();
+			Thread producer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (byte[] feed : hugeFeeds) {
+							hugeFutures.add(service.submit("huge", new ByteArrayInputStream(feed)));
+						}
+					} catch (OcrParseException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			producer.start();
+			List<CompletableFuture<List<String>>> smallFutures = new ArrayList<CompletableFuture<List<String>>>();
+			for (int i = 0; i < 20; ++i) {
+				smallFutures.add(service.submit("small", tenantFeed("490067715")));
+			}
+			List<String> smallExpected = Arrays.asList(errorCorrectingParser.parse(OcrBlock.newInstance(driftBlock("490067715"))));
+			for (CompletableFuture<List<String>> future : smallFutures) {
+				assertEquals(smallExpected, future.get(10, TimeUnit.SECONDS));
+			}
+			for (int i = 0; i < 100 && producer.isAlive(); ++i) {
+				assertTrue(service.getStats("huge").getRunningCount() <= 1);
+				assertTrue(service.getStats("huge").getQueuedCount() <= 2);
+				Thread.sleep(1);
+			}
+			producer.join(30000);
+			assertEquals(hugeFeeds.size(), hugeFutures.size());
+			for (int i = 0; i < hugeFeeds.size(); ++i) {
+				final List<String> expected = new ArrayList<String>();
+				new OcrFileParser().parse(new ByteArrayInputStream(hugeFeeds.get(i)), errorCorrectingParser, new OcrResultSink<String>() {
+					@Override
+					public void accept(String result) {
+						expected.add(result);
+					}
+				});
+				assertEquals(expected, hugeFutures.get(i).get(30, TimeUnit.SECONDS));
+			}
+			assertEquals(12000, service.getStats("huge").getBlocksParsed());
+			assertEquals(20, service.getStats("small").getCompletedCount());
+		} finally {
+			service.close();
+		}
+	}
+
+	@Test
+	public void testTenantServiceSurvivesParserError() throws Exception {
+		OcrBlockParser<String> failingParser = new OcrBlockParser<String>() {
+			@Override
+			public String parse(OcrBlock block) throws OcrParseException {
+				String retval = rawParser.parse(block);
+				if (retval.startsWith("0"))
+					throw new AssertionError("Failing block");
+				return retval;
+			}
+		};
+		// with a single worker, a lost worker or concurrency slot would leave later feeds waiting forever
+		TenantParsingService<String> service = new TenantParsingService<String>(new OcrFileParser(), failingParser, 1);
+		try {
+			service.addTenant("tenant", 1, 1, 10);
+			CompletableFuture<List<String>> failed = service.submit("tenant", tenantFeed("000000000"));
+			CompletableFuture<List<String>> next = service.submit("tenant", tenantFeed("111111111"));
+			try {
+				failed.get(10, TimeUnit.SECONDS);
+				fail("Expected ExecutionException");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof AssertionError);
+			}
+			assertEquals(Arrays.asList("111111111"), next.get(10, TimeUnit.SECONDS));
+			TenantStats stats = service.getStats("tenant");
+			assertEquals(1, stats.getFailedCount());
+			assertEquals(1, stats.getCompletedCount());
+			assertEquals(0, stats.getRunningCount());
+		} finally {
+			service.close();
+		}
+	}
+
+	@Test
+	public void testTenantServiceFailsFeedBeforeRethrowingVirtualMachineError() throws Exception {
+		OcrBlockParser<String> failingParser = new OcrBlockParser<String>() {
+			@Override
+			public String parse(OcrBlock block) throws OcrParseException {
+				String retval = rawParser.parse(block);
+				if (retval.startsWith("0"))
+					throw new StackOverflowError("Failing block");
+				return retval;
+			}
+		};
+		// the worker hitting the error dies, leaving the other to parse the next feed
+		TenantParsingService<String> service = new TenantParsingService<String>(new OcrFileParser(), failingParser, 2);
+		try {
+			service.addTenant("tenant", 1, 1, 10);
+			CompletableFuture<List<String>> failed = service.submit("tenant", tenantFeed("000000000"));
+			CompletableFuture<List<String>> next = service.submit("tenant", tenantFeed("111111111"));
+			try {
+				failed.get(10, TimeUnit.SECONDS);
+				fail("Expected ExecutionException");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof StackOverflowError);
+			}
+			assertEquals(Arrays.asList("111111111"), next.get(10, TimeUnit.SECONDS));
+			assertEquals(1, service.getStats("tenant").getFailedCount());
+		} finally {
+			service.close();
+		}
+	}
+
+	// in-memory feed of a single block of reference glyphs of specified digits
+	private static ByteArrayInputStream tenantFeed(String digits) {
+		String[] lines = driftBlock(digits);
+		return new ByteArrayInputStream((lines[0] + "\n" + lines[1] + "\n" + lines[2] + "\n\n").getBytes());
+	}
+
+	@Test
+	public void testStreamingMatchesList() throws Exception {
+		File inputFile = new File("UserStory2Data.txt");
+		List<String> expected = new OcrFileParser().parseFile(inputFile, simpleParser);
+		Stream<String> stream = new OcrFileParser().stream(inputFile, simpleParser);
+		try {
+			assertEquals(expected, stream.collect(Collectors.toList()));
+		} finally {
+			stream.close();
+		}
+
+		byte[] bytes = Files.readAllBytes(inputFile.toPath());
+		final List<String> sunk = new ArrayList<String>();
+		new OcrFileParser().parse(new ByteArrayInputStream(bytes), simpleParser, new OcrResultSink<String>() {
+			@Override
+			public void accept(String result) {
+				sunk.add(result);
+			}
+		});
+		assertEquals(expected, sunk);
+
+		// tiny buffer must grow to hold a whole block
+		OcrBlockReader reader = new OcrBlockReader(Channels.newChannel(new ByteArrayInputStream(bytes)), 8);
+		List<String> read = new ArrayList<String>();
+		while (reader.next()) {
+			read.add(simpleParser.parse(reader.block()));
+		}
+		assertEquals(expected, read);
+	}
+	
+	@Test
+	public void testLenientFramingSkipsAndReportsMalformedInput() throws Exception {
+		String block1 = "    _  _     _  _  _  _  _ \n  | _| _||_||_ |_   ||_||_|\n  ||_  _|  | _||_|  ||_| _|\n\n";
+		// block with its 3rd line dropped
+		String block2 = " _  _  _  _  _  _  _  _  _ \n| || || || || || || || || |\n\n";
+		String block3 = " _  _  _  _  _  _  _  _  _ \n _| _| _| _| _| _| _| _| _|\n|_ |_ |_ |_ |_ |_ |_ |_ |_ \n\n";
+		String partial = " _  _  _\n";
+		String input = block1 + block2 + block3 + partial;
+		final List<String> ranges = new ArrayList<String>();
+		MalformedInputListener listener = new MalformedInputListener() {
+			@Override
+			public void malformedInput(long offset, long length, String reason) {
+				ranges.add(offset + ":" + length + ":" + reason);
+			}
+		};
+		List<String> expectedRanges = Arrays.asList(
+				block1.length() + ":" + block2.length() + ":" + MalformedRangeTracker.MISALIGNED,
+				(input.length() - partial.length()) + ":" + partial.length() + ":" + MalformedRangeTracker.PARTIAL_BLOCK);
+
+		final List<String> results = new ArrayList<String>();
+		new OcrFileParser(null, listener).parse(new ByteArrayInputStream(input.getBytes("US-ASCII")), simpleParser,
+				new OcrResultSink<String>() {
+			@Override
+			public void accept(String result) {
+				results.add(result);
+			}
+		});
+		assertEquals(Arrays.asList("123456789", "222222222 ERR"), results);
+		assertEquals(expectedRanges, ranges);
+
+		File inputFile = File.createTempFile("lenient", ".txt");
+		try {
+			Files.write(inputFile.toPath(), input.getBytes("US-ASCII"));
+			for (int windowSize : new int[] { 130, MappedOcrFileParser.DEFAULT_WINDOW_SIZE }) {
+				ranges.clear();
+				List<AccountResult> accounts = new MappedOcrFileParser(windowSize, listener).parseFile(inputFile, new SimpleOcrBlockParser());
+				assertEquals(2, accounts.size());
+				assertEquals("222222222 ERR", accounts.get(1).toString());
+				assertEquals(block1.length() + block2.length(), accounts.get(1).getSourceOffset());
+				assertEquals(expectedRanges, ranges);
+			}
+		} finally {
+			inputFile.delete();
+		}
+	}
+	
+	@Test
+	public void testCheckpointedParseResumesWithoutDuplicatesOrLosses() throws Exception {
+		File inputFile = File.createTempFile("checkpoint", ".txt");
+		File outputFile = File.createTempFile("checkpoint", ".out");
+		File checkpointFile = new File(outputFile.getPath() + ".checkpoint");
+		try {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			new OcrDataGenerator(NoiseModel.NONE.withInvalidAccountRate(0.3).withSegmentFlipRate(0.3), 15L).generate(18, data, null);
+			Files.write(inputFile.toPath(), data.toByteArray());
+			int blockLength = data.size() / 18;
+			StringBuilder expected = new StringBuilder();
+			for (AccountResult result : new MappedOcrFileParser().parseFile(inputFile, new ErrorCorrectingBlockParser())) {
+				expected.append(result).append('\n');
+			}
+
+			// crash while parsing 11th block, after checkpoints every 4 blocks
+			final ErrorCorrectingBlockParser parser = new ErrorCorrectingBlockParser();
+			AccountBlockParser crashingParser = new AccountBlockParser() {
+				private int count;
+
+				@Override
+				public void parse(OcrBlock block, MutableAccountResult result) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public void parseCellCodes(MutableAccountResult result) throws OcrParseException {
+					if (++count == 11)
+						throw new OcrParseException("Simulated crash");
+					parser.parseCellCodes(result);
+				}
+			};
+			try {
+				new CheckpointingOcrFileParser(crashingParser, 4, null).parseFile(inputFile, outputFile, checkpointFile);
+				fail("Expected OcrParseException from crashing parser");
+			} catch (OcrParseException e) {
+				assertEquals("Simulated crash", e.getMessage());
+			}
+			ParseCheckpoint checkpoint = ParseCheckpoint.load(checkpointFile);
+			assertEquals(8, checkpoint.getBlockIndex());
+			assertEquals(8 * blockLength, checkpoint.getInputOffset());
+			// output written after checkpoint, as if flushed before crash
+			Files.write(outputFile.toPath(), "partial".getBytes("US-ASCII"), StandardOpenOption.APPEND);
+
+			ParseCheckpoint last = new CheckpointingOcrFileParser(parser, 4, null).parseFile(inputFile, outputFile, checkpointFile);
+			assertEquals(new ParseCheckpoint(data.size(), 18, expected.length()), last);
+			assertEquals(expected.toString(), new String(Files.readAllBytes(outputFile.toPath()), "US-ASCII"));
+			// rerun does nothing
+			assertEquals(last, new CheckpointingOcrFileParser(parser).parseFile(inputFile, outputFile, checkpointFile));
+			assertEquals(expected.toString(), new String(Files.readAllBytes(outputFile.toPath()), "US-ASCII"));
+		} finally {
+			inputFile.delete();
+			outputFile.delete();
+			checkpointFile.delete();
+		}
+	}
+	
+	@Test
+	public void testBinaryResultsRoundTrip() throws Exception {
+		File inputFile = File.createTempFile("binary", ".txt");
+		File outputFile = File.createTempFile("binary", ".bin");
+		try {
+			OutputStream data = new FileOutputStream(inputFile);
+			try {
+				NoiseModel noise = NoiseModel.NONE.withInvalidAccountRate(0.2).withSegmentFlipRate(0.3).withAmbiguousGlyphRate(0.2);
+				new OcrDataGenerator(noise, 16L).generate(3000, data, null);
+			} finally {
+				data.close();
+			}
+			MappedOcrFileParser fileParser = new MappedOcrFileParser();
+			List<AccountResult> expected = fileParser.parseFile(inputFile, new ErrorCorrectingBlockParser());
+			for (int candidateSlots : new int[] { 1, 9 }) {
+				BinaryResultWriter writer = new BinaryResultWriter(new FileOutputStream(outputFile).getChannel(), candidateSlots);
+				try {
+					fileParser.parseFile(inputFile, new ErrorCorrectingBlockParser(), writer);
+				} finally {
+					writer.close();
+				}
+				assertEquals(8 + expected.size() * (16 + 4 * candidateSlots), outputFile.length());
+				BinaryResultReader reader = new BinaryResultReader(outputFile);
+				try {
+					assertEquals(expected.size(), reader.size());
+					boolean anyTruncated = false;
+					for (int i = 0; i < expected.size(); ++i) {
+						AccountResult result = expected.get(i);
+						assertEquals(result.getSourceOffset(), reader.getSourceOffset(i));
+						assertEquals(result.getStatus(), reader.getStatus(i));
+						assertEquals(result.isCorrected(), reader.isCorrected(i));
+						boolean truncated = result.getCandidateCount() > candidateSlots;
+						assertEquals(truncated, reader.isCandidatesTruncated(i));
+						anyTruncated |= truncated;
+						if (! truncated)
+							assertEquals(result, reader.get(i));
+					}
+					assertEquals(candidateSlots == 1, anyTruncated);
+				} finally {
+					reader.close();
+				}
+			}
+
+			// ranked candidates keep their costs through the binary format
+			RankedCorrectingBlockParser rankedParser = new RankedCorrectingBlockParser();
+			List<AccountResult> ranked = fileParser.parseFile(inputFile, rankedParser);
+			BinaryResultWriter writer = new BinaryResultWriter(new FileOutputStream(outputFile).getChannel(), 31, true);
+			try {
+				fileParser.parseFile(inputFile, rankedParser, writer);
+			} finally {
+				writer.close();
+			}
+			assertEquals(8 + ranked.size() * (16 + 8 * 31), outputFile.length());
+			BinaryResultReader reader = new BinaryResultReader(outputFile);
+			try {
+				boolean anyCosted = false;
+				for (int i = 0; i < ranked.size(); ++i) {
+					AccountResult result = ranked.get(i);
+					assertEquals(result, reader.get(i));
+					assertEquals(result.hashCode(), reader.get(i).hashCode());
+					for (int j = 0; j < result.getCandidateCount(); ++j) {
+						assertEquals(result.getCandidateCosts()[j], reader.getCandidateCost(i, j));
+						anyCosted |= result.getCandidateCosts()[j] > 0;
+					}
+				}
+				assertTrue(anyCosted);
+			} finally {
+				reader.close();
+			}
+
+			// records without costs read every cost as 0
+			ByteBuffer withoutCosts = ByteBuffer.allocate(8 + 20);
+			withoutCosts.putInt(0x4B4F4352).putShort((short) 1).putShort((short) 1);
+			withoutCosts.putLong(0).putInt(490067715).putShort((short) 0).put((byte) AccountStatus.AMB.ordinal()).put((byte) 1)
+					.putInt(490867715);
+			Files.write(outputFile.toPath(), withoutCosts.array());
+			reader = new BinaryResultReader(outputFile);
+			try {
+				assertEquals(1, reader.size());
+				assertEquals(490867715, reader.getCandidate(0, 0));
+				assertEquals(0, reader.getCandidateCost(0, 0));
+			} finally {
+				reader.close();
+			}
+
+			// corrupt header or records are rejected on open: 200 candidate slots, unknown status, too many or negative candidates
+			int[][] corruptions = { { 7, 200 }, { 8 + 14, 0x7F }, { 8 + 15, 2 }, { 8 + 15, 0xFF } };
+			for (int[] corruption : corruptions) {
+				byte[] corrupt = withoutCosts.array().clone();
+				corrupt[corruption[0]] = (byte) corruption[1];
+				Files.write(outputFile.toPath(), corrupt);
+				try {
+					new BinaryResultReader(outputFile).close();
+					fail("Expected OcrParseException for corrupt byte " + corruption[0]);
+				} catch (OcrParseException e) {
+					assertTrue(e.getMessage().contains("Malformed"));
+				}
+			}
+		} finally {
+			inputFile.delete();
+			outputFile.delete();
+		}
+	}
+	
+	@Test
+	public void testCachingParserAnswersRepeatsFromCache() throws OcrParseException {
+		File inputFile = new File("UserStory2Data.txt");
+		List<String> expected = new OcrFileParser().parseFile(inputFile, errorCorrectingParser);
+		CachingOcrBlockParser<String> cachingParser = new CachingOcrBlockParser<String>(errorCorrectingParser);
+		assertEquals(expected, new OcrFileParser().parseFile(inputFile, cachingParser));
+		assertEquals(expected, new OcrFileParser().parseFile(inputFile, cachingParser));
+		assertEquals(expected.size(), cachingParser.getMissCount());
+		assertEquals(expected.size(), cachingParser.getHitCount());
+		assertEquals(expected.size(), cachingParser.size());
+	}
+	
+	@Test
+	public void testMeteredParsingCountsStatusesAndBytes() throws Exception {
+		File inputFile = new File("UserStory2Data.txt");
+		OcrMetrics metrics = new OcrMetrics();
+		OcrFileParser fileParser = new OcrFileParser(metrics);
+		fileParser.parseFile(inputFile, new MeteredOcrBlockParser<String>(new ErrorCorrectingBlockParser(metrics), metrics));
+		OcrMetricsSnapshot snapshot = metrics.snapshot();
+		assertEquals(6, snapshot.getBlocksParsed());
+		assertEquals(inputFile.length(), snapshot.getBytesRead());
+		assertEquals(3, snapshot.getCandidateSearchCount());
+		assertEquals(6, snapshot.getOkCount() + snapshot.getIllegibleCount() + snapshot.getErrorCount() + snapshot.getAmbiguousCount());
+		assertTrue(snapshot.getLatencyPercentileNanos(50) <= snapshot.getLatencyPercentileNanos(100));
+
+		OcrMetrics accountMetrics = new OcrMetrics();
+		new OcrFileParser().parseAccounts(Channels.newChannel(new ByteArrayInputStream(Files.readAllBytes(inputFile.toPath()))),
+				new MeteredAccountBlockParser(new ErrorCorrectingBlockParser(), accountMetrics), new OcrResultSink<MutableAccountResult>() {
+			@Override
+			public void accept(MutableAccountResult result) {
+			}
+		});
+		assertEquals(snapshot.getOkCount(), accountMetrics.getOkCount());
+		assertEquals(snapshot.getAmbiguousCount(), accountMetrics.getAmbiguousCount());
+		assertEquals(snapshot.getErrorCount(), accountMetrics.getErrorCount());
+		assertEquals(accountMetrics.getOkCount() - 3, accountMetrics.getCorrectedCount());
+
+		ObjectName name = metrics.register("test");
+		try {
+			assertEquals(6L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "BlocksParsed"));
+		} finally {
+			OcrMetrics.unregister(name);
+		}
+	}
+	
+	@Test
+	public void testIngestionServiceIsolatesBadFiles() throws Exception {
+		File inputFile = new File("UserStory2Data.txt");
+		List<String> expected = new OcrFileParser().parseFile(inputFile, errorCorrectingParser);
+		File directory = Files.createTempDirectory("ingest").toFile();
+		List<File> files = new ArrayList<File>();
+		try {
+			for (int i = 0; i < 20; ++i) {
+				File file = new File(directory, String.format("scan%02d.txt", i));
+				if (i == 7)
+					Files.write(file.toPath(), "bad\nbad\nbad\nbad\n".getBytes("US-ASCII"));
+				else
+					Files.copy(inputFile.toPath(), file.toPath());
+				files.add(file);
+			}
+			final List<FileIngestionResult<String>> outcomes = new ArrayList<FileIngestionResult<String>>();
+			OcrIngestionService<String> service = new OcrIngestionService<String>(errorCorrectingParser, 3);
+			try {
+				service.ingestDirectory(directory, new OcrResultSink<FileIngestionResult<String>>() {
+					@Override
+					public void accept(FileIngestionResult<String> result) {
+						outcomes.add(result);
+					}
+				});
+			} finally {
+				service.close();
+			}
+			assertEquals(20, outcomes.size());
+			for (FileIngestionResult<String> outcome : outcomes) {
+				if (outcome.getFile().equals(files.get(7)))
+					assertTrue(! outcome.isSuccess() && outcome.getFailure() != null);
+				else
+					assertEquals(expected, outcome.getResults());
+			}
+
+			// queue fed from another thread, on caller-supplied executor
+			final BlockingQueue<File> queue = new ArrayBlockingQueue<File>(2);
+			final List<File> queued = files;
+			Thread producer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (File file : queued) {
+							queue.put(file);
+						}
+						queue.put(new File(queued.get(0).getParentFile(), "missing.txt"));
+						queue.put(OcrIngestionService.END_OF_QUEUE);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			producer.start();
+			ExecutorService executor = Executors.newCachedThreadPool();
+			final int[] failures = new int[1];
+			try {
+				new OcrIngestionService<String>(new OcrFileParser(), errorCorrectingParser, executor, 2).ingest(queue,
+						new OcrResultSink<FileIngestionResult<String>>() {
+					@Override
+					public void accept(FileIngestionResult<String> result) {
+						if (! result.isSuccess())
+							++failures[0];
+					}
+				});
+			} finally {
+				executor.shutdown();
+			}
+			producer.join();
+			assertEquals(2, failures[0]);
+		} finally {
+			for (File file : files) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+	
+	@Test
+	public void testLatencyHistogramBuckets() {
+		long previousUpperBound = -1;
+		for (int i = 0; i < LatencyHistogram.BUCKETS; ++i) {
+			long upperBound = LatencyHistogram.bucketUpperBound(i);
+			assertTrue(upperBound > previousUpperBound);
+			assertEquals(i, LatencyHistogram.bucketIndex(previousUpperBound + 1));
+			assertEquals(i, LatencyHistogram.bucketIndex(upperBound));
+			previousUpperBound = upperBound;
+		}
+		assertEquals(Long.MAX_VALUE, previousUpperBound);
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long nanos = 1; nanos <= 1000; ++nanos) {
+			histogram.record(nanos * 1000);
+		}
+		long median = LatencyHistogram.valueAtPercentile(histogram.bucketCounts(), 50);
+		assertTrue(median >= 500000 && median <= 500000 * 9 / 8);
+	}
+	
 	@Test
 	public void testString000000051Case() throws OcrParseException {
 		String input[] = {
@@ -288,6 +1172,95 @@ public class OcrParserTest {
 		testForExpectedAmbiguity(input, "490067715", "490067115", "490067719", "490867715");
 	}
 	
+	@Test
+	public void testKnownAccountsNarrowAmbiguity() throws Exception {
+		OcrBlock block = OcrBlock.newInstance(new String[] {
+				"    _  _  _  _  _  _     _ ",
+				"|_||_|| || ||_   |  |  ||_ ",
+				"  | _||_||_||_|  |  |  | _|",
+				"                           "
+		});
+		File indexFile = File.createTempFile("accounts", ".idx");
+		try {
+			MappedAccountBitSet known = MappedAccountBitSet.create(indexFile, Arrays.stream(new int[] { 490067719, 123456789 }).iterator());
+			known.close();
+			known = MappedAccountBitSet.open(indexFile);
+			try {
+				assertTrue(known.contains(490067719) && ! known.contains(490067715) && ! known.contains(-1));
+				assertEquals("490067719", new ErrorCorrectingBlockParser(null, known).parse(block));
+			} finally {
+				known.close();
+			}
+			known = MappedAccountBitSet.create(indexFile, Arrays.stream(new int[] { 490867715, 490067115, 0 }).iterator());
+			try {
+				AccountResult result = new AccountOcrBlockParser(new ErrorCorrectingBlockParser(null, known)).parse(block);
+				assertEquals(AccountStatus.AMB, result.getStatus());
+				assertEquals(2, result.getCandidateCount());
+				assertTrue(known.contains(result.getCandidates()[0]) && known.contains(result.getCandidates()[1]));
+			} finally {
+				known.close();
+			}
+		} finally {
+			indexFile.delete();
+		}
+		AccountSet none = new AccountSet() {
+			@Override
+			public boolean contains(int account) {
+				return false;
+			}
+		};
+		assertEquals(errorCorrectingParser.parse(block), new ErrorCorrectingBlockParser(null, none).parse(block));
+	}
+	
+	@Test
+	public void testOffHeapAccountHashSetAndFilterPolicy() throws OcrParseException {
+		// undersized, to force growth
+		OffHeapAccountHashSet known = new OffHeapAccountHashSet(10);
+		Set<Integer> expected = new HashSet<Integer>();
+		Random random = new Random(18L);
+		for (int i = 0; i < 100000; ++i) {
+			int account = random.nextInt(1000000000);
+			assertEquals(expected.add(account), known.add(account));
+		}
+		assertEquals(expected.size(), known.size());
+		for (int i = 0; i < 100000; ++i) {
+			int account = random.nextInt(1000000000);
+			assertEquals(expected.contains(account), known.contains(account));
+		}
+		for (int account : expected) {
+			assertTrue(known.contains(account));
+		}
+		// 2^27 accounts need the largest table a single direct buffer can hold
+		try {
+			new OffHeapAccountHashSet((1 << 27) + 1);
+			fail("Expected IllegalArgumentException for size needing more than 2^28 slots");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().endsWith("0-" + (1 << 27)));
+		}
+
+		String[] ambiguous = {
+				"    _  _  _  _  _  _     _ ",
+				"|_||_|| || ||_   |  |  ||_ ",
+				"  | _||_||_||_|  |  |  | _|",
+				"                           "
+		};
+		String[] correctable = {
+				"    _  _     _  _  _  _  _",
+				" _| _| _||_||_ |_   ||_||_|",
+				"  ||_  _|  | _||_|  ||_| _|",
+				"                           "
+		};
+		OffHeapAccountHashSet onlyOne = new OffHeapAccountHashSet(2);
+		onlyOne.add(490867715);
+		ErrorCorrectingBlockParser preferring = new ErrorCorrectingBlockParser(null, onlyOne, KnownAccountPolicy.PREFER);
+		ErrorCorrectingBlockParser filtering = new ErrorCorrectingBlockParser(null, onlyOne, KnownAccountPolicy.FILTER);
+		assertEquals("490867715", preferring.parse(OcrBlock.newInstance(ambiguous)));
+		assertEquals("490867715", filtering.parse(OcrBlock.newInstance(ambiguous)));
+		// single unknown candidate is still accepted when preferring, but not when filtering
+		assertEquals("123456789", preferring.parse(OcrBlock.newInstance(correctable)));
+		assertEquals("?23456789 ILL", filtering.parse(OcrBlock.newInstance(correctable)));
+	}
+	
 	@Test
 	public void test123456789Correction() throws OcrParseException  {
 		String input[] = {
@@ -321,6 +1294,296 @@ public class OcrParserTest {
 		testUserStory4Case(input, "490867715");
 	}
 	
+	@Test
+	public void testAccountResultAmbiguity() throws OcrParseException {
+		String input[] = {
+				"    _  _  _  _  _  _     _ ",
+				"|_||_|| || ||_   |  |  ||_ ",
+				"  | _||_||_||_|  |  |  | _|",
+				"                           "
+		};
+		AccountResult result = new AccountOcrBlockParser(new ErrorCorrectingBlockParser()).parse(OcrBlock.newInstance(input));
+		assertEquals(AccountStatus.AMB, result.getStatus());
+		assertEquals(490067715, result.getAccount());
+		assertTrue(Arrays.equals(new int[] { 490867715, 490067115, 490067719 }, result.getCandidates()));
+		assertEquals("490067715 AMB [490867715, 490067115, 490067719]", result.toString());
+	}
+
+	@Test
+	public void testBlockViewsMatchCopiedBlocks() throws OcrParseException {
+		// short lines, as with trailing spaces trimmed, are padded virtually
+		String text = "header\n"
+				+ "    _  _     _  _  _  _  _\n"
+				+ "  | _| _||_||_ |_   ||_||_|\n"
+				+ "  ||_  _|  | _||_|  ||_| _|\n"
+				+ "\n";
+		int[] lineOffsets = { 7, 34, 62, 90 };
+		int[] lineLengths = { 26, 27, 27, 0 };
+		OcrBlock charView = OcrBlock.view(text, lineOffsets, lineLengths);
+		// no room to load whole rows past the last line, so cells are decoded one character at a time
+		OcrBlock byteView = OcrBlock.view(ByteBuffer.wrap(text.getBytes()), lineOffsets, lineLengths);
+		assertEquals("123456789", simpleParser.parse(charView));
+		assertEquals("123456789", simpleParser.parse(byteView));
+		String garbled = text.replace("  | _| _|", "  | _/ _|");
+		assertEquals("1?3456789 ILL", simpleParser.parse(OcrBlock.view(garbled, lineOffsets, lineLengths)));
+		assertEquals("123456789", errorCorrectingParser.parse(OcrBlock.view(garbled, lineOffsets, lineLengths)));
+		assertTrue(Arrays.equals(charView.lines(), byteView.lines()));
+		assertEquals("  | _| _||_||_ |_   ||_||_|", charView.lines()[1]);
+		try {
+			OcrBlock.view(text, new int[] { 7, 34, 62, 62 }, new int[] { 26, 27, 27, 27 });
+			fail("Expected IllegalArgumentException for non-blank fourth line");
+		} catch (IllegalArgumentException e) {
+			// 4th line not blank
+		}
+	}
+
+	@Test
+	public void testMutableAccountResultReuse() throws OcrParseException {
+		String illegibleInput[] = {
+				"    _  _     _  _  _  _  _ ",
+				"  | _| _||_| _ |_   ||_||_|",
+				"  ||_  _|  | _||_|  ||_| _ ",
+				"                           "
+		};
+		String correctableInput[] = {
+				"                           ",
+				"  |  |  |  |  |  |  |  |  |",
+				"  |  |  |  |  |  |  |  |  |",
+				"                           "
+		};
+		AccountBlockParser parser = new ErrorCorrectingBlockParser();
+		MutableAccountResult result = new MutableAccountResult();
+		parser.parse(OcrBlock.newInstance(illegibleInput), result);
+		assertEquals(AccountStatus.ILL, result.getStatus());
+		assertEquals((1 << 4) | (1 << 8), result.getIllegibleMask());
+		assertEquals(-1, result.getDigit(4));
+		assertEquals("1234?678? ILL", result.toString());
+
+		parser.parse(OcrBlock.newInstance(correctableInput), result);
+		assertEquals(AccountStatus.OK, result.getStatus());
+		assertTrue(result.isCorrected());
+		assertEquals(711111111, result.getAccount());
+		assertEquals("711111111", result.toString());
+	}
+	
+	@Test
+	public void testMultiErrorCorrectionOfTwoIllegibleDigits() throws OcrParseException {
+		String input[] = {
+				"          _  _  _  _     _ ",
+				"|_||_|| ||_||_   |  |  ||_ ",
+				"  | _||_||_||_|  |  |  | _|",
+				"                           "
+		};
+		assertEquals("4??867715 ILL", errorCorrectingParser.parse(OcrBlock.newInstance(input)));
+		assertEquals("490867715", new MultiErrorCorrectingBlockParser().parse(OcrBlock.newInstance(input)));
+	}
+	
+	@Test
+	public void testMultiErrorWithSingleEditMatchesErrorCorrecting() throws OcrParseException {
+		File inputFile = new File("UserStory2Data.txt");
+		MultiErrorCorrectingBlockParser singleEditParser = new MultiErrorCorrectingBlockParser(1, MultiErrorCorrectingBlockParser.DEFAULT_WORK_BUDGET);
+		List<AccountResult> expected = new MappedOcrFileParser().parseFile(inputFile, new ErrorCorrectingBlockParser());
+		List<AccountResult> actual = new MappedOcrFileParser().parseFile(inputFile, singleEditParser);
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).getStatus(), actual.get(i).getStatus());
+			assertEquals(expected.get(i).getAccount(), actual.get(i).getAccount());
+			int[] expectedCandidates = expected.get(i).getCandidates();
+			Arrays.sort(expectedCandidates);
+			assertTrue(Arrays.equals(expectedCandidates, actual.get(i).getCandidates()));
+		}
+	}
+	
+	@Test
+	public void testMultiErrorBudgetExhaustionLeavesBlockUncorrected() throws OcrParseException {
+		String input[] = {
+				"          _  _  _  _     _ ",
+				"|_||_|| ||_||_   |  |  ||_ ",
+				"  | _||_||_||_|  |  |  | _|",
+				"                           "
+		};
+		MultiErrorCorrectingBlockParser parser = new MultiErrorCorrectingBlockParser(2, 5);
+		assertEquals("4??867715 ILL", parser.parse(OcrBlock.newInstance(input)));
+		assertEquals(1, parser.getBudgetExhaustedCount());
+	}
+
+	@Test
+	public void testMultiErrorReportsMoreCandidatesThanCapacity() throws OcrParseException {
+		// two segment errors, with 34 accounts at distance 2 and none nearer
+		String input[] = {
+				" _  _  _  _  _  _  _  _  _ ",
+				"|_||_  _|| ||_ |_||_||_||_|",
+				"|_||_| _||_| _||_| _| _||_|",
+				"                           "
+		};
+		MultiErrorCorrectingBlockParser parser = new MultiErrorCorrectingBlockParser();
+		String output = parser.parse(OcrBlock.newInstance(input));
+		assertTrue(output.startsWith("863058998 AMB [063058898, 663058988, "));
+		assertTrue(output.endsWith(", 963059998, 963858998]"));
+		assertEquals(34, output.split(", ").length);
+
+		MutableAccountResult result = new MutableAccountResult();
+		parser.parse(OcrBlock.newInstance(input), result);
+		assertEquals(AccountStatus.AMB, result.getStatus());
+		assertTrue(result.isCandidatesTruncated());
+		assertEquals(MutableAccountResult.DEFAULT_CANDIDATE_CAPACITY, result.getCandidateCount());
+		assertTrue(output.startsWith(result.toString().substring(0, result.toString().length() - 1)));
+
+		// with room for only one, that one is not taken as the correction
+		MutableAccountResult single = new MutableAccountResult(1);
+		parser.parse(OcrBlock.newInstance(input), single);
+		assertEquals(AccountStatus.AMB, single.getStatus());
+		assertTrue(! single.isCorrected());
+	}
+
+	@Test
+	public void testDriftProfilePromotesRepeatedCorrection() throws OcrParseException {
+		// scanner has lost top right segment of 2nd digit, so its 8s scan as 6s
+		ScannerDriftProfile profile = new ScannerDriftProfile(8, 90);
+		DriftCorrectingBlockParser driftParser = new DriftCorrectingBlockParser(new ErrorCorrectingBlockParser(), profile);
+		int eight = GlyphTable.digitCode(8);
+		int six = GlyphTable.digitCode(6);
+		List<String> learnedAccounts = new ArrayList<String>();
+		int learned = 0;
+		for (int account = 180000000; learned < 8; account += 7) {
+			String digits = String.format("%09d", account);
+			int sum = 0;
+			for (int i = 0; i < 9; ++i) {
+				sum += (digits.charAt(i) - '0') * (9 - i);
+			}
+			if (digits.charAt(1) != '8' || sum % 11 != 0)
+				continue;
+			String output = driftParser.parse(OcrBlock.newInstance(driftBlock(digits.substring(0, 1) + "6" + digits.substring(2))));
+			if (output.equals(digits)) {
+				learnedAccounts.add(digits);
+				++learned;
+				assertEquals(learned, profile.getCount(1, six, 8));
+			}
+		}
+		assertEquals(8, profile.promotedDigit(1, six));
+		assertEquals(-1, profile.promotedDigit(0, six));
+		assertEquals(1, profile.getPromotedCount());
+		assertEquals(8, profile.getMissingSegmentCount(1, 5));
+		assertEquals(0, profile.getExtraSegmentCount(1, 5));
+		assertTrue((eight & ~six) == 1 << 5);
+
+		// general search finds this ambiguous, but the profile says which correction this scanner needs
+		String[] ambiguous = driftBlock("666666666");
+		testForExpectedAmbiguity(ambiguous, "666666666", "666566666", "686666666");
+		assertEquals("686666666", driftParser.parse(OcrBlock.newInstance(ambiguous)));
+		assertEquals(1, driftParser.getFastPathCount());
+		assertEquals(9, profile.getCount(1, six, 8));
+
+		// fast-path corrections are recorded too, so an occasional different correction does not withdraw the promotion
+		for (int round = 0; round < 5; ++round) {
+			for (int i = 0; i < 9; ++i) {
+				String digits = learnedAccounts.get(i % learnedAccounts.size());
+				assertEquals(digits, driftParser.parse(OcrBlock.newInstance(driftBlock(digits.substring(0, 1) + "6" + digits.substring(2)))));
+			}
+			profile.record(1, six, 5);
+			assertEquals(8, profile.promotedDigit(1, six));
+		}
+		assertEquals(46, driftParser.getFastPathCount());
+	}
+
+	@Test
+	public void testDriftProfileSurvivesExportAndImport() throws Exception {
+		ScannerDriftProfile profile = new ScannerDriftProfile(3, 80);
+		int six = GlyphTable.digitCode(6);
+		for (int i = 0; i < 3; ++i) {
+			profile.record(1, six, 8);
+		}
+		profile.record(4, six, 5);
+		File profileFile = File.createTempFile("drift", ".profile");
+		try {
+			profile.exportTo(profileFile);
+			ScannerDriftProfile imported = new ScannerDriftProfile(3, 80);
+			assertTrue(imported.importFrom(profileFile));
+			assertEquals(3, imported.getCount(1, six, 8));
+			assertEquals(1, imported.getCount(4, six, 5));
+			assertEquals(8, imported.promotedDigit(1, six));
+			assertEquals(-1, imported.promotedDigit(4, six));
+
+			// a competing correction dilutes the share, withdrawing the promotion
+			imported.record(1, six, 5);
+			assertEquals(-1, imported.promotedDigit(1, six));
+
+			Files.write(profileFile.toPath(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+			try {
+				imported.importFrom(profileFile);
+				fail("Expected OcrParseException for malformed profile");
+			} catch (OcrParseException e) {
+				assertEquals(3, imported.getCount(1, six, 8));
+			}
+		} finally {
+			profileFile.delete();
+		}
+		assertTrue(! new ScannerDriftProfile().importFrom(profileFile));
+	}
+
+	// block of reference glyphs of specified digits
+	private static String[] driftBlock(String digits) {
+		String[] retval = new String[] { "", "", "", "" };
+		for (int i = 0; i < digits.length(); ++i) {
+			int digit = digits.charAt(i) - '0';
+			for (int line = 0; line < 3; ++line) {
+				retval[line] += BaseOcrBlockParser.DIGITS_LINES[line].substring(3 * digit, 3 * digit + 3);
+			}
+		}
+		return retval;
+	}
+
+	@Test
+	public void testRankedCorrectionPrefersMissingSegments() throws OcrParseException {
+		String input[] = {
+				" _  _  _  _  _  _  _  _  _ ",
+				"|_ |_ |_ |_ |_ |_ |_ |_ |_ ",
+				"|_||_||_||_||_||_||_||_||_|",
+				"                           "
+		};
+		// 6 -> 8 restores a dropped segment, costing 1; 6 -> 5 removes an extra one, costing 2
+		MutableAccountResult result = new MutableAccountResult();
+		new RankedCorrectingBlockParser(SegmentCostModel.UNIFORM, 1, 1, RankedCorrectingBlockParser.DEFAULT_WORK_BUDGET)
+				.parse(OcrBlock.newInstance(input), result);
+		assertEquals("666666666 AMB [666566666, 686666666]", result.toString());
+		RankedCorrectingBlockParser decisiveParser = new RankedCorrectingBlockParser(SegmentCostModel.DROPOUT,
+				RankedCorrectingBlockParser.DEFAULT_MAX_COST, 1, RankedCorrectingBlockParser.DEFAULT_WORK_BUDGET);
+		assertEquals("686666666", decisiveParser.parse(OcrBlock.newInstance(input)));
+
+		// with a wider margin, candidates costing 2, including two restored segments, are ranked after the cheapest
+		new RankedCorrectingBlockParser().parse(OcrBlock.newInstance(input), result);
+		assertEquals(AccountStatus.AMB, result.getStatus());
+		assertEquals(686666666, result.getCandidate(0));
+		assertEquals(1, result.getCandidateCost(0));
+		int[] costs = result.toAccountResult().getCandidateCosts();
+		assertEquals(result.getCandidateCount(), costs.length);
+		for (int i = 1; i < costs.length; ++i) {
+			assertEquals(2, costs[i]);
+			if (i > 1)
+				assertTrue(result.getCandidate(i - 1) < result.getCandidate(i));
+		}
+		assertTrue(result.toString().contains("666566666"));
+	}
+
+	@Test
+	public void testRankedUniformCorrectionMatchesMultiErrorCorrecting() throws Exception {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		new OcrDataGenerator(NoiseModel.NONE.withInvalidAccountRate(0.3).withSegmentFlipRate(0.5), 19L).generate(300, data, null);
+		File inputFile = File.createTempFile("ranked", ".txt");
+		try {
+			Files.write(inputFile.toPath(), data.toByteArray());
+			List<AccountResult> expected = new MappedOcrFileParser().parseFile(inputFile, new MultiErrorCorrectingBlockParser());
+			List<AccountResult> actual = new MappedOcrFileParser().parseFile(inputFile, new RankedCorrectingBlockParser(
+					SegmentCostModel.UNIFORM, MultiErrorCorrectingBlockParser.DEFAULT_MAX_EDITS, 1, MultiErrorCorrectingBlockParser.DEFAULT_WORK_BUDGET));
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); ++i) {
+				assertEquals(expected.get(i).toString(), actual.get(i).toString());
+			}
+		} finally {
+			inputFile.delete();
+		}
+	}
+	
 	private void testSimpleRawCase(String[] input, String expectedRawValue) throws OcrParseException {
 		assertEquals(expectedRawValue, rawParser.parse(OcrBlock.newInstance(input)));
 	}